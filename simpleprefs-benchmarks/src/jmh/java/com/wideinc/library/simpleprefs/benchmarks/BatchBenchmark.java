@@ -0,0 +1,70 @@
+package com.wideinc.library.simpleprefs.benchmarks;
+
+import com.wideinc.library.simpleprefs.Batch;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of writing several keys with one put each against one batch
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BatchBenchmark {
+
+    @Param({"10"})
+    public int puts;
+
+    private int next;
+
+    private int index(final PrefsState state) {
+        next = next + 1 < state.keys ? next + 1 : 0;
+        return next;
+    }
+
+    @Benchmark
+    public void singlePutsApply(final PrefsState state) {
+        for (int i = 0; i < puts; i++) {
+            final int index = index(state);
+            state.prefs.putInt(state.intKeys[index], index + 1);
+        }
+    }
+
+    @Benchmark
+    public void batchApply(final PrefsState state) {
+        final Batch batch = state.prefs.beginBatch();
+        for (int i = 0; i < puts; i++) {
+            final int index = index(state);
+            batch.putInt(state.intKeys[index], index + 1);
+        }
+        batch.apply();
+    }
+
+    @Benchmark
+    public boolean singlePutsCommit(final PrefsState state) {
+        boolean written = true;
+        for (int i = 0; i < puts; i++) {
+            final int index = index(state);
+            written &= state.prefs.beginBatch().putInt(state.intKeys[index], index + 1).commit();
+        }
+        return written;
+    }
+
+    @Benchmark
+    public boolean batchCommit(final PrefsState state) {
+        final Batch batch = state.prefs.beginBatch();
+        for (int i = 0; i < puts; i++) {
+            final int index = index(state);
+            batch.putInt(state.intKeys[index], index + 1);
+        }
+        return batch.commit();
+    }
+}
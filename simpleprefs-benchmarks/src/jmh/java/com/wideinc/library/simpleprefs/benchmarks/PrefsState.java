@@ -0,0 +1,62 @@
+package com.wideinc.library.simpleprefs.benchmarks;
+
+import com.wideinc.library.simpleprefs.Batch;
+import com.wideinc.library.simpleprefs.Prefs;
+import com.wideinc.library.simpleprefs.SharedPreferencesStore;
+import com.wideinc.library.simpleprefs.SimplePrefs;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Preferences backed by an XML file holding the given number of int keys and as many string keys
+ */
+@State(Scope.Benchmark)
+public class PrefsState {
+
+    @Param({"100", "1000", "10000"})
+    public int keys;
+
+    public XmlSharedPreferences preferences;
+    public Prefs prefs;
+    public String[] intKeys;
+    public String[] stringKeys;
+    private File file;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        file = File.createTempFile("simpleprefs", ".xml");
+        file.delete();
+        preferences = new XmlSharedPreferences(file);
+        prefs = new SimplePrefs.Builder()
+                .setStore(new SharedPreferencesStore(preferences))
+                .buildInstance();
+        intKeys = new String[keys];
+        stringKeys = new String[keys];
+        final Batch batch = prefs.beginBatch();
+        for (int i = 0; i < keys; i++) {
+            intKeys[i] = "int" + i;
+            stringKeys[i] = "string" + i;
+            batch.putInt(intKeys[i], i).putString(stringKeys[i], "value of the key number " + i);
+        }
+        batch.commit();
+    }
+
+    @TearDown(Level.Iteration)
+    public void awaitWrites() {
+        preferences.awaitWrites();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        preferences.awaitWrites();
+        file.delete();
+    }
+}
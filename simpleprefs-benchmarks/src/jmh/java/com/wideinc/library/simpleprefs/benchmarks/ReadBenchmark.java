@@ -0,0 +1,48 @@
+package com.wideinc.library.simpleprefs.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the typed reads and allocation of {@code getAll()}, run with the gc profiler to see the allocation rate
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ReadBenchmark {
+
+    private int next;
+
+    private int index(final PrefsState state) {
+        next = next + 1 < state.keys ? next + 1 : 0;
+        return next;
+    }
+
+    @Benchmark
+    public int getInt(final PrefsState state) {
+        return state.prefs.getInt(state.intKeys[index(state)], -1);
+    }
+
+    @Benchmark
+    public String getString(final PrefsState state) {
+        return state.prefs.getString(state.stringKeys[index(state)], null);
+    }
+
+    @Benchmark
+    public int getMissing(final PrefsState state) {
+        return state.prefs.getInt("missing", -1);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Map<String, ?> getAll(final PrefsState state) {
+        return state.prefs.getAll();
+    }
+}
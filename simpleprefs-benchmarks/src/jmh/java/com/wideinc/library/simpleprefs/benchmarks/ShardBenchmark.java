@@ -0,0 +1,90 @@
+package com.wideinc.library.simpleprefs.benchmarks;
+
+import com.wideinc.library.simpleprefs.Batch;
+import com.wideinc.library.simpleprefs.Prefs;
+import com.wideinc.library.simpleprefs.PrefsStore;
+import com.wideinc.library.simpleprefs.ShardedPrefsStore;
+import com.wideinc.library.simpleprefs.SharedPreferencesStore;
+import com.wideinc.library.simpleprefs.SimplePrefs;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of a single committed put as the store grows, with the keys in one XML file or split across shards.
+ * Every commit rewrites only the file of its key, so the cost follows the number of keys per file.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ShardBenchmark {
+
+    /**
+     * Preferences holding the given number of string keys in the given number of XML files
+     */
+    @State(Scope.Benchmark)
+    public static class ShardedState {
+
+        @Param({"1000", "2000", "4000", "8000"})
+        public int keys;
+
+        @Param({"1", "16"})
+        public int shards;
+
+        public XmlSharedPreferences[] files;
+        public Prefs prefs;
+        public String[] stringKeys;
+        private File[] paths;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            files = new XmlSharedPreferences[shards];
+            paths = new File[shards];
+            final PrefsStore[] stores = new PrefsStore[shards];
+            for (int i = 0; i < shards; i++) {
+                paths[i] = File.createTempFile("simpleprefs_shard" + i + "_", ".xml");
+                paths[i].delete();
+                files[i] = new XmlSharedPreferences(paths[i]);
+                stores[i] = new SharedPreferencesStore(files[i]);
+            }
+            prefs = new SimplePrefs.Builder()
+                    .setStore(shards > 1 ? new ShardedPrefsStore(stores) : stores[0])
+                    .buildInstance();
+            stringKeys = new String[keys];
+            final Batch batch = prefs.beginBatch();
+            for (int i = 0; i < keys; i++) {
+                stringKeys[i] = "key" + i;
+                batch.putString(stringKeys[i], "value of the key number " + i);
+            }
+            batch.commit();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            for (int i = 0; i < shards; i++) {
+                files[i].awaitWrites();
+                paths[i].delete();
+            }
+        }
+    }
+
+    private int next;
+
+    @Benchmark
+    public boolean putStringCommit(final ShardedState state) {
+        next = next + 31 < state.keys ? next + 31 : (next + 31) % state.keys;
+        return state.prefs.beginBatch().putString(state.stringKeys[next], "changed value " + next).commit();
+    }
+}
@@ -0,0 +1,45 @@
+package com.wideinc.library.simpleprefs.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of a single put at different store sizes. Every write rewrites the whole XML file,
+ * with {@code apply} on the background writer and with {@code commit} on the calling thread.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class WriteBenchmark {
+
+    private int next;
+
+    private int index(final PrefsState state) {
+        next = next + 1 < state.keys ? next + 1 : 0;
+        return next;
+    }
+
+    @Benchmark
+    public void putIntApply(final PrefsState state) {
+        final int index = index(state);
+        state.prefs.putInt(state.intKeys[index], index + 1);
+    }
+
+    @Benchmark
+    public void putStringApply(final PrefsState state) {
+        final int index = index(state);
+        state.prefs.putString(state.stringKeys[index], "changed value of the key number " + index);
+    }
+
+    @Benchmark
+    public boolean putIntCommit(final PrefsState state) {
+        final int index = index(state);
+        return state.prefs.beginBatch().putInt(state.intKeys[index], index + 1).commit();
+    }
+}
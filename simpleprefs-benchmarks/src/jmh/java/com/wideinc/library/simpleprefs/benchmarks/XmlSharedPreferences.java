@@ -0,0 +1,468 @@
+package com.wideinc.library.simpleprefs.benchmarks;
+
+import android.content.SharedPreferences;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * A JVM stand-in for the SharedPreferences of Android, so that SimplePrefs can be measured without a device.
+ * It follows the behavior of the Android implementation which matters for the performance:
+ * the file is loaded on a background thread and the reads wait for it, every write rewrites the whole
+ * XML file through a backup file, commit writes and syncs on the calling thread, and apply updates
+ * the memory at once and writes on a single background thread, skipping the writes already superseded.
+ */
+public final class XmlSharedPreferences implements SharedPreferences {
+
+    private static final ExecutorService WRITER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            final Thread thread = new Thread(runnable, "XmlSharedPreferences-Writer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final File file;
+    private final File backup;
+    private final Object lock = new Object();
+    private final Object writingLock = new Object();
+    private final WeakHashMap<OnSharedPreferenceChangeListener, Object> listeners = new WeakHashMap<>();
+    private Map<String, Object> map;
+    private boolean loaded;
+    private long memoryGeneration;
+    private long diskGeneration;
+    private int writesInFlight;
+    private volatile Future<?> lastWrite;
+
+    public XmlSharedPreferences(final File file) {
+        this.file = file;
+        this.backup = new File(file.getPath() + ".bak");
+        final Thread loader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        }, "XmlSharedPreferences-Load");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    private void load() {
+        Map<String, Object> read = null;
+        if (backup.exists()) {
+            file.delete();
+            backup.renameTo(file);
+        }
+        if (file.exists()) {
+            try (InputStream in = new BufferedInputStream(new FileInputStream(file), 16 * 1024)) {
+                read = readMap(in);
+            } catch (IOException | XMLStreamException e) {
+                read = null;
+            }
+        }
+        synchronized (lock) {
+            map = read != null ? read : new HashMap<String, Object>();
+            loaded = true;
+            lock.notifyAll();
+        }
+    }
+
+    private void awaitLoadedLocked() {
+        while (!loaded) {
+            try {
+                lock.wait();
+            } catch (InterruptedException ignored) {
+                // keep waiting like the Android implementation
+            }
+        }
+    }
+
+    /**
+     * Wait until all the writes queued by {@link Editor#apply()} are on the disk
+     */
+    public void awaitWrites() {
+        final Future<?> write = lastWrite;
+        if (write != null) {
+            try {
+                write.get();
+            } catch (Exception e) {
+                throw new IllegalStateException("Write failed", e);
+            }
+        }
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        synchronized (lock) {
+            awaitLoadedLocked();
+            return new HashMap<>(map);
+        }
+    }
+
+    @Override
+    public String getString(final String key, final String defValue) {
+        synchronized (lock) {
+            awaitLoadedLocked();
+            final String value = (String) map.get(key);
+            return value != null ? value : defValue;
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Set<String> getStringSet(final String key, final Set<String> defValues) {
+        synchronized (lock) {
+            awaitLoadedLocked();
+            final Set<String> values = (Set<String>) map.get(key);
+            return values != null ? values : defValues;
+        }
+    }
+
+    @Override
+    public int getInt(final String key, final int defValue) {
+        synchronized (lock) {
+            awaitLoadedLocked();
+            final Integer value = (Integer) map.get(key);
+            return value != null ? value : defValue;
+        }
+    }
+
+    @Override
+    public long getLong(final String key, final long defValue) {
+        synchronized (lock) {
+            awaitLoadedLocked();
+            final Long value = (Long) map.get(key);
+            return value != null ? value : defValue;
+        }
+    }
+
+    @Override
+    public float getFloat(final String key, final float defValue) {
+        synchronized (lock) {
+            awaitLoadedLocked();
+            final Float value = (Float) map.get(key);
+            return value != null ? value : defValue;
+        }
+    }
+
+    @Override
+    public boolean getBoolean(final String key, final boolean defValue) {
+        synchronized (lock) {
+            awaitLoadedLocked();
+            final Boolean value = (Boolean) map.get(key);
+            return value != null ? value : defValue;
+        }
+    }
+
+    @Override
+    public boolean contains(final String key) {
+        synchronized (lock) {
+            awaitLoadedLocked();
+            return map.containsKey(key);
+        }
+    }
+
+    @Override
+    public Editor edit() {
+        synchronized (lock) {
+            awaitLoadedLocked();
+        }
+        return new XmlEditor();
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(final OnSharedPreferenceChangeListener listener) {
+        synchronized (lock) {
+            listeners.put(listener, this);
+        }
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(final OnSharedPreferenceChangeListener listener) {
+        synchronized (lock) {
+            listeners.remove(listener);
+        }
+    }
+
+    /**
+     * A snapshot of the map to write, made when the editor changes are applied to the memory
+     */
+    private static final class Commit {
+        final long generation;
+        final Map<String, Object> map;
+        final List<String> changedKeys;
+        final List<OnSharedPreferenceChangeListener> listeners;
+
+        Commit(long generation, Map<String, Object> map, List<String> changedKeys, List<OnSharedPreferenceChangeListener> listeners) {
+            this.generation = generation;
+            this.map = map;
+            this.changedKeys = changedKeys;
+            this.listeners = listeners;
+        }
+    }
+
+    private final class XmlEditor implements Editor {
+
+        private final Map<String, Object> modified = new HashMap<>();
+        private boolean clear;
+
+        @Override
+        public Editor putString(final String key, final String value) {
+            modified.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putStringSet(final String key, final Set<String> values) {
+            modified.put(key, values == null ? null : new HashSet<>(values));
+            return this;
+        }
+
+        @Override
+        public Editor putInt(final String key, final int value) {
+            modified.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putLong(final String key, final long value) {
+            modified.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putFloat(final String key, final float value) {
+            modified.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putBoolean(final String key, final boolean value) {
+            modified.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor remove(final String key) {
+            modified.put(key, null);
+            return this;
+        }
+
+        @Override
+        public Editor clear() {
+            clear = true;
+            return this;
+        }
+
+        private Commit commitToMemory() {
+            synchronized (lock) {
+                // copy on write, like Android, when a write of the current map may still be in progress
+                if (writesInFlight > 0) {
+                    map = new HashMap<>(map);
+                }
+                writesInFlight++;
+                if (clear) {
+                    map.clear();
+                    clear = false;
+                }
+                final List<String> changedKeys = new ArrayList<>(modified.size());
+                for (Map.Entry<String, Object> entry : modified.entrySet()) {
+                    if (entry.getValue() == null) {
+                        map.remove(entry.getKey());
+                    } else {
+                        map.put(entry.getKey(), entry.getValue());
+                    }
+                    changedKeys.add(entry.getKey());
+                }
+                modified.clear();
+                return new Commit(++memoryGeneration, map, changedKeys,
+                        new ArrayList<>(listeners.keySet()));
+            }
+        }
+
+        @Override
+        public boolean commit() {
+            final Commit commit = commitToMemory();
+            final boolean written = writeToFile(commit, true);
+            notifyListeners(commit);
+            return written;
+        }
+
+        @Override
+        public void apply() {
+            final Commit commit = commitToMemory();
+            lastWrite = WRITER.submit(new Runnable() {
+                @Override
+                public void run() {
+                    writeToFile(commit, false);
+                }
+            });
+            notifyListeners(commit);
+        }
+    }
+
+    private void notifyListeners(final Commit commit) {
+        for (OnSharedPreferenceChangeListener listener : commit.listeners) {
+            for (String key : commit.changedKeys) {
+                listener.onSharedPreferenceChanged(this, key);
+            }
+        }
+    }
+
+    private boolean writeToFile(final Commit commit, final boolean sync) {
+        synchronized (writingLock) {
+            try {
+                return writeLocked(commit, sync);
+            } finally {
+                synchronized (lock) {
+                    writesInFlight--;
+                }
+            }
+        }
+    }
+
+    private boolean writeLocked(final Commit commit, final boolean sync) {
+        synchronized (lock) {
+            // like Android, an applied change superseded by a later one is not written, the later one writes it
+            if (commit.generation <= diskGeneration || (!sync && commit.generation < memoryGeneration)) {
+                return true;
+            }
+        }
+        if (file.exists() && !backup.exists() && !file.renameTo(backup)) {
+            return false;
+        }
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            final BufferedOutputStream buffered = new BufferedOutputStream(out, 16 * 1024);
+            writeMap(commit.map, buffered);
+            buffered.flush();
+            out.getFD().sync();
+        } catch (IOException | XMLStreamException e) {
+            file.delete();
+            return false;
+        }
+        backup.delete();
+        synchronized (lock) {
+            diskGeneration = commit.generation;
+        }
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writeMap(final Map<String, Object> map, final BufferedOutputStream out) throws XMLStreamException {
+        final XMLStreamWriter xml = XMLOutputFactory.newInstance().createXMLStreamWriter(out, "utf-8");
+        xml.writeStartDocument("utf-8", "1.0");
+        xml.writeStartElement("map");
+        for (Map.Entry<String, Object> entry : map.entrySet()) {
+            final Object value = entry.getValue();
+            if (value instanceof String) {
+                xml.writeStartElement("string");
+                xml.writeAttribute("name", entry.getKey());
+                xml.writeCharacters((String) value);
+                xml.writeEndElement();
+            } else if (value instanceof Set) {
+                xml.writeStartElement("set");
+                xml.writeAttribute("name", entry.getKey());
+                for (String item : (Set<String>) value) {
+                    xml.writeStartElement("string");
+                    xml.writeCharacters(item);
+                    xml.writeEndElement();
+                }
+                xml.writeEndElement();
+            } else {
+                xml.writeEmptyElement(typeName(value));
+                xml.writeAttribute("name", entry.getKey());
+                xml.writeAttribute("value", String.valueOf(value));
+            }
+        }
+        xml.writeEndElement();
+        xml.writeEndDocument();
+        xml.close();
+    }
+
+    private static String typeName(final Object value) {
+        if (value instanceof Integer) {
+            return "int";
+        } else if (value instanceof Long) {
+            return "long";
+        } else if (value instanceof Float) {
+            return "float";
+        } else if (value instanceof Boolean) {
+            return "boolean";
+        }
+        throw new IllegalArgumentException("Unsupported preference type " + value.getClass().getName());
+    }
+
+    private static Map<String, Object> readMap(final InputStream in) throws XMLStreamException {
+        final Map<String, Object> map = new HashMap<>();
+        final XMLStreamReader xml = XMLInputFactory.newInstance().createXMLStreamReader(in, "utf-8");
+        Set<String> set = null;
+        while (xml.hasNext()) {
+            if (xml.next() != XMLStreamConstants.START_ELEMENT) {
+                continue;
+            }
+            final String tag = xml.getLocalName();
+            final String name = xml.getAttributeValue(null, "name");
+            final String value = xml.getAttributeValue(null, "value");
+            switch (tag) {
+                case "int":
+                    map.put(name, Integer.parseInt(value));
+                    break;
+                case "long":
+                    map.put(name, Long.parseLong(value));
+                    break;
+                case "float":
+                    map.put(name, Float.parseFloat(value));
+                    break;
+                case "boolean":
+                    map.put(name, Boolean.parseBoolean(value));
+                    break;
+                case "set":
+                    set = new HashSet<>();
+                    map.put(name, set);
+                    break;
+                case "string":
+                    final String text = xml.getElementText();
+                    if (name == null && set != null) {
+                        set.add(text);
+                    } else {
+                        map.put(name, text);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        xml.close();
+        for (Map.Entry<String, Object> entry : map.entrySet()) {
+            if (entry.getValue() instanceof Set) {
+                entry.setValue(Collections.unmodifiableSet((Set<?>) entry.getValue()));
+            }
+        }
+        return map;
+    }
+}
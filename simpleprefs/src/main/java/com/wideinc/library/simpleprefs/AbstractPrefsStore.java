@@ -0,0 +1,56 @@
+package com.wideinc.library.simpleprefs;
+
+import java.util.Set;
+
+/**
+ * Implements the typed getters of {@link PrefsStore} over a single untyped lookup
+ */
+public abstract class AbstractPrefsStore implements PrefsStore {
+
+    /**
+     * @return the value saved for the key or null if it does not exist
+     */
+    protected abstract Object get(String key);
+
+    @Override
+    public int getInt(final String key, final int defValue) {
+        final Object value = get(key);
+        return value != null ? (Integer) value : defValue;
+    }
+
+    @Override
+    public long getLong(final String key, final long defValue) {
+        final Object value = get(key);
+        return value != null ? (Long) value : defValue;
+    }
+
+    @Override
+    public float getFloat(final String key, final float defValue) {
+        final Object value = get(key);
+        return value != null ? (Float) value : defValue;
+    }
+
+    @Override
+    public boolean getBoolean(final String key, final boolean defValue) {
+        final Object value = get(key);
+        return value != null ? (Boolean) value : defValue;
+    }
+
+    @Override
+    public String getString(final String key, final String defValue) {
+        final Object value = get(key);
+        return value != null ? (String) value : defValue;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Set<String> getStringSet(final String key, final Set<String> defValues) {
+        final Object value = get(key);
+        return value != null ? (Set<String>) value : defValues;
+    }
+
+    @Override
+    public boolean contains(final String key) {
+        return get(key) != null;
+    }
+}
@@ -0,0 +1,195 @@
+package com.wideinc.library.simpleprefs;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Loads the storage engine on a background executor, so that the file loading overlaps with the app startup.
+ * Writes made before the engine is loaded are kept in memory and replayed into it once it is loaded,
+ * and reads of those keys are served without waiting. Other reads wait until the engine is loaded.
+ */
+final class AsyncLoadStore implements VisitablePrefsStore {
+
+    /**
+     * Marks a key removed before the engine is loaded, since the overlay can not hold null values
+     */
+    private static final Object REMOVED = new Object();
+
+    private final FutureTask<PrefsStore> task;
+    private final ConcurrentHashMap<String, Object> overlay = new ConcurrentHashMap<>();
+    private volatile boolean cleared;
+    private volatile PrefsStore store;
+
+    AsyncLoadStore(final Callable<? extends PrefsStore> loader, final Executor executor) {
+        task = new FutureTask<>(new Callable<PrefsStore>() {
+            @Override
+            public PrefsStore call() throws Exception {
+                final PrefsStore loaded = loader.call();
+                synchronized (AsyncLoadStore.this) {
+                    if (cleared || !overlay.isEmpty()) {
+                        final Map<String, Object> changes = new HashMap<>(overlay.size());
+                        for (Map.Entry<String, Object> entry : overlay.entrySet()) {
+                            changes.put(entry.getKey(), entry.getValue() == REMOVED ? null : entry.getValue());
+                        }
+                        loaded.write(cleared, changes, false);
+                    }
+                    store = loaded;
+                }
+                return loaded;
+            }
+        });
+        executor.execute(task);
+    }
+
+    /**
+     * @return future which completes when the engine is loaded
+     */
+    Future<PrefsStore> future() {
+        return task;
+    }
+
+    /**
+     * Wait until the engine is loaded
+     *
+     * @return the loaded engine
+     * @throws RuntimeException if the engine failed to load
+     */
+    PrefsStore await() {
+        final PrefsStore loaded = store;
+        if (loaded != null) {
+            return loaded;
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while loading Simple Prefs.", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Simple Prefs failed to load the storage engine.", e.getCause());
+        }
+    }
+
+    /**
+     * Return the value written before the engine was loaded
+     *
+     * @return value, {@link #REMOVED} if the key was removed or null if the engine must be asked
+     */
+    private Object written(final String key) {
+        if (store != null) {
+            return null;
+        }
+        final Object value = overlay.get(key);
+        if (value == null && cleared) {
+            return REMOVED;
+        }
+        return value;
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        return await().getAll();
+    }
+
+    @Override
+    public void forEach(final String prefix, final PrefsVisitor visitor) {
+        PrefsVisitor.forEach(await(), prefix, visitor);
+    }
+
+    @Override
+    public int getInt(final String key, final int defValue) {
+        final Object value = written(key);
+        if (value != null) {
+            return value == REMOVED ? defValue : (Integer) value;
+        }
+        return await().getInt(key, defValue);
+    }
+
+    @Override
+    public long getLong(final String key, final long defValue) {
+        final Object value = written(key);
+        if (value != null) {
+            return value == REMOVED ? defValue : (Long) value;
+        }
+        return await().getLong(key, defValue);
+    }
+
+    @Override
+    public float getFloat(final String key, final float defValue) {
+        final Object value = written(key);
+        if (value != null) {
+            return value == REMOVED ? defValue : (Float) value;
+        }
+        return await().getFloat(key, defValue);
+    }
+
+    @Override
+    public boolean getBoolean(final String key, final boolean defValue) {
+        final Object value = written(key);
+        if (value != null) {
+            return value == REMOVED ? defValue : (Boolean) value;
+        }
+        return await().getBoolean(key, defValue);
+    }
+
+    @Override
+    public String getString(final String key, final String defValue) {
+        final Object value = written(key);
+        if (value != null) {
+            return value == REMOVED ? defValue : (String) value;
+        }
+        return await().getString(key, defValue);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Set<String> getStringSet(final String key, final Set<String> defValues) {
+        final Object value = written(key);
+        if (value != null) {
+            return value == REMOVED ? defValues : (Set<String>) value;
+        }
+        return await().getStringSet(key, defValues);
+    }
+
+    @Override
+    public boolean contains(final String key) {
+        final Object value = written(key);
+        if (value != null) {
+            return value != REMOVED;
+        }
+        return await().contains(key);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean write(final boolean clear, final Map<String, Object> changes, final boolean sync) {
+        synchronized (this) {
+            if (store == null && !sync) {
+                if (clear) {
+                    overlay.clear();
+                    cleared = true;
+                }
+                for (Map.Entry<String, Object> entry : changes.entrySet()) {
+                    final Object value = entry.getValue();
+                    if (value == null) {
+                        overlay.put(entry.getKey(), REMOVED);
+                    } else if (value instanceof Set) {
+                        overlay.put(entry.getKey(), Collections.unmodifiableSet(new HashSet<>((Set<String>) value)));
+                    } else {
+                        overlay.put(entry.getKey(), value);
+                    }
+                }
+                return true;
+            }
+        }
+        return await().write(clear, changes, sync);
+    }
+}
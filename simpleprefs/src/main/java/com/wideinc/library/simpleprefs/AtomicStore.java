@@ -0,0 +1,400 @@
+package com.wideinc.library.simpleprefs;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the numbers changed by the atomic operations in memory cells, updated lock-free with compare-and-set,
+ * and writes the changed cells to the underlying store together once per flush window.
+ * The reads of those keys are served from the cells. A put, a remove or a clear of a key drops its cell,
+ * so that the key is read from the store again.
+ * <p>
+ * A key should be changed either by the atomic operations or by the put methods at a time:
+ * a put made concurrently with the first atomic operation of the key may be overwritten.
+ */
+final class AtomicStore implements VisitablePrefsStore, ComponentCallbacks2 {
+
+    static final byte INT = 1;
+    static final byte LONG = 2;
+
+    /**
+     * The value of a key, an int or a long, a double is kept as its long raw bits
+     */
+    static final class Cell extends AtomicLong {
+        private static final long serialVersionUID = 1L;
+
+        final byte type;
+
+        Cell(final byte type, final long value) {
+            super(value);
+            this.type = type;
+        }
+
+        Object boxed() {
+            return type == INT ? (Object) (int) get() : (Object) get();
+        }
+    }
+
+    private final PrefsStore store;
+    private final LruStore recent;
+    private final long flushDelayMs;
+    private final ConcurrentHashMap<String, Cell> cells = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Cell> dirty = new ConcurrentHashMap<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final Object flushLock = new Object();
+    private volatile boolean active;
+    private volatile boolean shutdown;
+    // created with the first change, null again once shut down
+    private ScheduledExecutorService executor;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            scheduled.set(false);
+            flush();
+        }
+    };
+
+    /**
+     * @param store        the underlying store
+     * @param flushDelayMs time to collect the changed cells before they are written
+     */
+    AtomicStore(final PrefsStore store, final long flushDelayMs) {
+        this(store, null, flushDelayMs);
+    }
+
+    /**
+     * @param store        the underlying store
+     * @param recent       the cache mode store below, told about the reads served from the cells, or null
+     * @param flushDelayMs time to collect the changed cells before they are written
+     */
+    AtomicStore(final PrefsStore store, final LruStore recent, final long flushDelayMs) {
+        this.store = store;
+        this.recent = recent;
+        this.flushDelayMs = flushDelayMs;
+    }
+
+    /**
+     * Tell the cache mode store that the key was used, since its cell is read without reading the store
+     */
+    private void touch(final String key) {
+        if (recent != null) {
+            recent.touch(key);
+        }
+    }
+
+    /**
+     * Return the cell of the key, created from the saved value or 0 if there is none
+     *
+     * @throws ClassCastException if the key holds a value of another type
+     */
+    Cell cell(final String key, final byte type) {
+        Cell cell = cells.get(key);
+        if (cell == null) {
+            final long value = type == INT ? store.getInt(key, 0) : store.getLong(key, 0);
+            final Cell created = new Cell(type, value);
+            cell = cells.putIfAbsent(key, created);
+            if (cell == null) {
+                cell = created;
+            }
+            active = true;
+        } else {
+            touch(key);
+        }
+        if (cell.type != type) {
+            throw new ClassCastException("Preference " + key + " is not " + (type == INT ? "int" : "long"));
+        }
+        return cell;
+    }
+
+    /**
+     * Drop the cells of the keys a store below removed by itself, so that they are not written back
+     */
+    void removed(final Set<String> keys) {
+        for (String key : keys) {
+            final Cell cell = cells.remove(key);
+            if (cell != null) {
+                // an operation still changing the dropped cell queues it again, and the flush skips it
+                dirty.remove(key, cell);
+            }
+        }
+    }
+
+    /**
+     * Queue the cell to be written with the next flush
+     */
+    void changed(final String key, final Cell cell) {
+        dirty.put(key, cell);
+        if (shutdown) {
+            // shut down while still referenced, the change is written right away
+            flush();
+        } else if (scheduled.compareAndSet(false, true)) {
+            final ScheduledExecutorService executor = executor();
+            if (executor != null) {
+                executor.schedule(flushTask, flushDelayMs, TimeUnit.MILLISECONDS);
+            } else {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * @return the background thread, or null once this store is shut down
+     */
+    private synchronized ScheduledExecutorService executor() {
+        if (executor == null && !shutdown) {
+            executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "SimplePrefs-Atomic");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Write the current values of all the changed cells at once
+     *
+     * @param sync wait for the disk write
+     * @return {@code true} if there was nothing to write or the values were written successfully,
+     * otherwise the cells stay queued for the next flush
+     */
+    boolean flush(final boolean sync) {
+        synchronized (flushLock) {
+            if (dirty.isEmpty()) {
+                return true;
+            }
+            final Map<String, Object> changes = new HashMap<>(dirty.size() * 2);
+            final Map<String, Cell> flushed = new HashMap<>(dirty.size() * 2);
+            for (Map.Entry<String, Cell> entry : dirty.entrySet()) {
+                // a cell changed after this removal is queued again and written by the next flush
+                dirty.remove(entry.getKey(), entry.getValue());
+                if (cells.get(entry.getKey()) == entry.getValue()) {
+                    changes.put(entry.getKey(), entry.getValue().boxed());
+                    flushed.put(entry.getKey(), entry.getValue());
+                }
+            }
+            if (changes.isEmpty() || store.write(false, changes, sync)) {
+                return true;
+            }
+            for (Map.Entry<String, Cell> entry : flushed.entrySet()) {
+                // unless it was dropped by a put meanwhile
+                if (cells.get(entry.getKey()) == entry.getValue()) {
+                    dirty.putIfAbsent(entry.getKey(), entry.getValue());
+                }
+            }
+            return false;
+        }
+    }
+
+    private void flush() {
+        flush(false);
+    }
+
+    /**
+     * Flush on the background thread, or on the calling thread once this store is shut down
+     */
+    private void flushNow() {
+        final ScheduledExecutorService executor = executor();
+        if (executor != null) {
+            executor.execute(flushTask);
+        } else {
+            flush();
+        }
+    }
+
+    /**
+     * Write the changed cells and stop the background thread, the later changes are written directly
+     */
+    synchronized void shutdown() {
+        shutdown = true;
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+        flush(false);
+    }
+
+    @Override
+    public int getInt(final String key, final int defValue) {
+        final Cell cell = active ? cells.get(key) : null;
+        if (cell == null) {
+            return store.getInt(key, defValue);
+        }
+        if (cell.type != INT) {
+            throw new ClassCastException("Preference " + key + " is not int");
+        }
+        touch(key);
+        return (int) cell.get();
+    }
+
+    @Override
+    public long getLong(final String key, final long defValue) {
+        final Cell cell = active ? cells.get(key) : null;
+        if (cell == null) {
+            return store.getLong(key, defValue);
+        }
+        if (cell.type != LONG) {
+            throw new ClassCastException("Preference " + key + " is not long");
+        }
+        touch(key);
+        return cell.get();
+    }
+
+    @Override
+    public float getFloat(final String key, final float defValue) {
+        if (active && cells.containsKey(key)) {
+            throw new ClassCastException("Preference " + key + " is not float");
+        }
+        return store.getFloat(key, defValue);
+    }
+
+    @Override
+    public boolean getBoolean(final String key, final boolean defValue) {
+        if (active && cells.containsKey(key)) {
+            throw new ClassCastException("Preference " + key + " is not boolean");
+        }
+        return store.getBoolean(key, defValue);
+    }
+
+    @Override
+    public String getString(final String key, final String defValue) {
+        if (active && cells.containsKey(key)) {
+            throw new ClassCastException("Preference " + key + " is not String");
+        }
+        return store.getString(key, defValue);
+    }
+
+    @Override
+    public Set<String> getStringSet(final String key, final Set<String> defValues) {
+        if (active && cells.containsKey(key)) {
+            throw new ClassCastException("Preference " + key + " is not Set");
+        }
+        return store.getStringSet(key, defValues);
+    }
+
+    @Override
+    public boolean contains(final String key) {
+        return active && cells.containsKey(key) || store.contains(key);
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        if (!active) {
+            return store.getAll();
+        }
+        final Map<String, Object> all = new HashMap<>(store.getAll());
+        for (Map.Entry<String, Cell> entry : cells.entrySet()) {
+            all.put(entry.getKey(), entry.getValue().boxed());
+        }
+        return all;
+    }
+
+    /**
+     * Visit the saved preferences without a cell, then the cells
+     */
+    @Override
+    public void forEach(final String prefix, final PrefsVisitor visitor) {
+        if (!active) {
+            PrefsVisitor.forEach(store, prefix, visitor);
+            return;
+        }
+        PrefsVisitor.forEach(store, prefix, new PrefsVisitor() {
+            @Override
+            public void onInt(String key, int value) {
+                if (!cells.containsKey(key)) {
+                    visitor.onInt(key, value);
+                }
+            }
+
+            @Override
+            public void onLong(String key, long value) {
+                if (!cells.containsKey(key)) {
+                    visitor.onLong(key, value);
+                }
+            }
+
+            @Override
+            public void onFloat(String key, float value) {
+                visitor.onFloat(key, value);
+            }
+
+            @Override
+            public void onBoolean(String key, boolean value) {
+                visitor.onBoolean(key, value);
+            }
+
+            @Override
+            public void onString(String key, String value) {
+                visitor.onString(key, value);
+            }
+
+            @Override
+            public void onStringSet(String key, Set<String> values) {
+                visitor.onStringSet(key, values);
+            }
+        });
+        for (Map.Entry<String, Cell> entry : cells.entrySet()) {
+            if (PrefsVisitor.matches(prefix, entry.getKey())) {
+                final Cell cell = entry.getValue();
+                if (cell.type == INT) {
+                    visitor.onInt(entry.getKey(), (int) cell.get());
+                } else {
+                    visitor.onLong(entry.getKey(), cell.get());
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the changes and drop the cells of the changed keys
+     */
+    @Override
+    public boolean write(final boolean clear, final Map<String, Object> changes, final boolean sync) {
+        final boolean written = store.write(clear, changes, sync);
+        if (active) {
+            if (clear) {
+                cells.clear();
+            }
+            for (String key : changes.keySet()) {
+                cells.remove(key);
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Write the changed cells as soon as the app UI is hidden, the process may be killed in background
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_UI_HIDDEN && !dirty.isEmpty()) {
+            flushNow();
+        }
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    @Override
+    public void onLowMemory() {
+        if (!dirty.isEmpty()) {
+            flushNow();
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package com.wideinc.library.simpleprefs;
+
+import android.content.SharedPreferences.Editor;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Records several preference changes and writes them with a single {@link Editor}.
+ * Repeated writes to the same key are coalesced, only the last value is written.
+ * Like {@link Editor}, a {@link #clear()} is always done first, regardless of whether
+ * it was called before or after the put methods.
+ *
+ * @see Prefs#beginBatch()
+ * @see Prefs#batch(Block)
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class Batch implements Editor {
+
+    private final Prefs prefs;
+    private final Map<String, Object> changes = new LinkedHashMap<>();
+    private boolean clear;
+
+    Batch(final Prefs prefs) {
+        this.prefs = prefs;
+    }
+
+    /**
+     * A unit of work that records its changes into a batch
+     */
+    public interface Block {
+
+        /**
+         * @param batch the batch to record the changes into
+         */
+        void run(Batch batch);
+    }
+
+    @Override
+    public Batch putString(final String key, final String value) {
+        changes.put(key, value);
+        return this;
+    }
+
+    @Override
+    public Batch putStringSet(final String key, final Set<String> values) {
+        changes.put(key, values);
+        return this;
+    }
+
+    @Override
+    public Batch putInt(final String key, final int value) {
+        changes.put(key, value);
+        return this;
+    }
+
+    @Override
+    public Batch putLong(final String key, final long value) {
+        changes.put(key, value);
+        return this;
+    }
+
+    /**
+     * Save double value as long raw bits value
+     *
+     * @param key   name of preference to save or modify
+     * @param value new value of preference to save
+     * @return this batch
+     * @see Prefs#putDouble(String, double)
+     */
+    public Batch putDouble(final String key, final double value) {
+        changes.put(key, Double.doubleToLongBits(value));
+        return this;
+    }
+
+    /**
+     * Save an object in the compact binary form written by the codec
+     *
+     * @param key   name of preference to save or modify
+     * @param value new value of preference to save, null removes the key
+     * @param codec writes the object
+     * @return this batch
+     * @see Prefs#putObject(String, Object, Codec)
+     */
+    public <T> Batch putObject(final String key, final T value, final Codec<T> codec) {
+        changes.put(key, prefs.encode(key, value, codec));
+        return this;
+    }
+
+    @Override
+    public Batch putFloat(final String key, final float value) {
+        changes.put(key, value);
+        return this;
+    }
+
+    @Override
+    public Batch putBoolean(final String key, final boolean value) {
+        changes.put(key, value);
+        return this;
+    }
+
+    /**
+     * Save string value which expires after the time to live
+     *
+     * @return this batch
+     * @see Prefs#putString(String, String, long)
+     */
+    public Batch putString(final String key, final String value, final long ttlMs) {
+        changes.put(key, value != null ? new ExpiryStore.Expiring(value, Prefs.expiresAt(ttlMs)) : null);
+        return this;
+    }
+
+    /**
+     * Save a set of strings which expires after the time to live
+     *
+     * @return this batch
+     * @see Prefs#putStringSet(String, Set, long)
+     */
+    public Batch putStringSet(final String key, final Set<String> values, final long ttlMs) {
+        changes.put(key, values != null ? new ExpiryStore.Expiring(values, Prefs.expiresAt(ttlMs)) : null);
+        return this;
+    }
+
+    /**
+     * Save int value which expires after the time to live
+     *
+     * @return this batch
+     * @see Prefs#putInt(String, int, long)
+     */
+    public Batch putInt(final String key, final int value, final long ttlMs) {
+        changes.put(key, new ExpiryStore.Expiring(value, Prefs.expiresAt(ttlMs)));
+        return this;
+    }
+
+    /**
+     * Save long value which expires after the time to live
+     *
+     * @return this batch
+     * @see Prefs#putLong(String, long, long)
+     */
+    public Batch putLong(final String key, final long value, final long ttlMs) {
+        changes.put(key, new ExpiryStore.Expiring(value, Prefs.expiresAt(ttlMs)));
+        return this;
+    }
+
+    /**
+     * Save double value as long raw bits value, which expires after the time to live
+     *
+     * @return this batch
+     * @see Prefs#putDouble(String, double, long)
+     */
+    public Batch putDouble(final String key, final double value, final long ttlMs) {
+        changes.put(key, new ExpiryStore.Expiring(Double.doubleToLongBits(value), Prefs.expiresAt(ttlMs)));
+        return this;
+    }
+
+    /**
+     * Save float value which expires after the time to live
+     *
+     * @return this batch
+     * @see Prefs#putFloat(String, float, long)
+     */
+    public Batch putFloat(final String key, final float value, final long ttlMs) {
+        changes.put(key, new ExpiryStore.Expiring(value, Prefs.expiresAt(ttlMs)));
+        return this;
+    }
+
+    /**
+     * Save boolean value which expires after the time to live
+     *
+     * @return this batch
+     * @see Prefs#putBoolean(String, boolean, long)
+     */
+    public Batch putBoolean(final String key, final boolean value, final long ttlMs) {
+        changes.put(key, new ExpiryStore.Expiring(value, Prefs.expiresAt(ttlMs)));
+        return this;
+    }
+
+    @Override
+    public Batch remove(final String key) {
+        changes.put(key, null);
+        return this;
+    }
+
+    @Override
+    public Batch clear() {
+        clear = true;
+        return this;
+    }
+
+    /**
+     * @return number of distinct keys changed in this batch
+     */
+    public int size() {
+        return changes.size();
+    }
+
+    /**
+     * Write all the recorded changes synchronously with one editor
+     *
+     * @return {@code true} if the changes were successfully written
+     * @see Editor#commit()
+     */
+    @Override
+    public boolean commit() {
+        return write(true);
+    }
+
+    /**
+     * Write all the recorded changes asynchronously with one editor
+     *
+     * @see Editor#apply()
+     */
+    @Override
+    public void apply() {
+        write(false);
+    }
+
+    private boolean write(final boolean sync) {
+        final boolean written = prefs.write(clear, changes, sync);
+        changes.clear();
+        clear = false;
+        return written;
+    }
+
+    /**
+     * Put an untyped value into the editor, null value removes the key
+     *
+     * @throws IllegalArgumentException if the value is not a supported preference type
+     */
+    @SuppressWarnings("unchecked")
+    static void putValue(final Editor editor, final String key, final Object value) {
+        if (value == null) {
+            editor.remove(key);
+        } else if (value instanceof Integer) {
+            editor.putInt(key, (Integer) value);
+        } else if (value instanceof Long) {
+            editor.putLong(key, (Long) value);
+        } else if (value instanceof Float) {
+            editor.putFloat(key, (Float) value);
+        } else if (value instanceof Boolean) {
+            editor.putBoolean(key, (Boolean) value);
+        } else if (value instanceof String) {
+            editor.putString(key, (String) value);
+        } else if (value instanceof Set) {
+            editor.putStringSet(key, (Set<String>) value);
+        } else {
+            throw new IllegalArgumentException("Unsupported preference type " + value.getClass().getName() + " for key " + key);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.wideinc.library.simpleprefs;
+
+import java.lang.ref.WeakReference;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the changed keys and delivers them to the subscribed listeners in one batch per debounce window,
+ * so a bulk write or a clear makes one call per listener. The changes are delivered on the given executor,
+ * or on a background thread if there is none. Nothing is collected while there are no subscriptions.
+ */
+final class ChangeNotifier {
+
+    private static final class Subscription {
+        final WeakReference<PrefsChangeListener> listener;
+        final String key;
+        final String prefix;
+
+        Subscription(final PrefsChangeListener listener, final String key, final String prefix) {
+            this.listener = new WeakReference<>(listener);
+            this.key = key;
+            this.prefix = prefix;
+        }
+
+        boolean matches(final String changed) {
+            if (key != null) {
+                return key.equals(changed);
+            }
+            return prefix == null || changed.startsWith(prefix);
+        }
+    }
+
+    private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private final Executor executor;
+    private final long debounceMs;
+    private Set<String> pending = new HashSet<>();
+    private boolean pendingClear;
+    private boolean scheduled;
+    private boolean shutdown;
+    private ScheduledExecutorService scheduler;
+
+    private final Runnable deliverTask = new Runnable() {
+        @Override
+        public void run() {
+            deliver();
+        }
+    };
+
+    private final Runnable executeTask = new Runnable() {
+        @Override
+        public void run() {
+            executor.execute(deliverTask);
+        }
+    };
+
+    /**
+     * @param executor   executor to call the listeners on, or null to call them on a background thread
+     * @param debounceMs time to collect the changes before they are delivered
+     */
+    ChangeNotifier(final Executor executor, final long debounceMs) {
+        this.executor = executor;
+        this.debounceMs = debounceMs;
+    }
+
+    /**
+     * @param key    the key to listen to, or null for all the keys starting with the prefix
+     * @param prefix the key prefix to listen to, or null for all the keys
+     */
+    void subscribe(final PrefsChangeListener listener, final String key, final String prefix) {
+        subscriptions.add(new Subscription(listener, key, prefix));
+    }
+
+    void unsubscribe(final PrefsChangeListener listener) {
+        for (Subscription subscription : subscriptions) {
+            final PrefsChangeListener subscribed = subscription.listener.get();
+            if (subscribed == null || subscribed == listener) {
+                subscriptions.remove(subscription);
+            }
+        }
+    }
+
+    /**
+     * @return whether any listener is subscribed, the changes need not be reported otherwise
+     */
+    boolean isObserved() {
+        return !subscriptions.isEmpty();
+    }
+
+    /**
+     * Collect the changed keys and schedule their delivery, unless it is already scheduled
+     */
+    void changed(final boolean clear, final Collection<String> keys) {
+        if (subscriptions.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            if (shutdown) {
+                return;
+            }
+            pending.addAll(keys);
+            pendingClear |= clear;
+            if (scheduled) {
+                return;
+            }
+            scheduled = true;
+            if (debounceMs == 0 && executor != null) {
+                executor.execute(deliverTask);
+                return;
+            }
+            if (scheduler == null) {
+                scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        final Thread thread = new Thread(runnable, "SimplePrefs-Notify");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            scheduler.schedule(executor != null ? executeTask : deliverTask, debounceMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void deliver() {
+        final Set<String> keys;
+        final boolean cleared;
+        synchronized (this) {
+            keys = pending;
+            cleared = pendingClear;
+            pending = new HashSet<>();
+            pendingClear = false;
+            scheduled = false;
+        }
+        for (Subscription subscription : subscriptions) {
+            final PrefsChangeListener listener = subscription.listener.get();
+            if (listener == null) {
+                subscriptions.remove(subscription);
+                continue;
+            }
+            Set<String> matched = null;
+            for (String key : keys) {
+                if (subscription.matches(key)) {
+                    if (matched == null) {
+                        matched = new HashSet<>();
+                    }
+                    matched.add(key);
+                }
+            }
+            if (matched != null || cleared) {
+                listener.onPrefsChanged(matched != null ? Collections.unmodifiableSet(matched) : Collections.<String>emptySet(), cleared);
+            }
+        }
+    }
+
+    /**
+     * Stop the background thread, the changes not delivered yet and the later ones are dropped,
+     * so that no thread is started again
+     */
+    synchronized void shutdown() {
+        shutdown = true;
+        if (scheduler != null) {
+            scheduler.shutdown();
+            scheduler = null;
+        }
+    }
+}
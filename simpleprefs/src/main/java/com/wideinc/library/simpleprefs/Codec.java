@@ -0,0 +1,30 @@
+package com.wideinc.library.simpleprefs;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Writes an object in a compact binary form and reads it back, so that it can be saved as a single preference.
+ * A codec must read exactly what it writes, and should keep reading the values written by its older versions.
+ *
+ * @param <T> type of the object
+ * @see Prefs#putObject(String, Object, Codec)
+ * @see SimplePrefs.Builder#registerCodec(Class, Codec)
+ */
+public interface Codec<T> {
+
+    /**
+     * @param value the object to write, never null
+     * @param out   output to write the object into
+     * @throws IOException if the object can not be written
+     */
+    void encode(T value, DataOutput out) throws IOException;
+
+    /**
+     * @param in input holding the bytes written by {@link #encode(Object, DataOutput)}
+     * @return the object read
+     * @throws IOException if the bytes can not be read
+     */
+    T decode(DataInput in) throws IOException;
+}
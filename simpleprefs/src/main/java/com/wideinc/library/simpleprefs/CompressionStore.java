@@ -0,0 +1,344 @@
+package com.wideinc.library.simpleprefs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Saves large string and string set values Deflate-compressed, and decompresses them when they are read.
+ * A compressed value is saved as a string starting with {@link #HEADER} followed by the Base64 of the compressed
+ * bytes; a string set is saved as a set of that one string. Values without the header are returned as they are,
+ * so the values saved before the compression was enabled are still read.
+ * A value is saved compressed only if that makes it shorter. The decompressed values of the
+ * {@link #DEFAULT_CACHE_SIZE} most recently read keys are kept, so that the repeated reads decompress them only once.
+ */
+final class CompressionStore implements VisitablePrefsStore {
+
+    /**
+     * Starts a compressed value. The noncharacter U+FDD0 is never used in text, and is still valid in an XML file.
+     */
+    static final String HEADER = "\uFDD0Z1";
+    static final int DEFAULT_CACHE_SIZE = 256;
+
+    private static final class Inflated {
+        final String compressed;
+        final Object value;
+
+        Inflated(final String compressed, final Object value) {
+            this.compressed = compressed;
+            this.value = value;
+        }
+    }
+
+    private final PrefsStore store;
+    private final int threshold;
+    private final String[] prefixes;
+    // the last decompressed values, used while the saved string is the same, guarded by itself, in access order
+    private final LinkedHashMap<String, Inflated> inflated;
+
+    /**
+     * @param store     the underlying store
+     * @param threshold values with at least this many characters are compressed, 0 to compress by prefix only
+     * @param prefixes  values of the keys starting with any of these prefixes are compressed whatever their size
+     */
+    CompressionStore(final PrefsStore store, final int threshold, final String[] prefixes) {
+        this(store, threshold, prefixes, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * @param store     the underlying store
+     * @param threshold values with at least this many characters are compressed, 0 to compress by prefix only
+     * @param prefixes  values of the keys starting with any of these prefixes are compressed whatever their size
+     * @param cacheSize number of decompressed values kept in memory
+     */
+    CompressionStore(final PrefsStore store, final int threshold, final String[] prefixes, final int cacheSize) {
+        this.store = store;
+        this.threshold = threshold;
+        this.prefixes = prefixes;
+        this.inflated = new LinkedHashMap<String, Inflated>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Inflated> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * @return the underlying store
+     */
+    PrefsStore getStore() {
+        return store;
+    }
+
+    private boolean compressed(final String key, final int length) {
+        if (threshold > 0 && length >= threshold) {
+            return true;
+        }
+        for (String prefix : prefixes) {
+            if (key.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int getInt(final String key, final int defValue) {
+        return store.getInt(key, defValue);
+    }
+
+    @Override
+    public long getLong(final String key, final long defValue) {
+        return store.getLong(key, defValue);
+    }
+
+    @Override
+    public float getFloat(final String key, final float defValue) {
+        return store.getFloat(key, defValue);
+    }
+
+    @Override
+    public boolean getBoolean(final String key, final boolean defValue) {
+        return store.getBoolean(key, defValue);
+    }
+
+    @Override
+    public String getString(final String key, final String defValue) {
+        final String value = store.getString(key, null);
+        if (value == null) {
+            return defValue;
+        }
+        return value.startsWith(HEADER) ? (String) inflate(key, value, false) : value;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Set<String> getStringSet(final String key, final Set<String> defValues) {
+        final Set<String> values = store.getStringSet(key, null);
+        if (values == null) {
+            return defValues;
+        }
+        if (values.size() == 1) {
+            final String value = values.iterator().next();
+            if (value.startsWith(HEADER)) {
+                return (Set<String>) inflate(key, value, true);
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public boolean contains(final String key) {
+        return store.contains(key);
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        final Map<String, Object> all = new HashMap<>(store.getAll());
+        for (Map.Entry<String, Object> entry : all.entrySet()) {
+            final Object value = entry.getValue();
+            if (value instanceof String && ((String) value).startsWith(HEADER)) {
+                entry.setValue(inflate(entry.getKey(), (String) value, false));
+            } else if (value instanceof Set && ((Set<?>) value).size() == 1) {
+                final Object item = ((Set<?>) value).iterator().next();
+                if (item instanceof String && ((String) item).startsWith(HEADER)) {
+                    entry.setValue(inflate(entry.getKey(), (String) item, true));
+                }
+            }
+        }
+        return all;
+    }
+
+    /**
+     * Visit the preferences of the underlying store, decompressing the compressed values
+     */
+    @Override
+    public void forEach(final String prefix, final PrefsVisitor visitor) {
+        PrefsVisitor.forEach(store, prefix, new PrefsVisitor() {
+            @Override
+            public void onInt(String key, int value) {
+                visitor.onInt(key, value);
+            }
+
+            @Override
+            public void onLong(String key, long value) {
+                visitor.onLong(key, value);
+            }
+
+            @Override
+            public void onFloat(String key, float value) {
+                visitor.onFloat(key, value);
+            }
+
+            @Override
+            public void onBoolean(String key, boolean value) {
+                visitor.onBoolean(key, value);
+            }
+
+            @Override
+            public void onString(String key, String value) {
+                visitor.onString(key, value.startsWith(HEADER) ? (String) inflate(key, value, false) : value);
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public void onStringSet(String key, Set<String> values) {
+                if (values.size() == 1 && values.iterator().next().startsWith(HEADER)) {
+                    visitor.onStringSet(key, (Set<String>) inflate(key, values.iterator().next(), true));
+                } else {
+                    visitor.onStringSet(key, values);
+                }
+            }
+        });
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean write(final boolean clear, final Map<String, Object> changes, final boolean sync) {
+        Map<String, Object> written = changes;
+        synchronized (inflated) {
+            if (clear) {
+                inflated.clear();
+            } else {
+                inflated.keySet().removeAll(changes.keySet());
+            }
+        }
+        for (Map.Entry<String, Object> entry : changes.entrySet()) {
+            final String key = entry.getKey();
+            final Object value = entry.getValue();
+            Object deflated = null;
+            if (value instanceof String) {
+                final String string = (String) value;
+                if (compressed(key, string.length())) {
+                    deflated = deflate(encode(string), string.length());
+                }
+            } else if (value instanceof Set) {
+                final Set<String> values = (Set<String>) value;
+                int length = 0;
+                for (String item : values) {
+                    length += item.length();
+                }
+                if (compressed(key, length)) {
+                    final String string = deflate(encode(values), length);
+                    deflated = string != null ? Collections.singleton(string) : null;
+                }
+            }
+            if (deflated != null) {
+                if (written == changes) {
+                    written = new LinkedHashMap<>(changes);
+                }
+                written.put(key, deflated);
+            }
+        }
+        return store.write(clear, written, sync);
+    }
+
+    private static byte[] encode(final String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] encode(final Set<String> values) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            final DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(values.size());
+            for (String value : values) {
+                final byte[] utf8 = encode(value);
+                out.writeInt(utf8.length);
+                out.write(utf8);
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return the compressed value with the header, or null if it is not shorter than the original length
+     */
+    private static String deflate(final byte[] bytes, final int length) {
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2 + 16);
+            final byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            if (HEADER.length() + (out.size() + 2) / 3 * 4 >= length) {
+                return null;
+            }
+            return HEADER + ObjectCache.toBase64(out.toByteArray());
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decompress the saved value, or return the value decompressed before if the saved string is the same
+     *
+     * @throws RuntimeException if the value is corrupted
+     */
+    private Object inflate(final String key, final String compressed, final boolean set) {
+        final Inflated cached;
+        synchronized (inflated) {
+            cached = inflated.get(key);
+        }
+        if (cached != null && (cached.compressed == compressed || cached.compressed.equals(compressed))
+                && cached.value instanceof Set == set) {
+            return cached.value;
+        }
+        final Inflater inflater = new Inflater(true);
+        final Object value;
+        try {
+            inflater.setInput(ObjectCache.fromBase64(compressed.substring(HEADER.length())));
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length() * 2);
+            final byte[] buffer = new byte[4096];
+            while (!inflater.finished()) {
+                final int inflatedBytes = inflater.inflate(buffer);
+                if (inflatedBytes == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Truncated compressed value");
+                }
+                out.write(buffer, 0, inflatedBytes);
+            }
+            value = set ? decodeSet(out.toByteArray()) : out.toString("UTF-8");
+        } catch (DataFormatException | IOException | IllegalArgumentException e) {
+            throw new RuntimeException("Simple Prefs failed to decompress the value of " + key + ".", e);
+        } finally {
+            inflater.end();
+        }
+        synchronized (inflated) {
+            inflated.put(key, new Inflated(compressed, value));
+        }
+        return value;
+    }
+
+    private static Set<String> decodeSet(final byte[] bytes) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        final int size = in.readInt();
+        final Set<String> values = new HashSet<>(Math.max(16, size * 2));
+        for (int i = 0; i < size; i++) {
+            final byte[] utf8 = new byte[in.readInt()];
+            in.readFully(utf8);
+            values.add(new String(utf8, "UTF-8"));
+        }
+        return Collections.unmodifiableSet(values);
+    }
+}
@@ -0,0 +1,358 @@
+package com.wideinc.library.simpleprefs;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Storage engine which encrypts the values at rest and keeps them in another engine. Every value is saved as
+ * a string starting with {@link #HEADER} followed by the Base64 of its IV, its authentication tag and its
+ * AES-CTR ciphertext; the tag is an HMAC-SHA256 of the IV and the ciphertext. The key names are not encrypted.
+ * <p>
+ * A write encrypts all its values with one cipher initialization: the values are laid out on AES block
+ * boundaries in one buffer, encrypted in one pass, and each value keeps the counter block it starts at as its IV.
+ * A value is decrypted when it is first read, and the decrypted values are kept in a bounded cache while the saved
+ * string is the same. The {@link Cipher} and {@link Mac} instances are kept per thread, so they are created
+ * and keyed once per thread.
+ * <p>
+ * String values saved in the underlying engine without the header, before the encryption was enabled, are read
+ * as they are; values of other types must not be saved there.
+ */
+public class EncryptedPrefsStore extends AbstractPrefsStore implements VisitablePrefsStore {
+
+    /**
+     * Starts an encrypted value. The noncharacter U+FDD0 is never used in text, and is still valid in an XML file.
+     */
+    static final String HEADER = "\uFDD0E1";
+
+    private static final String TRANSFORMATION = "AES/CTR/NoPadding";
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int BLOCK_SIZE = 16;
+    private static final int TAG_SIZE = 16;
+    private static final int DEFAULT_CACHE_SIZE = 256;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Provides the secret key the values are encrypted with
+     */
+    public interface KeyProvider {
+
+        /**
+         * Called once, when the store is first used. The key must be the same on every launch and must be
+         * extractable, for example a key kept wrapped by a key of the Android Keystore and unwrapped here.
+         *
+         * @return the secret key, at least 128 bits long
+         * @throws GeneralSecurityException if the key is not available
+         */
+        SecretKey getKey() throws GeneralSecurityException;
+    }
+
+    private static final class Decrypted {
+        final String encrypted;
+        final Object value;
+
+        Decrypted(final String encrypted, final Object value) {
+            this.encrypted = encrypted;
+            this.value = value;
+        }
+    }
+
+    private final PrefsStore store;
+    private final KeyProvider keyProvider;
+    private final SecureRandom random = new SecureRandom();
+    // the last decrypted value of the recently used keys, used while the saved string is the same
+    private final Map<String, Decrypted> decrypted;
+    private volatile SecretKey cipherKey;
+    private volatile SecretKey macKey;
+
+    private final ThreadLocal<Cipher> ciphers = new ThreadLocal<Cipher>() {
+        @Override
+        protected Cipher initialValue() {
+            try {
+                return Cipher.getInstance(TRANSFORMATION);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Simple Prefs failed to create the cipher.", e);
+            }
+        }
+    };
+
+    private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() {
+            try {
+                final Mac mac = Mac.getInstance(MAC_ALGORITHM);
+                mac.init(macKey());
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Simple Prefs failed to create the MAC.", e);
+            }
+        }
+    };
+
+    /**
+     * @param store       the engine to keep the encrypted values in
+     * @param keyProvider provides the secret key
+     */
+    public EncryptedPrefsStore(final PrefsStore store, final KeyProvider keyProvider) {
+        this(store, keyProvider, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * @param store       the engine to keep the encrypted values in
+     * @param keyProvider provides the secret key
+     * @param cacheSize   number of decrypted values kept in memory
+     */
+    public EncryptedPrefsStore(final PrefsStore store, final KeyProvider keyProvider, final int cacheSize) {
+        this.store = store;
+        this.keyProvider = keyProvider;
+        this.decrypted = new LinkedHashMap<String, Decrypted>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Decrypted> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * @return the underlying store
+     */
+    PrefsStore getStore() {
+        return store;
+    }
+
+    /**
+     * Derive the cipher and MAC keys from the provided key, once
+     */
+    private synchronized void deriveKeys() throws GeneralSecurityException {
+        if (macKey != null) {
+            return;
+        }
+        final SecretKey key = keyProvider.getKey();
+        if (key == null || key.getEncoded() == null) {
+            throw new GeneralSecurityException("Simple Prefs needs an extractable secret key.");
+        }
+        final Mac mac = Mac.getInstance(MAC_ALGORITHM);
+        mac.init(new SecretKeySpec(key.getEncoded(), MAC_ALGORITHM));
+        cipherKey = new SecretKeySpec(mac.doFinal("SimplePrefs encryption".getBytes(UTF_8)), "AES");
+        macKey = new SecretKeySpec(mac.doFinal("SimplePrefs authentication".getBytes(UTF_8)), MAC_ALGORITHM);
+    }
+
+    private SecretKey cipherKey() throws GeneralSecurityException {
+        deriveKeys();
+        return cipherKey;
+    }
+
+    private SecretKey macKey() throws GeneralSecurityException {
+        deriveKeys();
+        return macKey;
+    }
+
+    @Override
+    protected Object get(final String key) {
+        final String saved = store.getString(key, null);
+        if (saved == null || !saved.startsWith(HEADER)) {
+            return saved;
+        }
+        return decrypt(key, saved);
+    }
+
+    @Override
+    public boolean contains(final String key) {
+        return store.contains(key);
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        final Map<String, ?> all = store.getAll();
+        final Map<String, Object> values = new HashMap<>(all.size());
+        for (Map.Entry<String, ?> entry : all.entrySet()) {
+            final Object value = entry.getValue();
+            values.put(entry.getKey(), value instanceof String && ((String) value).startsWith(HEADER)
+                    ? decrypt(entry.getKey(), (String) value) : value);
+        }
+        return values;
+    }
+
+    @Override
+    public void forEach(final String prefix, final PrefsVisitor visitor) {
+        PrefsVisitor.forEach(store, prefix, new PrefsVisitor() {
+            @Override
+            public void onInt(String key, int value) {
+                visitor.onInt(key, value);
+            }
+
+            @Override
+            public void onLong(String key, long value) {
+                visitor.onLong(key, value);
+            }
+
+            @Override
+            public void onFloat(String key, float value) {
+                visitor.onFloat(key, value);
+            }
+
+            @Override
+            public void onBoolean(String key, boolean value) {
+                visitor.onBoolean(key, value);
+            }
+
+            @Override
+            public void onString(String key, String value) {
+                visitor.visit(key, value.startsWith(HEADER) ? decrypt(key, value) : value);
+            }
+
+            @Override
+            public void onStringSet(String key, Set<String> values) {
+                visitor.onStringSet(key, values);
+            }
+        });
+    }
+
+    /**
+     * Encrypt all the values of the write in one pass and write them to the underlying store
+     *
+     * @throws IllegalStateException if the values can not be encrypted
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean write(final boolean clear, final Map<String, Object> changes, final boolean sync) {
+        final Map<String, Object> encrypted = new HashMap<>(changes.size());
+        final List<String> keys = new ArrayList<>(changes.size());
+        final List<Object> values = new ArrayList<>(changes.size());
+        final List<byte[]> plaintexts = new ArrayList<>(changes.size());
+        int length = 0;
+        for (Map.Entry<String, Object> entry : changes.entrySet()) {
+            Object value = entry.getValue();
+            if (value == null) {
+                encrypted.put(entry.getKey(), null);
+                continue;
+            }
+            if (value instanceof Set) {
+                value = Collections.unmodifiableSet(new HashSet<>((Set<String>) value));
+            }
+            final byte[] plaintext = LogPrefsStore.encode(entry.getKey(), value);
+            keys.add(entry.getKey());
+            values.add(value);
+            plaintexts.add(plaintext);
+            length += blocks(plaintext.length) * BLOCK_SIZE;
+        }
+        if (!plaintexts.isEmpty()) {
+            final byte[] iv = new byte[BLOCK_SIZE];
+            // the last 4 bytes count the blocks of the batch, so the IV of every value is derived without a carry
+            random.nextBytes(iv);
+            iv[12] = iv[13] = iv[14] = iv[15] = 0;
+            final byte[] buffer = new byte[length];
+            int offset = 0;
+            for (byte[] plaintext : plaintexts) {
+                System.arraycopy(plaintext, 0, buffer, offset, plaintext.length);
+                offset += blocks(plaintext.length) * BLOCK_SIZE;
+            }
+            final byte[] ciphertext;
+            try {
+                final Cipher cipher = ciphers.get();
+                cipher.init(Cipher.ENCRYPT_MODE, cipherKey(), new IvParameterSpec(iv));
+                ciphertext = cipher.doFinal(buffer);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Simple Prefs failed to encrypt the values.", e);
+            }
+            final Mac mac = macs.get();
+            offset = 0;
+            for (int i = 0; i < plaintexts.size(); i++) {
+                final int size = plaintexts.get(i).length;
+                final byte[] valueIv = iv.clone();
+                ByteBuffer.wrap(valueIv).putInt(12, offset / BLOCK_SIZE);
+                mac.update(valueIv);
+                mac.update(ciphertext, offset, size);
+                final byte[] tag = mac.doFinal();
+                final byte[] saved = ByteBuffer.allocate(BLOCK_SIZE + TAG_SIZE + size)
+                        .put(valueIv).put(tag, 0, TAG_SIZE).put(ciphertext, offset, size).array();
+                final String string = HEADER + ObjectCache.toBase64(saved);
+                encrypted.put(keys.get(i), string);
+                cache(keys.get(i), new Decrypted(string, values.get(i)));
+                offset += blocks(size) * BLOCK_SIZE;
+            }
+        }
+        if (clear) {
+            synchronized (decrypted) {
+                decrypted.clear();
+            }
+        }
+        return store.write(clear, encrypted, sync);
+    }
+
+    private static int blocks(final int length) {
+        return (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    }
+
+    private void cache(final String key, final Decrypted value) {
+        synchronized (decrypted) {
+            decrypted.put(key, value);
+        }
+    }
+
+    /**
+     * Decrypt the saved value, or return the value decrypted before if the saved string is the same
+     *
+     * @throws SecurityException if the value was not encrypted with the key of this store or was changed
+     */
+    private Object decrypt(final String key, final String encrypted) {
+        final Decrypted cached;
+        synchronized (decrypted) {
+            cached = decrypted.get(key);
+        }
+        if (cached != null && (cached.encrypted == encrypted || cached.encrypted.equals(encrypted))) {
+            return cached.value;
+        }
+        final byte[] saved;
+        try {
+            saved = ObjectCache.fromBase64(encrypted.substring(HEADER.length()));
+        } catch (IllegalArgumentException e) {
+            throw new SecurityException("Simple Prefs failed to decrypt the value of " + key + ".", e);
+        }
+        if (saved.length < BLOCK_SIZE + TAG_SIZE) {
+            throw new SecurityException("Simple Prefs failed to decrypt the value of " + key + ".");
+        }
+        final Mac mac = macs.get();
+        mac.update(saved, 0, BLOCK_SIZE);
+        mac.update(saved, BLOCK_SIZE + TAG_SIZE, saved.length - BLOCK_SIZE - TAG_SIZE);
+        final byte[] tag = mac.doFinal();
+        final byte[] expected = new byte[TAG_SIZE];
+        System.arraycopy(saved, BLOCK_SIZE, expected, 0, TAG_SIZE);
+        final byte[] actual = new byte[TAG_SIZE];
+        System.arraycopy(tag, 0, actual, 0, TAG_SIZE);
+        if (!MessageDigest.isEqual(expected, actual)) {
+            throw new SecurityException("Preference " + key + " failed the integrity check.");
+        }
+        final byte[] plaintext;
+        try {
+            final Cipher cipher = ciphers.get();
+            cipher.init(Cipher.DECRYPT_MODE, cipherKey(), new IvParameterSpec(saved, 0, BLOCK_SIZE));
+            plaintext = cipher.doFinal(saved, BLOCK_SIZE + TAG_SIZE, saved.length - BLOCK_SIZE - TAG_SIZE);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Simple Prefs failed to decrypt the value of " + key + ".", e);
+        }
+        final LogPrefsStore.Record record = LogPrefsStore.readRecord(ByteBuffer.wrap(plaintext));
+        // the key is encrypted with the value, so a value copied to another key is detected
+        if (record == null || record.value == null || !record.key.equals(key)) {
+            throw new SecurityException("Preference " + key + " failed the integrity check.");
+        }
+        cache(key, new Decrypted(encrypted, record.value));
+        return record.value;
+    }
+}
@@ -0,0 +1,397 @@
+package com.wideinc.library.simpleprefs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Expires the preferences saved with a time to live. The expiry time of such a key is saved next to its value,
+ * in a hidden key named after it with the {@link #EXPIRY_PREFIX}, and written in the same batch as the value.
+ * The reads of an expired key return the default value, as if it had been removed.
+ * <p>
+ * The expiry times are loaded into memory in background, once per launch and only if any key was ever saved
+ * with a time to live. A sweeper removes the expired keys in chunks of {@link #SWEEP_CHUNK} on the same
+ * background thread, in the order they expire, so it never scans the preferences.
+ */
+final class ExpiryStore implements VisitablePrefsStore {
+
+    static final String EXPIRY_PREFIX = "\uFDD0ttl:";
+    // saved with the first time to live, so that the expiry times are not looked for when there are none
+    static final String MARKER = "\uFDD0ttl";
+    static final int SWEEP_CHUNK = 64;
+    // the expired keys already read as removed, so the sweeper waits to remove the keys expiring together in one write
+    static final long SWEEP_DELAY_MS = 50;
+
+    /**
+     * A value saved with the time it expires, replaced by the value and its expiry key when it is written
+     */
+    static final class Expiring {
+        final Object value;
+        final long expiresAt;
+
+        Expiring(final Object value, final long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static final class Expiry implements Comparable<Expiry> {
+        final long time;
+        final String key;
+
+        Expiry(final long time, final String key) {
+            this.time = time;
+            this.key = key;
+        }
+
+        @Override
+        public int compareTo(final Expiry other) {
+            if (time != other.time) {
+                return time < other.time ? -1 : 1;
+            }
+            return key.compareTo(other.key);
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            return other instanceof Expiry && ((Expiry) other).time == time && ((Expiry) other).key.equals(key);
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode() * 31 + (int) (time ^ (time >>> 32));
+        }
+    }
+
+    private final PrefsStore store;
+    private final RemovalListener listener;
+    private final ConcurrentHashMap<String, Long> expiries = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListSet<Expiry> queue = new ConcurrentSkipListSet<>();
+    private final ScheduledThreadPoolExecutor executor;
+    // until the expiry times are loaded, the expiry of a key not written meanwhile is read from the store
+    private volatile boolean loaded;
+    private final Set<String> written = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    // guarded by this
+    private boolean marked;
+    private boolean clearedWhileLoading;
+    private long sweepAt = Long.MAX_VALUE;
+
+    private final Runnable loadTask = new Runnable() {
+        @Override
+        public void run() {
+            load();
+        }
+    };
+
+    private final Runnable sweepTask = new Runnable() {
+        @Override
+        public void run() {
+            sweep();
+        }
+    };
+
+    /**
+     * @param store    the underlying store
+     * @param listener receives the keys removed by the sweeper
+     */
+    ExpiryStore(final PrefsStore store, final RemovalListener listener) {
+        this.store = store;
+        this.listener = listener;
+        this.executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "SimplePrefs-Expiry");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // the thread is not kept while there is nothing to sweep
+        executor.setKeepAliveTime(1, TimeUnit.SECONDS);
+        executor.allowCoreThreadTimeOut(true);
+        executor.execute(loadTask);
+    }
+
+    /**
+     * Load the expiry times saved by the previous launches, runs on the executor thread.
+     * The keys written meanwhile already have their expiry in memory, the saved expiry
+     * of those written without a time to live is removed.
+     */
+    private void load() {
+        final Map<String, Long> saved = new HashMap<>();
+        final boolean marker = store.contains(MARKER);
+        if (marker) {
+            PrefsVisitor.forEach(store, EXPIRY_PREFIX, new PrefsVisitor() {
+                @Override
+                public void onLong(String key, long value) {
+                    saved.put(key.substring(EXPIRY_PREFIX.length()), value);
+                }
+            });
+        }
+        synchronized (this) {
+            marked |= marker && !clearedWhileLoading;
+            final Map<String, Object> stale = new HashMap<>();
+            for (Map.Entry<String, Long> entry : saved.entrySet()) {
+                if (clearedWhileLoading) {
+                    break;
+                }
+                if (!written.contains(entry.getKey())) {
+                    expire(entry.getKey(), entry.getValue());
+                } else if (!expiries.containsKey(entry.getKey())) {
+                    stale.put(EXPIRY_PREFIX + entry.getKey(), null);
+                }
+            }
+            if (!stale.isEmpty()) {
+                store.write(false, stale, false);
+            }
+            loaded = true;
+            written.clear();
+        }
+    }
+
+    /**
+     * Stop the sweeper, the expired keys left are removed in the next launch
+     */
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return whether the key has expired and must be read as if it did not exist
+     */
+    private boolean expired(final String key) {
+        final long expiresAt;
+        if (loaded) {
+            if (expiries.isEmpty()) {
+                return false;
+            }
+            final Long time = expiries.get(key);
+            if (time == null) {
+                return false;
+            }
+            expiresAt = time;
+        } else {
+            final Long time = expiries.get(key);
+            if (time != null) {
+                expiresAt = time;
+            } else if (written.contains(key)) {
+                return false;
+            } else {
+                expiresAt = store.getLong(EXPIRY_PREFIX + key, Long.MAX_VALUE);
+            }
+        }
+        return expiresAt <= System.currentTimeMillis();
+    }
+
+    private static boolean hidden(final String key) {
+        return key.startsWith(MARKER);
+    }
+
+    @Override
+    public int getInt(final String key, final int defValue) {
+        return expired(key) ? defValue : store.getInt(key, defValue);
+    }
+
+    @Override
+    public long getLong(final String key, final long defValue) {
+        return expired(key) ? defValue : store.getLong(key, defValue);
+    }
+
+    @Override
+    public float getFloat(final String key, final float defValue) {
+        return expired(key) ? defValue : store.getFloat(key, defValue);
+    }
+
+    @Override
+    public boolean getBoolean(final String key, final boolean defValue) {
+        return expired(key) ? defValue : store.getBoolean(key, defValue);
+    }
+
+    @Override
+    public String getString(final String key, final String defValue) {
+        return expired(key) ? defValue : store.getString(key, defValue);
+    }
+
+    @Override
+    public Set<String> getStringSet(final String key, final Set<String> defValues) {
+        return expired(key) ? defValues : store.getStringSet(key, defValues);
+    }
+
+    @Override
+    public boolean contains(final String key) {
+        return !expired(key) && store.contains(key);
+    }
+
+    /**
+     * @return the preferences without the expired keys and the hidden expiry keys
+     */
+    @Override
+    public Map<String, ?> getAll() {
+        final Map<String, ?> all = store.getAll();
+        if (loaded && !marked) {
+            return all;
+        }
+        final Map<String, Object> visible = new HashMap<>(all.size());
+        for (Map.Entry<String, ?> entry : all.entrySet()) {
+            if (!hidden(entry.getKey()) && !expired(entry.getKey())) {
+                visible.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return visible;
+    }
+
+    @Override
+    public void forEach(final String prefix, final PrefsVisitor visitor) {
+        if (loaded && !marked) {
+            PrefsVisitor.forEach(store, prefix, visitor);
+            return;
+        }
+        PrefsVisitor.forEach(store, prefix, new PrefsVisitor() {
+            @Override
+            public void onInt(String key, int value) {
+                if (!hidden(key) && !expired(key)) {
+                    visitor.onInt(key, value);
+                }
+            }
+
+            @Override
+            public void onLong(String key, long value) {
+                if (!hidden(key) && !expired(key)) {
+                    visitor.onLong(key, value);
+                }
+            }
+
+            @Override
+            public void onFloat(String key, float value) {
+                if (!hidden(key) && !expired(key)) {
+                    visitor.onFloat(key, value);
+                }
+            }
+
+            @Override
+            public void onBoolean(String key, boolean value) {
+                if (!hidden(key) && !expired(key)) {
+                    visitor.onBoolean(key, value);
+                }
+            }
+
+            @Override
+            public void onString(String key, String value) {
+                if (!hidden(key) && !expired(key)) {
+                    visitor.onString(key, value);
+                }
+            }
+
+            @Override
+            public void onStringSet(String key, Set<String> values) {
+                if (!hidden(key) && !expired(key)) {
+                    visitor.onStringSet(key, values);
+                }
+            }
+        });
+    }
+
+    /**
+     * Write the values with their expiry keys. A key written without a time to live loses its expiry,
+     * the expiry keys saved by the previous launches are removed once they are loaded.
+     */
+    @Override
+    public synchronized boolean write(final boolean clear, final Map<String, Object> changes, final boolean sync) {
+        if (clear) {
+            expiries.clear();
+            queue.clear();
+            marked = false;
+            clearedWhileLoading |= !loaded;
+        }
+        Map<String, Object> expanded = null;
+        for (Map.Entry<String, Object> entry : changes.entrySet()) {
+            final String key = entry.getKey();
+            final Object value = entry.getValue();
+            if (value instanceof Expiring) {
+                if (expanded == null) {
+                    expanded = new HashMap<>(changes);
+                }
+                final Expiring expiring = (Expiring) value;
+                expanded.put(key, expiring.value);
+                expanded.put(EXPIRY_PREFIX + key, expiring.expiresAt);
+                expire(key, expiring.expiresAt);
+                if (!marked) {
+                    expanded.put(MARKER, true);
+                    marked = true;
+                }
+            } else if (expiries.containsKey(key)) {
+                if (expanded == null) {
+                    expanded = new HashMap<>(changes);
+                }
+                expanded.put(EXPIRY_PREFIX + key, null);
+                final Long time = expiries.remove(key);
+                if (time != null) {
+                    queue.remove(new Expiry(time, key));
+                }
+            }
+            if (!loaded) {
+                written.add(key);
+            }
+        }
+        return store.write(clear, expanded != null ? expanded : changes, sync);
+    }
+
+    /**
+     * Set the expiry time of the key and schedule the sweeper if it expires first, holding the lock of this store
+     */
+    private void expire(final String key, final long expiresAt) {
+        final Long previous = expiries.put(key, expiresAt);
+        if (previous != null) {
+            queue.remove(new Expiry(previous, key));
+        }
+        queue.add(new Expiry(expiresAt, key));
+        if (expiresAt < sweepAt) {
+            schedule(expiresAt);
+        }
+    }
+
+    private void schedule(final long time) {
+        sweepAt = time;
+        if (!executor.isShutdown()) {
+            final long delay = time - System.currentTimeMillis();
+            executor.schedule(sweepTask, delay > 0 ? delay + SWEEP_DELAY_MS : 0, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Remove one chunk of the expired keys and schedule the next sweep, runs on the executor thread
+     */
+    private synchronized void sweep() {
+        final long now = System.currentTimeMillis();
+        final List<String> keys = new ArrayList<>(SWEEP_CHUNK);
+        while (keys.size() < SWEEP_CHUNK && !queue.isEmpty() && queue.first().time <= now) {
+            final Expiry expiry = queue.pollFirst();
+            if (expiries.remove(expiry.key, expiry.time)) {
+                keys.add(expiry.key);
+            }
+        }
+        if (!keys.isEmpty()) {
+            final Map<String, Object> removals = new HashMap<>(keys.size() * 2);
+            final Map<String, Object> removed = new HashMap<>(keys.size());
+            for (String key : keys) {
+                removals.put(key, null);
+                removals.put(EXPIRY_PREFIX + key, null);
+                removed.put(key, null);
+            }
+            store.write(false, removals, false);
+            listener.removed(removed);
+        }
+        sweepAt = Long.MAX_VALUE;
+        if (!queue.isEmpty()) {
+            // the next chunk is swept right away, after the writers waiting for this store
+            schedule(queue.first().time);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.wideinc.library.simpleprefs;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the preferences in memory only. It is useful for the tests running on the JVM,
+ * and for the preferences that should not survive the process.
+ */
+public class InMemoryPrefsStore extends AbstractPrefsStore implements VisitablePrefsStore {
+
+    private final ConcurrentHashMap<String, Object> values = new ConcurrentHashMap<>();
+
+    @Override
+    protected Object get(final String key) {
+        return values.get(key);
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        return new HashMap<>(values);
+    }
+
+    @Override
+    public void forEach(final String prefix, final PrefsVisitor visitor) {
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            if (PrefsVisitor.matches(prefix, entry.getKey())) {
+                visitor.visit(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized boolean write(final boolean clear, final Map<String, Object> changes, final boolean sync) {
+        if (clear) {
+            values.clear();
+        }
+        for (Map.Entry<String, Object> entry : changes.entrySet()) {
+            final Object value = entry.getValue();
+            if (value == null) {
+                values.remove(entry.getKey());
+            } else if (value instanceof Set) {
+                values.put(entry.getKey(), Collections.unmodifiableSet(new HashSet<>((Set<String>) value)));
+            } else {
+                values.put(entry.getKey(), value);
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,467 @@
+package com.wideinc.library.simpleprefs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+/**
+ * Storage engine which keeps the preferences in a typed binary append-only log.
+ * Every put or remove appends one small record instead of rewriting the whole file,
+ * and the log is compacted in background once its garbage passes the threshold.
+ * <p>
+ * Each record is {@code [payload length][CRC32 of payload][payload]}, so a torn record at the tail
+ * of the log, left by a crash in the middle of a write, is detected and truncated on load.
+ * The values are held in memory, so the reads never touch the disk. The records are appended on a background
+ * thread in the order of the writes; the failure of an append which was not waited for is reported by the next
+ * sync write.
+ */
+public class LogPrefsStore extends AbstractPrefsStore implements VisitablePrefsStore, Closeable {
+
+    static final int MAGIC = 0x53504c47; // "SPLG"
+    static final int HEADER_SIZE = 4;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int DEFAULT_COMPACT_THRESHOLD = 64 * 1024;
+
+    private static final byte TYPE_REMOVE = 0;
+    private static final byte TYPE_INT = 1;
+    private static final byte TYPE_LONG = 2;
+    private static final byte TYPE_FLOAT = 3;
+    private static final byte TYPE_BOOLEAN = 4;
+    private static final byte TYPE_STRING = 5;
+    private static final byte TYPE_STRING_SET = 6;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private final int compactThreshold;
+    private final ConcurrentHashMap<String, Object> values = new ConcurrentHashMap<>();
+    private final ExecutorService executor;
+    // set when an append which was not waited for fails, reported by the next sync write
+    private final AtomicBoolean appendFailed = new AtomicBoolean();
+
+    // accessed on the executor thread only, once loaded
+    private final Map<String, Integer> recordSizes = new HashMap<>();
+    private RandomAccessFile log;
+    private long liveBytes;
+    private long fileLength;
+
+    /**
+     * Open the log, loading all its records
+     *
+     * @param file file of the log, it is created if it does not exist
+     * @throws IOException if the log can not be read or created
+     */
+    public LogPrefsStore(final File file) throws IOException {
+        this(file, DEFAULT_COMPACT_THRESHOLD);
+    }
+
+    /**
+     * Open the log, loading all its records
+     *
+     * @param file             file of the log, it is created if it does not exist
+     * @param compactThreshold the log is compacted when its garbage is larger than this many bytes
+     *                         and larger than the live records
+     * @throws IOException if the log can not be read or created
+     */
+    public LogPrefsStore(final File file, final int compactThreshold) throws IOException {
+        this.file = file;
+        this.compactThreshold = compactThreshold;
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "SimplePrefs-Log");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        load();
+    }
+
+    @Override
+    protected Object get(final String key) {
+        return values.get(key);
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        return new HashMap<>(values);
+    }
+
+    @Override
+    public void forEach(final String prefix, final PrefsVisitor visitor) {
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            if (PrefsVisitor.matches(prefix, entry.getKey())) {
+                visitor.visit(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Update the values and queue the append of the records, in the same order as the values are updated
+     *
+     * @param sync wait for the append
+     * @return {@code true} if the changes were queued, or with sync, if they and all the appends queued
+     * before them were written successfully
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean write(final boolean clear, final Map<String, Object> changes, final boolean sync) {
+        final Map<String, byte[]> records = new HashMap<>(changes.size());
+        final Callable<Boolean> append = new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws IOException {
+                try {
+                    append(clear, records, sync);
+                } catch (IOException e) {
+                    if (!sync) {
+                        appendFailed.set(true);
+                    }
+                    throw e;
+                }
+                return true;
+            }
+        };
+        final Future<Boolean> appended;
+        synchronized (this) {
+            if (clear) {
+                values.clear();
+            }
+            for (Map.Entry<String, Object> entry : changes.entrySet()) {
+                Object value = entry.getValue();
+                if (value instanceof Set) {
+                    value = Collections.unmodifiableSet(new HashSet<>((Set<String>) value));
+                }
+                records.put(entry.getKey(), encode(entry.getKey(), value));
+                if (value == null) {
+                    values.remove(entry.getKey());
+                } else {
+                    values.put(entry.getKey(), value);
+                }
+            }
+            appended = executor.submit(append);
+        }
+        if (!sync) {
+            return true;
+        }
+        try {
+            final boolean written = appended.get();
+            return !appendFailed.getAndSet(false) && written;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            appendFailed.set(false);
+            return false;
+        }
+    }
+
+    /**
+     * Wait for all the queued appends and close the log
+     */
+    @Override
+    public void close() throws IOException {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.close();
+    }
+
+    /**
+     * @return current length of the log file in bytes
+     */
+    long length() throws IOException {
+        try {
+            return executor.submit(new Callable<Long>() {
+                @Override
+                public Long call() {
+                    return fileLength;
+                }
+            }).get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private void load() throws IOException {
+        final byte[] content = readFully(file);
+        final ByteBuffer buffer = ByteBuffer.wrap(content);
+        long valid = 0;
+        if (content.length >= HEADER_SIZE) {
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not a SimplePrefs log: " + file);
+            }
+            valid = HEADER_SIZE;
+            Record record;
+            while ((record = readRecord(buffer)) != null) {
+                final int size = (int) (buffer.position() - valid);
+                valid = buffer.position();
+                final Integer previous = recordSizes.remove(record.key);
+                liveBytes -= previous != null ? previous : 0;
+                if (record.value == null) {
+                    values.remove(record.key);
+                } else {
+                    values.put(record.key, record.value);
+                    recordSizes.put(record.key, size);
+                    liveBytes += size;
+                }
+            }
+        }
+        log = new RandomAccessFile(file, "rw");
+        if (valid == 0) {
+            log.setLength(0);
+            log.writeInt(MAGIC);
+            valid = HEADER_SIZE;
+        } else if (valid < content.length) {
+            // torn tail record, left by a crash in the middle of an append
+            log.setLength(valid);
+        }
+        fileLength = valid;
+    }
+
+    static final class Record {
+        final String key;
+        final Object value;
+
+        Record(final String key, final Object value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Read one record at the buffer position
+     *
+     * @return the record, or null at the end of the log or if the record is torn or corrupt
+     */
+    static Record readRecord(final ByteBuffer buffer) {
+        try {
+            if (buffer.remaining() == 0) {
+                return null;
+            }
+            final int length = buffer.getInt();
+            final int crc = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                return null;
+            }
+            final CRC32 checksum = new CRC32();
+            checksum.update(buffer.array(), buffer.position(), length);
+            if ((int) checksum.getValue() != crc) {
+                return null;
+            }
+            final byte type = buffer.get();
+            final String key = readString(buffer);
+            switch (type) {
+                case TYPE_REMOVE:
+                    return new Record(key, null);
+                case TYPE_INT:
+                    return new Record(key, buffer.getInt());
+                case TYPE_LONG:
+                    return new Record(key, buffer.getLong());
+                case TYPE_FLOAT:
+                    return new Record(key, buffer.getFloat());
+                case TYPE_BOOLEAN:
+                    return new Record(key, buffer.get() != 0);
+                case TYPE_STRING:
+                    return new Record(key, readString(buffer));
+                case TYPE_STRING_SET:
+                    final int size = buffer.getInt();
+                    final Set<String> set = new HashSet<>();
+                    for (int i = 0; i < size; i++) {
+                        set.add(readString(buffer));
+                    }
+                    return new Record(key, Collections.unmodifiableSet(set));
+                default:
+                    return null;
+            }
+        } catch (BufferUnderflowException e) {
+            return null;
+        }
+    }
+
+    private static String readString(final ByteBuffer buffer) {
+        final int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        final String value = new String(buffer.array(), buffer.position(), length, UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    /**
+     * Encode one record, null value encodes a removal
+     */
+    @SuppressWarnings("unchecked")
+    static byte[] encode(final String key, final Object value) {
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+            final DataOutputStream payload = new DataOutputStream(bytes);
+            if (value == null) {
+                payload.writeByte(TYPE_REMOVE);
+                writeString(payload, key);
+            } else if (value instanceof Integer) {
+                payload.writeByte(TYPE_INT);
+                writeString(payload, key);
+                payload.writeInt((Integer) value);
+            } else if (value instanceof Long) {
+                payload.writeByte(TYPE_LONG);
+                writeString(payload, key);
+                payload.writeLong((Long) value);
+            } else if (value instanceof Float) {
+                payload.writeByte(TYPE_FLOAT);
+                writeString(payload, key);
+                payload.writeFloat((Float) value);
+            } else if (value instanceof Boolean) {
+                payload.writeByte(TYPE_BOOLEAN);
+                writeString(payload, key);
+                payload.writeBoolean((Boolean) value);
+            } else if (value instanceof String) {
+                payload.writeByte(TYPE_STRING);
+                writeString(payload, key);
+                writeString(payload, (String) value);
+            } else if (value instanceof Set) {
+                payload.writeByte(TYPE_STRING_SET);
+                writeString(payload, key);
+                final Set<String> set = (Set<String>) value;
+                payload.writeInt(set.size());
+                for (String item : set) {
+                    writeString(payload, item);
+                }
+            } else {
+                throw new IllegalArgumentException("Unsupported preference type " + value.getClass().getName() + " for key " + key);
+            }
+            final byte[] body = bytes.toByteArray();
+            final CRC32 checksum = new CRC32();
+            checksum.update(body, 0, body.length);
+            final ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + body.length);
+            record.putInt(body.length).putInt((int) checksum.getValue()).put(body);
+            return record.array();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void writeString(final DataOutputStream out, final String value) throws IOException {
+        final byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Append the records to the log, runs on the executor thread
+     */
+    private void append(final boolean clear, final Map<String, byte[]> records, final boolean sync) throws IOException {
+        if (clear) {
+            log.setLength(HEADER_SIZE);
+            fileLength = HEADER_SIZE;
+            recordSizes.clear();
+            liveBytes = 0;
+        }
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (Map.Entry<String, byte[]> entry : records.entrySet()) {
+            final byte[] record = entry.getValue();
+            bytes.write(record, 0, record.length);
+            final Integer previous = recordSizes.remove(entry.getKey());
+            liveBytes -= previous != null ? previous : 0;
+            if (record[RECORD_HEADER_SIZE] != TYPE_REMOVE) {
+                recordSizes.put(entry.getKey(), record.length);
+                liveBytes += record.length;
+            }
+        }
+        log.seek(fileLength);
+        log.write(bytes.toByteArray());
+        fileLength += bytes.size();
+        if (sync) {
+            log.getFD().sync();
+        }
+        final long garbage = fileLength - HEADER_SIZE - liveBytes;
+        if (garbage > compactThreshold && garbage > liveBytes) {
+            compact();
+        }
+    }
+
+    /**
+     * Rewrite the log with the live records only, runs on the executor thread.
+     * The compacted log is written next to the log and renamed over it,
+     * so a crash during compaction leaves the old log intact.
+     */
+    private void compact() throws IOException {
+        final Map<String, Object> snapshot;
+        synchronized (this) {
+            snapshot = new HashMap<String, Object>(values);
+        }
+        final File compacted = new File(file.getPath() + ".compact");
+        final RandomAccessFile out = new RandomAccessFile(compacted, "rw");
+        final Map<String, Integer> sizes = new HashMap<>(snapshot.size());
+        long live = 0;
+        try {
+            out.setLength(0);
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream data = new DataOutputStream(bytes);
+            data.writeInt(MAGIC);
+            for (Map.Entry<String, Object> entry : snapshot.entrySet()) {
+                final byte[] record = encode(entry.getKey(), entry.getValue());
+                data.write(record);
+                sizes.put(entry.getKey(), record.length);
+                live += record.length;
+            }
+            out.write(bytes.toByteArray());
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        log.close();
+        if (!compacted.renameTo(file)) {
+            log = new RandomAccessFile(file, "rw");
+            throw new IOException("Can not replace " + file + " with the compacted log");
+        }
+        log = new RandomAccessFile(file, "rw");
+        fileLength = log.length();
+        recordSizes.clear();
+        recordSizes.putAll(sizes);
+        liveBytes = live;
+    }
+
+    private static byte[] readFully(final File file) throws IOException {
+        if (!file.exists()) {
+            return new byte[0];
+        }
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+            final byte[] chunk = new byte[8192];
+            int read;
+            while ((read = in.read(chunk)) != -1) {
+                out.write(chunk, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
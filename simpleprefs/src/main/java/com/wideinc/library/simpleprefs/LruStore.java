@@ -0,0 +1,280 @@
+package com.wideinc.library.simpleprefs;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Bounds a store used as a cache by the number of keys or the size of the values. The keys are tracked in
+ * an access-ordered map, so a read or a write moves the key to the recent end in constant time. When a write
+ * passes a limit, the least recently used keys are evicted by adding their removal to the same write,
+ * so the eviction costs no extra write of the file; with write-behind mode it is part of the next flush.
+ * <p>
+ * The keys saved by the previous launches are loaded on a background thread, as the least recently used.
+ * Nothing is evicted until they are loaded. The keys written in the current write are never evicted by it,
+ * so a single batch larger than the limits is kept until the next writes.
+ * <p>
+ * It is placed above the {@link ExpiryStore}, so that an evicted key loses its expiry time with its value.
+ * The keys removed by the expiry sweeper are dropped from the tracked keys when they would be evicted.
+ */
+final class LruStore implements VisitablePrefsStore {
+
+    private final PrefsStore store;
+    private final int maxEntries;
+    private final long maxBytes;
+    private final RemovalListener listener;
+    // key to the size of the key and its value, in access order
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // guarded by entries
+    private long bytes;
+    private boolean loaded;
+    private boolean clearedWhileLoading;
+    private final Set<String> written = new HashSet<>();
+
+    /**
+     * @param store      the underlying store
+     * @param maxEntries number of keys to keep, 0 for no limit
+     * @param maxBytes   size of the keys and values to keep, 0 for no limit
+     * @param listener   receives the evicted keys
+     */
+    LruStore(final PrefsStore store, final int maxEntries, final long maxBytes, final RemovalListener listener) {
+        this.store = store;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.listener = listener;
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        }, "SimplePrefs-Cache");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Load the saved keys as the least recently used and evict the keys over the limits, runs on its own thread
+     */
+    private void load() {
+        final Map<String, Long> saved = new LinkedHashMap<>();
+        PrefsVisitor.forEach(store, null, new PrefsVisitor() {
+            @Override
+            public void onInt(String key, int value) {
+                add(key, value);
+            }
+
+            @Override
+            public void onLong(String key, long value) {
+                add(key, value);
+            }
+
+            @Override
+            public void onFloat(String key, float value) {
+                add(key, value);
+            }
+
+            @Override
+            public void onBoolean(String key, boolean value) {
+                add(key, value);
+            }
+
+            @Override
+            public void onString(String key, String value) {
+                add(key, value);
+            }
+
+            @Override
+            public void onStringSet(String key, Set<String> values) {
+                add(key, values);
+            }
+
+            private void add(final String key, final Object value) {
+                saved.put(key, sizeOf(key, value));
+            }
+        });
+        synchronized (this) {
+            final Map<String, Object> evicted;
+            synchronized (entries) {
+                if (!clearedWhileLoading) {
+                    final Map<String, Long> recent = new LinkedHashMap<>(entries);
+                    entries.clear();
+                    bytes = 0;
+                    for (Map.Entry<String, Long> entry : saved.entrySet()) {
+                        if (!written.contains(entry.getKey()) && !recent.containsKey(entry.getKey())) {
+                            track(entry.getKey(), entry.getValue());
+                        }
+                    }
+                    for (Map.Entry<String, Long> entry : recent.entrySet()) {
+                        track(entry.getKey(), entry.getValue());
+                    }
+                }
+                written.clear();
+                evicted = evict(null);
+            }
+            if (evicted != null) {
+                store.write(false, evicted, false);
+                listener.removed(evicted);
+            }
+            // the writes wait for this store, so none of them is missed before the limits are applied
+            synchronized (entries) {
+                loaded = true;
+            }
+        }
+    }
+
+    /**
+     * @return whether the saved keys are loaded and the keys over the limits evicted
+     */
+    boolean isLoaded() {
+        synchronized (entries) {
+            return loaded;
+        }
+    }
+
+    private static long sizeOf(final String key, final Object value) {
+        final Object saved = value instanceof ExpiryStore.Expiring ? ((ExpiryStore.Expiring) value).value : value;
+        return PrefsMetrics.sizeOf(key) + PrefsMetrics.sizeOf(saved);
+    }
+
+    /**
+     * Add the key at the recent end, holding the lock of the entries
+     */
+    private void track(final String key, final long size) {
+        final Long previous = entries.put(key, size);
+        bytes += size - (previous != null ? previous : 0);
+    }
+
+    /**
+     * Remove the least recently used keys until the limits are met, holding the lock of the entries
+     *
+     * @param changes keys of the current write, which are not evicted
+     * @return the evicted keys with null values, or null if none
+     */
+    private Map<String, Object> evict(final Map<String, Object> changes) {
+        Map<String, Object> evicted = null;
+        final Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while ((maxEntries > 0 && entries.size() > maxEntries || maxBytes > 0 && bytes > maxBytes) && iterator.hasNext()) {
+            final Map.Entry<String, Long> entry = iterator.next();
+            if (changes != null && changes.containsKey(entry.getKey())) {
+                // the rest of the keys were used more recently
+                break;
+            }
+            iterator.remove();
+            bytes -= entry.getValue();
+            if (!store.contains(entry.getKey())) {
+                // expired and removed by the sweeper already
+                continue;
+            }
+            if (evicted == null) {
+                evicted = new HashMap<>();
+            }
+            evicted.put(entry.getKey(), null);
+        }
+        return evicted;
+    }
+
+    /**
+     * Move the key to the recent end, also called for the reads served above this store
+     */
+    void touch(final String key) {
+        synchronized (entries) {
+            entries.get(key);
+        }
+    }
+
+    @Override
+    public int getInt(final String key, final int defValue) {
+        final int value = store.getInt(key, defValue);
+        touch(key);
+        return value;
+    }
+
+    @Override
+    public long getLong(final String key, final long defValue) {
+        final long value = store.getLong(key, defValue);
+        touch(key);
+        return value;
+    }
+
+    @Override
+    public float getFloat(final String key, final float defValue) {
+        final float value = store.getFloat(key, defValue);
+        touch(key);
+        return value;
+    }
+
+    @Override
+    public boolean getBoolean(final String key, final boolean defValue) {
+        final boolean value = store.getBoolean(key, defValue);
+        touch(key);
+        return value;
+    }
+
+    @Override
+    public String getString(final String key, final String defValue) {
+        final String value = store.getString(key, defValue);
+        touch(key);
+        return value;
+    }
+
+    @Override
+    public Set<String> getStringSet(final String key, final Set<String> defValues) {
+        final Set<String> value = store.getStringSet(key, defValues);
+        touch(key);
+        return value;
+    }
+
+    @Override
+    public boolean contains(final String key) {
+        return store.contains(key);
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        return store.getAll();
+    }
+
+    @Override
+    public void forEach(final String prefix, final PrefsVisitor visitor) {
+        PrefsVisitor.forEach(store, prefix, visitor);
+    }
+
+    /**
+     * Write the changes together with the removal of the keys they push over the limits
+     */
+    @Override
+    public synchronized boolean write(final boolean clear, final Map<String, Object> changes, final boolean sync) {
+        final Map<String, Object> evicted;
+        synchronized (entries) {
+            if (clear) {
+                entries.clear();
+                bytes = 0;
+                clearedWhileLoading |= !loaded;
+            }
+            for (Map.Entry<String, Object> entry : changes.entrySet()) {
+                final String key = entry.getKey();
+                if (entry.getValue() != null) {
+                    track(key, sizeOf(key, entry.getValue()));
+                } else {
+                    final Long previous = entries.remove(key);
+                    bytes -= previous != null ? previous : 0;
+                }
+                if (!loaded) {
+                    written.add(key);
+                }
+            }
+            evicted = loaded ? evict(changes) : null;
+        }
+        if (evicted == null) {
+            return store.write(clear, changes, sync);
+        }
+        final Map<String, Object> expanded = new HashMap<>(changes);
+        expanded.putAll(evicted);
+        final boolean result = store.write(clear, expanded, sync);
+        listener.removed(evicted);
+        return result;
+    }
+}
@@ -0,0 +1,705 @@
+package com.wideinc.library.simpleprefs;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Storage engine which keeps the preferences in a memory-mapped file with an on-disk hash index.
+ * Opening the store maps the file without parsing it, so it takes the same time whatever the size of the file is,
+ * and the primitive getters read the values straight out of the mapped buffer without boxing.
+ * <p>
+ * The file starts with a header and an open-addressing table of {@code [key hash][entry offset]} slots,
+ * followed by the entries {@code [type][key length][key chars][value]}. Primitive values take 8 bytes
+ * and are overwritten in place, strings and string sets are appended and the old entry becomes garbage,
+ * which is dropped when the file is rebuilt to grow. A removed key keeps its slot and entry as a tombstone.
+ * <p>
+ * The mapped pages reach the disk in any order, so after a power loss the file may be torn: a slot may point
+ * to an entry which was never written back. The header holds a clean mark, which is cleared and synced to disk
+ * before the first change after a synced write, and set again by the next synced write and by {@link #close()}.
+ * A file opened without the mark is rebuilt from the entries which are whole, so the changes not synced before
+ * the crash may be lost, and a primitive value overwritten in place may keep its old bytes or be torn
+ * between the old and the new ones.
+ * <p>
+ * Only one instance may map a file at a time, another one fails to open until the first is closed.
+ */
+public class MappedPrefsStore implements VisitablePrefsStore, Closeable {
+
+    static final int MAGIC = 0x53504d50; // "SPMP"
+
+    private static final int HEADER_SIZE = 32;
+    private static final int SLOTS_OFFSET = 4;
+    private static final int COUNT_OFFSET = 8;
+    private static final int USED_OFFSET = 12;
+    private static final int DATA_END_OFFSET = 16;
+    private static final int STATE_OFFSET = 20;
+    private static final int CLEAN = 0x434c4e44; // "CLND"
+    private static final int DIRTY = 0;
+    private static final int SLOT_SIZE = 8;
+    private static final int PRIMITIVE_SIZE = 8;
+
+    private static final int MIN_SLOTS = 64;
+    private static final int MIN_DATA_SIZE = 16 * 1024;
+
+    /**
+     * Flag of the type of a removed entry, the entry stays as a tombstone of its slot
+     */
+    private static final byte REMOVED = (byte) 0x80;
+    private static final byte TYPE_INT = 1;
+    private static final byte TYPE_LONG = 2;
+    private static final byte TYPE_FLOAT = 3;
+    private static final byte TYPE_BOOLEAN = 4;
+    private static final byte TYPE_STRING = 5;
+    private static final byte TYPE_STRING_SET = 6;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // canonical paths of the mapped files, two instances writing one file would overwrite each other's entries
+    private static final ConcurrentHashMap<String, MappedPrefsStore> openFiles = new ConcurrentHashMap<>();
+
+    private final File file;
+    private final String path;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private RandomAccessFile raf;
+    private MappedByteBuffer buffer;
+    private int slotCount;
+    // guarded by the write lock, whether the clean mark is cleared on disk
+    private boolean dirty;
+
+    /**
+     * Map the file, it is created if it does not exist. A file which was not closed cleanly is rebuilt
+     * from its whole entries first.
+     *
+     * @param file file of the store
+     * @throws IOException           if the file can not be mapped or is not a store file
+     * @throws IllegalStateException if another instance has mapped the file and is not closed
+     */
+    public MappedPrefsStore(final File file) throws IOException {
+        this.file = file;
+        this.path = file.getCanonicalPath();
+        if (openFiles.putIfAbsent(path, this) != null) {
+            throw new IllegalStateException("Simple Prefs already mapped " + file + ", close it before opening it again.");
+        }
+        try {
+            if (!file.exists() || file.length() < HEADER_SIZE) {
+                create(file, MIN_SLOTS, MIN_DATA_SIZE, Collections.<String, Object>emptyMap());
+            }
+            map();
+            if (buffer.getInt(STATE_OFFSET) != CLEAN) {
+                recover();
+            }
+        } catch (IOException | RuntimeException e) {
+            if (raf != null) {
+                raf.close();
+            }
+            openFiles.remove(path, this);
+            throw e;
+        }
+    }
+
+    private void map() throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        if (buffer.getInt(0) != MAGIC) {
+            raf.close();
+            throw new IOException("Not a SimplePrefs mapped store: " + file);
+        }
+        slotCount = buffer.getInt(SLOTS_OFFSET);
+    }
+
+    /**
+     * Write a new store file with the given values, through a temporary file renamed over the target
+     */
+    private static void create(final File file, final int slots, final int dataSize, final Map<String, Object> values) throws IOException {
+        final File tmp = new File(file.getPath() + ".tmp");
+        final RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+        try {
+            final int dataStart = HEADER_SIZE + slots * SLOT_SIZE;
+            out.setLength(0);
+            out.setLength(dataStart + dataSize);
+            final MappedByteBuffer target = out.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, dataStart + dataSize);
+            target.putInt(0, MAGIC);
+            target.putInt(SLOTS_OFFSET, slots);
+            target.putInt(DATA_END_OFFSET, dataStart);
+            for (Map.Entry<String, Object> entry : values.entrySet()) {
+                insert(target, slots, entry.getKey(), entry.getValue());
+            }
+            // whole once renamed, the rename comes after the sync
+            target.putInt(STATE_OFFSET, CLEAN);
+            target.force();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Can not replace " + file);
+        }
+    }
+
+    private static int mix(final int hash) {
+        final int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Find the slot of the key, including a removed one
+     *
+     * @return slot index, or {@code -(empty slot index) - 1} if the key is not in the table
+     */
+    private static int find(final MappedByteBuffer buffer, final int slots, final String key) {
+        final int hash = key.hashCode();
+        int index = mix(hash) & (slots - 1);
+        while (true) {
+            final int slot = HEADER_SIZE + index * SLOT_SIZE;
+            final int offset = buffer.getInt(slot + 4);
+            if (offset == 0) {
+                return -index - 1;
+            }
+            if (buffer.getInt(slot) == hash && keyEquals(buffer, offset, key)) {
+                return index;
+            }
+            index = (index + 1) & (slots - 1);
+        }
+    }
+
+    private static boolean keyEquals(final MappedByteBuffer buffer, final int offset, final String key) {
+        final int length = buffer.getInt(offset + 1);
+        if (length != key.length()) {
+            return false;
+        }
+        final int chars = offset + 5;
+        for (int i = 0; i < length; i++) {
+            if (buffer.getChar(chars + 2 * i) != key.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int valueOffset(final int offset, final String key) {
+        return offset + 5 + 2 * key.length();
+    }
+
+    /**
+     * @return offset of the live entry of the key or -1 if the key does not exist
+     */
+    private int entry(final String key) {
+        final int index = find(buffer, slotCount, key);
+        if (index < 0) {
+            return -1;
+        }
+        final int offset = buffer.getInt(HEADER_SIZE + index * SLOT_SIZE + 4);
+        return (buffer.get(offset) & REMOVED) != 0 ? -1 : offset;
+    }
+
+    private int valueOffset(final String key, final byte type, final String typeName) {
+        final int offset = entry(key);
+        if (offset < 0) {
+            return -1;
+        }
+        if (buffer.get(offset) != type) {
+            throw new ClassCastException("Preference " + key + " is not " + typeName);
+        }
+        return valueOffset(offset, key);
+    }
+
+    @Override
+    public int getInt(final String key, final int defValue) {
+        lock.readLock().lock();
+        try {
+            final int value = valueOffset(key, TYPE_INT, "int");
+            return value < 0 ? defValue : buffer.getInt(value);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long getLong(final String key, final long defValue) {
+        lock.readLock().lock();
+        try {
+            final int value = valueOffset(key, TYPE_LONG, "long");
+            return value < 0 ? defValue : buffer.getLong(value);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public float getFloat(final String key, final float defValue) {
+        lock.readLock().lock();
+        try {
+            final int value = valueOffset(key, TYPE_FLOAT, "float");
+            return value < 0 ? defValue : buffer.getFloat(value);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean getBoolean(final String key, final boolean defValue) {
+        lock.readLock().lock();
+        try {
+            final int value = valueOffset(key, TYPE_BOOLEAN, "boolean");
+            return value < 0 ? defValue : buffer.get(value) != 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public String getString(final String key, final String defValue) {
+        lock.readLock().lock();
+        try {
+            final int value = valueOffset(key, TYPE_STRING, "String");
+            return value < 0 ? defValue : readString(buffer, value);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Set<String> getStringSet(final String key, final Set<String> defValues) {
+        lock.readLock().lock();
+        try {
+            final int value = valueOffset(key, TYPE_STRING_SET, "Set");
+            return value < 0 ? defValues : readStringSet(buffer, value);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean contains(final String key) {
+        lock.readLock().lock();
+        try {
+            return entry(key) >= 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        lock.readLock().lock();
+        try {
+            return readAll(buffer, slotCount);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Walk the entries in the mapped file, the keys not matching the prefix are skipped without reading them
+     * and the primitive values are passed without boxing
+     */
+    @Override
+    public void forEach(final String prefix, final PrefsVisitor visitor) {
+        lock.readLock().lock();
+        try {
+            for (int index = 0; index < slotCount; index++) {
+                final int offset = buffer.getInt(HEADER_SIZE + index * SLOT_SIZE + 4);
+                if (offset == 0 || (buffer.get(offset) & REMOVED) != 0 || !startsWith(buffer, offset, prefix)) {
+                    continue;
+                }
+                final int length = buffer.getInt(offset + 1);
+                final char[] chars = new char[length];
+                for (int i = 0; i < length; i++) {
+                    chars[i] = buffer.getChar(offset + 5 + 2 * i);
+                }
+                final String key = new String(chars);
+                final int value = valueOffset(offset, key);
+                switch (buffer.get(offset)) {
+                    case TYPE_INT:
+                        visitor.onInt(key, buffer.getInt(value));
+                        break;
+                    case TYPE_LONG:
+                        visitor.onLong(key, buffer.getLong(value));
+                        break;
+                    case TYPE_FLOAT:
+                        visitor.onFloat(key, buffer.getFloat(value));
+                        break;
+                    case TYPE_BOOLEAN:
+                        visitor.onBoolean(key, buffer.get(value) != 0);
+                        break;
+                    case TYPE_STRING:
+                        visitor.onString(key, readString(buffer, value));
+                        break;
+                    default:
+                        visitor.onStringSet(key, readStringSet(buffer, value));
+                        break;
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static boolean startsWith(final MappedByteBuffer buffer, final int offset, final String prefix) {
+        if (prefix == null) {
+            return true;
+        }
+        if (buffer.getInt(offset + 1) < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (buffer.getChar(offset + 5 + 2 * i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Map<String, Object> readAll(final MappedByteBuffer buffer, final int slots) {
+        final Map<String, Object> all = new HashMap<>(buffer.getInt(COUNT_OFFSET) * 2);
+        for (int index = 0; index < slots; index++) {
+            final int offset = buffer.getInt(HEADER_SIZE + index * SLOT_SIZE + 4);
+            if (offset == 0 || (buffer.get(offset) & REMOVED) != 0) {
+                continue;
+            }
+            final int length = buffer.getInt(offset + 1);
+            final char[] chars = new char[length];
+            for (int i = 0; i < length; i++) {
+                chars[i] = buffer.getChar(offset + 5 + 2 * i);
+            }
+            final String key = new String(chars);
+            all.put(key, readValue(buffer, offset, valueOffset(offset, key)));
+        }
+        return all;
+    }
+
+    private static Object readValue(final MappedByteBuffer buffer, final int offset, final int value) {
+        switch (buffer.get(offset)) {
+            case TYPE_INT:
+                return buffer.getInt(value);
+            case TYPE_LONG:
+                return buffer.getLong(value);
+            case TYPE_FLOAT:
+                return buffer.getFloat(value);
+            case TYPE_BOOLEAN:
+                return buffer.get(value) != 0;
+            case TYPE_STRING:
+                return readString(buffer, value);
+            default:
+                return readStringSet(buffer, value);
+        }
+    }
+
+    private static String readString(final MappedByteBuffer buffer, final int offset) {
+        final byte[] bytes = new byte[buffer.getInt(offset)];
+        final MappedByteBuffer duplicate = (MappedByteBuffer) buffer.duplicate();
+        duplicate.position(offset + 4);
+        duplicate.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static Set<String> readStringSet(final MappedByteBuffer buffer, final int offset) {
+        final int size = buffer.getInt(offset);
+        final Set<String> set = new HashSet<>(size * 2);
+        int position = offset + 4;
+        for (int i = 0; i < size; i++) {
+            set.add(readString(buffer, position));
+            position += 4 + buffer.getInt(position);
+        }
+        return Collections.unmodifiableSet(set);
+    }
+
+    /**
+     * @return number of bytes the value takes in its entry
+     */
+    @SuppressWarnings("unchecked")
+    private static int valueSize(final Object value) {
+        if (value instanceof String) {
+            return 4 + utf8Length((String) value);
+        }
+        if (value instanceof Set) {
+            int size = 4;
+            for (String item : (Set<String>) value) {
+                size += 4 + utf8Length(item);
+            }
+            return size;
+        }
+        return PRIMITIVE_SIZE;
+    }
+
+    private static int utf8Length(final String value) {
+        return value.getBytes(UTF_8).length;
+    }
+
+    private static byte typeOf(final String key, final Object value) {
+        if (value instanceof Integer) {
+            return TYPE_INT;
+        } else if (value instanceof Long) {
+            return TYPE_LONG;
+        } else if (value instanceof Float) {
+            return TYPE_FLOAT;
+        } else if (value instanceof Boolean) {
+            return TYPE_BOOLEAN;
+        } else if (value instanceof String) {
+            return TYPE_STRING;
+        } else if (value instanceof Set) {
+            return TYPE_STRING_SET;
+        }
+        throw new IllegalArgumentException("Unsupported preference type " + value.getClass().getName() + " for key " + key);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writeValue(final MappedByteBuffer buffer, final int position, final byte type, final Object value) {
+        switch (type) {
+            case TYPE_INT:
+                buffer.putInt(position, (Integer) value);
+                break;
+            case TYPE_LONG:
+                buffer.putLong(position, (Long) value);
+                break;
+            case TYPE_FLOAT:
+                buffer.putFloat(position, (Float) value);
+                break;
+            case TYPE_BOOLEAN:
+                buffer.put(position, (byte) ((Boolean) value ? 1 : 0));
+                break;
+            case TYPE_STRING:
+                writeString(buffer, position, (String) value);
+                break;
+            default:
+                final Set<String> set = (Set<String>) value;
+                buffer.putInt(position, set.size());
+                int next = position + 4;
+                for (String item : set) {
+                    next = writeString(buffer, next, item);
+                }
+        }
+    }
+
+    private static int writeString(final MappedByteBuffer buffer, final int position, final String value) {
+        final byte[] bytes = value.getBytes(UTF_8);
+        buffer.putInt(position, bytes.length);
+        final MappedByteBuffer duplicate = (MappedByteBuffer) buffer.duplicate();
+        duplicate.position(position + 4);
+        duplicate.put(bytes);
+        return position + 4 + bytes.length;
+    }
+
+    private static boolean isPrimitive(final byte type) {
+        return type < TYPE_STRING;
+    }
+
+    /**
+     * Put the value of the key, or remove the key if value is null
+     *
+     * @return false if there is no room for the value, the caller must rebuild the file then
+     */
+    private static boolean insert(final MappedByteBuffer buffer, final int slots, final String key, final Object value) {
+        final int index = find(buffer, slots, key);
+        final int slot = HEADER_SIZE + (index < 0 ? -index - 1 : index) * SLOT_SIZE;
+        final int current = index < 0 ? 0 : buffer.getInt(slot + 4);
+        final byte currentType = current == 0 ? REMOVED : buffer.get(current);
+        final boolean live = current != 0 && (currentType & REMOVED) == 0;
+        if (value == null) {
+            if (live) {
+                buffer.put(current, (byte) (currentType | REMOVED));
+                buffer.putInt(COUNT_OFFSET, buffer.getInt(COUNT_OFFSET) - 1);
+            }
+            return true;
+        }
+        final byte type = typeOf(key, value);
+        if (current != 0 && isPrimitive(type) && isPrimitive((byte) (currentType & ~REMOVED))) {
+            // primitive over primitive, overwrite in place
+            writeValue(buffer, valueOffset(current, key), type, value);
+            buffer.put(current, type);
+        } else {
+            final int size = 5 + 2 * key.length() + valueSize(value);
+            final int dataEnd = buffer.getInt(DATA_END_OFFSET);
+            final int used = buffer.getInt(USED_OFFSET);
+            if (dataEnd + size > buffer.capacity() || (current == 0 && (used + 1) * 2 > slots)) {
+                return false;
+            }
+            buffer.put(dataEnd, type);
+            buffer.putInt(dataEnd + 1, key.length());
+            for (int i = 0; i < key.length(); i++) {
+                buffer.putChar(dataEnd + 5 + 2 * i, key.charAt(i));
+            }
+            writeValue(buffer, valueOffset(dataEnd, key), type, value);
+            buffer.putInt(DATA_END_OFFSET, dataEnd + size);
+            // the slot is written after the entry for the readers of this process, on disk the order is not
+            // kept and a file torn by a crash is rebuilt by the next open
+            buffer.putInt(slot, key.hashCode());
+            buffer.putInt(slot + 4, dataEnd);
+            if (current == 0) {
+                buffer.putInt(USED_OFFSET, used + 1);
+            }
+        }
+        if (!live) {
+            buffer.putInt(COUNT_OFFSET, buffer.getInt(COUNT_OFFSET) + 1);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean write(final boolean clear, final Map<String, Object> changes, final boolean sync) {
+        lock.writeLock().lock();
+        try {
+            if (clear) {
+                rebuild(Collections.<String, Object>emptyMap(), 0);
+            }
+            for (Map.Entry<String, Object> entry : changes.entrySet()) {
+                markDirty();
+                if (!insert(buffer, slotCount, entry.getKey(), entry.getValue())) {
+                    final Map<String, Object> values = readAll(buffer, slotCount);
+                    if (entry.getValue() == null) {
+                        values.remove(entry.getKey());
+                    } else {
+                        values.put(entry.getKey(), entry.getValue());
+                    }
+                    rebuild(values, 5 + 2 * entry.getKey().length() + valueSize(entry.getValue()));
+                }
+            }
+            if (sync) {
+                markClean();
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Clear the clean mark on disk before the first change, holding the write lock
+     */
+    private void markDirty() {
+        if (!dirty) {
+            buffer.putInt(STATE_OFFSET, DIRTY);
+            buffer.force();
+            dirty = true;
+        }
+    }
+
+    /**
+     * Sync the changes and then set the clean mark, holding the write lock
+     */
+    private void markClean() {
+        buffer.force();
+        if (dirty) {
+            buffer.putInt(STATE_OFFSET, CLEAN);
+            buffer.force();
+            dirty = false;
+        }
+    }
+
+    /**
+     * Rebuild the file from the live entries which are whole, their slot and all their bytes in the file
+     */
+    private void recover() throws IOException {
+        final Map<String, Object> values = new HashMap<>();
+        final int dataStart = HEADER_SIZE + slotCount * SLOT_SIZE;
+        for (int index = 0; index < slotCount; index++) {
+            final int slot = HEADER_SIZE + index * SLOT_SIZE;
+            final int offset = buffer.getInt(slot + 4);
+            if (offset == 0) {
+                continue;
+            }
+            final String key = checkedKey(buffer, offset, dataStart, buffer.getInt(slot));
+            if (key != null && isWhole(buffer, buffer.get(offset), valueOffset(offset, key))) {
+                values.put(key, readValue(buffer, offset, valueOffset(offset, key)));
+            }
+        }
+        rebuild(values, 0);
+    }
+
+    /**
+     * @return key of the live entry at the offset, or null if the entry is removed or does not match its slot
+     */
+    private static String checkedKey(final MappedByteBuffer buffer, final int offset, final int dataStart, final int hash) {
+        if (offset < dataStart || offset > buffer.capacity() - 5) {
+            return null;
+        }
+        final byte type = buffer.get(offset);
+        final int length = buffer.getInt(offset + 1);
+        if (type < TYPE_INT || type > TYPE_STRING_SET || length < 0 || length > (buffer.capacity() - offset - 5) / 2) {
+            return null;
+        }
+        final char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = buffer.getChar(offset + 5 + 2 * i);
+        }
+        final String key = new String(chars);
+        return key.hashCode() == hash ? key : null;
+    }
+
+    /**
+     * @return whether the value of the type at the position lies within the file
+     */
+    private static boolean isWhole(final MappedByteBuffer buffer, final byte type, final int position) {
+        if (isPrimitive(type)) {
+            return position <= buffer.capacity() - PRIMITIVE_SIZE;
+        }
+        if (type == TYPE_STRING) {
+            return isWholeString(buffer, position);
+        }
+        if (position > buffer.capacity() - 4 || buffer.getInt(position) < 0) {
+            return false;
+        }
+        int next = position + 4;
+        for (int i = buffer.getInt(position); i > 0; i--) {
+            if (!isWholeString(buffer, next)) {
+                return false;
+            }
+            next += 4 + buffer.getInt(next);
+        }
+        return true;
+    }
+
+    private static boolean isWholeString(final MappedByteBuffer buffer, final int position) {
+        if (position > buffer.capacity() - 4) {
+            return false;
+        }
+        final int length = buffer.getInt(position);
+        return length >= 0 && length <= buffer.capacity() - position - 4;
+    }
+
+    /**
+     * Write a new file, sized for the values with room to grow, and map it
+     */
+    private void rebuild(final Map<String, Object> values, final int extra) throws IOException {
+        int live = extra;
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            live += 5 + 2 * entry.getKey().length() + valueSize(entry.getValue());
+        }
+        int slots = MIN_SLOTS;
+        while (slots < values.size() * 4) {
+            slots <<= 1;
+        }
+        raf.close();
+        create(file, slots, Math.max(MIN_DATA_SIZE, live * 2), values);
+        map();
+        dirty = false;
+    }
+
+    /**
+     * Write the mapped buffer to disk, mark the file clean and close it, so that it can be opened again
+     */
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            markClean();
+            raf.close();
+        } finally {
+            openFiles.remove(path, this);
+            lock.writeLock().unlock();
+        }
+    }
+}
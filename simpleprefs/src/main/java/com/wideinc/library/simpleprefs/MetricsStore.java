@@ -0,0 +1,162 @@
+package com.wideinc.library.simpleprefs;
+
+import com.wideinc.library.simpleprefs.PrefsMetrics.Operation;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Records the calls of the underlying store into the metrics. The instance in front of all the other stores
+ * records the reads and the writes, and the instance in front of the storage engine records the flushes.
+ */
+final class MetricsStore implements VisitablePrefsStore {
+
+    private final PrefsStore store;
+    private final PrefsMetrics metrics;
+    private final boolean operations;
+    private final boolean flushes;
+
+    /**
+     * @param store      the underlying store
+     * @param metrics    metrics to record into
+     * @param operations whether to record the reads and the writes
+     * @param flushes    whether to record the writes as the flushes to the storage engine
+     */
+    MetricsStore(final PrefsStore store, final PrefsMetrics metrics, final boolean operations, final boolean flushes) {
+        this.store = store;
+        this.metrics = metrics;
+        this.operations = operations;
+        this.flushes = flushes;
+    }
+
+    private void record(final Operation operation, final String key, final long start) {
+        metrics.record(operation, System.nanoTime() - start);
+        metrics.recordKey(key);
+    }
+
+    @Override
+    public int getInt(final String key, final int defValue) {
+        if (!operations) {
+            return store.getInt(key, defValue);
+        }
+        final long start = System.nanoTime();
+        try {
+            return store.getInt(key, defValue);
+        } finally {
+            record(Operation.GET_INT, key, start);
+        }
+    }
+
+    @Override
+    public long getLong(final String key, final long defValue) {
+        if (!operations) {
+            return store.getLong(key, defValue);
+        }
+        final long start = System.nanoTime();
+        try {
+            return store.getLong(key, defValue);
+        } finally {
+            record(Operation.GET_LONG, key, start);
+        }
+    }
+
+    @Override
+    public float getFloat(final String key, final float defValue) {
+        if (!operations) {
+            return store.getFloat(key, defValue);
+        }
+        final long start = System.nanoTime();
+        try {
+            return store.getFloat(key, defValue);
+        } finally {
+            record(Operation.GET_FLOAT, key, start);
+        }
+    }
+
+    @Override
+    public boolean getBoolean(final String key, final boolean defValue) {
+        if (!operations) {
+            return store.getBoolean(key, defValue);
+        }
+        final long start = System.nanoTime();
+        try {
+            return store.getBoolean(key, defValue);
+        } finally {
+            record(Operation.GET_BOOLEAN, key, start);
+        }
+    }
+
+    @Override
+    public String getString(final String key, final String defValue) {
+        if (!operations) {
+            return store.getString(key, defValue);
+        }
+        final long start = System.nanoTime();
+        try {
+            return store.getString(key, defValue);
+        } finally {
+            record(Operation.GET_STRING, key, start);
+        }
+    }
+
+    @Override
+    public Set<String> getStringSet(final String key, final Set<String> defValues) {
+        if (!operations) {
+            return store.getStringSet(key, defValues);
+        }
+        final long start = System.nanoTime();
+        try {
+            return store.getStringSet(key, defValues);
+        } finally {
+            record(Operation.GET_STRING_SET, key, start);
+        }
+    }
+
+    @Override
+    public boolean contains(final String key) {
+        if (!operations) {
+            return store.contains(key);
+        }
+        final long start = System.nanoTime();
+        try {
+            return store.contains(key);
+        } finally {
+            record(Operation.CONTAINS, key, start);
+        }
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        if (!operations) {
+            return store.getAll();
+        }
+        final long start = System.nanoTime();
+        try {
+            return store.getAll();
+        } finally {
+            metrics.record(Operation.GET_ALL, System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void forEach(final String prefix, final PrefsVisitor visitor) {
+        PrefsVisitor.forEach(store, prefix, visitor);
+    }
+
+    @Override
+    public boolean write(final boolean clear, final Map<String, Object> changes, final boolean sync) {
+        final long start = System.nanoTime();
+        final boolean written = store.write(clear, changes, sync);
+        final long duration = System.nanoTime() - start;
+        if (operations) {
+            metrics.record(Operation.WRITE, duration);
+            for (String key : changes.keySet()) {
+                metrics.recordKey(key);
+            }
+        }
+        if (flushes) {
+            metrics.recordFlush(changes, duration);
+        }
+        return written;
+    }
+}
@@ -0,0 +1,363 @@
+package com.wideinc.library.simpleprefs;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moves the preferences from one storage engine to another without blocking the startup, for example from
+ * the SharedPreferences XML file to a {@link LogPrefsStore}, or from one file to a {@link ShardedPrefsStore}.
+ * The preferences are copied in background in chunks of sorted keys, each chunk in one write of the target.
+ * <p>
+ * The reads are served from the source until the cutover, when the last chunk is copied. Meanwhile the writes
+ * go to both engines, so the keys already copied stay current and the source stays complete. The last key
+ * copied is saved in the target with its chunk, so that a migration interrupted by the end of the process
+ * resumes after it on the next launch. Once migrated, only the target is used and the source is left as it is.
+ * <p>
+ * A failed write of a chunk stops the copy, the next launch resumes from the checkpoint of the last chunk written.
+ * The keys whose write to the target failed before the cutover are copied again from the source with the last chunk.
+ */
+public final class MigrationStore implements VisitablePrefsStore {
+
+    // keys kept by the migration in the target, hidden from the reads
+    static final String PREFIX = "\uFDD0migration";
+    static final String CHECKPOINT = PREFIX + ":checkpoint";
+    static final String DONE = PREFIX + ":done";
+    static final int DEFAULT_CHUNK_SIZE = 256;
+
+    private final PrefsStore source;
+    private final PrefsStore target;
+    private final int chunkSize;
+    private final CountDownLatch cutover = new CountDownLatch(1);
+    private volatile boolean migrated;
+    private volatile RuntimeException failure;
+    // guarded by this, keys written since the migration started, whose latest values are already in the target
+    private final Set<String> written = new HashSet<>();
+    // guarded by this, keys whose write to the target failed, and whether a clear of the target failed
+    private final Set<String> missed = new HashSet<>();
+    private boolean missedClear;
+    private boolean clearedWhileMigrating;
+
+    /**
+     * @param source the engine which holds the preferences
+     * @param target the engine to move them to
+     */
+    public MigrationStore(final PrefsStore source, final PrefsStore target) {
+        this(source, target, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param source    the engine which holds the preferences
+     * @param target    the engine to move them to
+     * @param chunkSize number of preferences copied in one write of the target
+     * @throws IllegalArgumentException if the chunk size is not positive
+     */
+    public MigrationStore(final PrefsStore source, final PrefsStore target, final int chunkSize) {
+        if (chunkSize <= 0)
+            throw new IllegalArgumentException("Migration chunk size must be positive: " + chunkSize);
+        this.source = source;
+        this.target = target;
+        this.chunkSize = chunkSize;
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                migrate();
+            }
+        }, "SimplePrefs-Migrate");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Copy the preferences after the checkpoint chunk by chunk, then switch the reads to the target,
+     * runs on its own thread. The mark of a migration done by a previous launch is read here as well,
+     * since reading the target may wait for it to be loaded.
+     */
+    private void migrate() {
+        try {
+            if (target.getBoolean(DONE, false)) {
+                migrated = true;
+                return;
+            }
+            final String checkpoint = target.getString(CHECKPOINT, null);
+            final TreeMap<String, Object> sorted = new TreeMap<>();
+            PrefsVisitor.forEach(source, null, new PrefsVisitor() {
+                @Override
+                public void onInt(String key, int value) {
+                    add(key, value);
+                }
+
+                @Override
+                public void onLong(String key, long value) {
+                    add(key, value);
+                }
+
+                @Override
+                public void onFloat(String key, float value) {
+                    add(key, value);
+                }
+
+                @Override
+                public void onBoolean(String key, boolean value) {
+                    add(key, value);
+                }
+
+                @Override
+                public void onString(String key, String value) {
+                    add(key, value);
+                }
+
+                @Override
+                public void onStringSet(String key, Set<String> values) {
+                    add(key, values);
+                }
+
+                private void add(final String key, final Object value) {
+                    if (checkpoint == null || key.compareTo(checkpoint) > 0) {
+                        sorted.put(key, value);
+                    }
+                }
+            });
+            final Map<String, Object> chunk = new HashMap<>(chunkSize * 2);
+            for (Map.Entry<String, Object> entry : sorted.entrySet()) {
+                chunk.put(entry.getKey(), entry.getValue());
+                if (chunk.size() == chunkSize) {
+                    if (!copy(chunk, entry.getKey())) {
+                        break;
+                    }
+                    chunk.clear();
+                }
+            }
+            synchronized (this) {
+                if (!clearedWhileMigrating) {
+                    chunk.keySet().removeAll(written);
+                } else {
+                    chunk.clear();
+                }
+                if (missedClear) {
+                    // the target may hold anything, it is replaced with the whole source
+                    chunk.clear();
+                    chunk.putAll(source.getAll());
+                } else if (!missed.isEmpty()) {
+                    final Map<String, ?> current = source.getAll();
+                    for (String key : missed) {
+                        chunk.put(key, current.get(key));
+                    }
+                }
+                chunk.put(CHECKPOINT, null);
+                chunk.put(DONE, true);
+                if (!target.write(missedClear, chunk, true)) {
+                    throw new IllegalStateException("Simple Prefs failed to write the last migration chunk.");
+                }
+                migrated = true;
+                written.clear();
+                missed.clear();
+            }
+        } catch (RuntimeException e) {
+            // the reads stay on the source, the next launch resumes from the checkpoint
+            failure = e;
+        } finally {
+            cutover.countDown();
+        }
+    }
+
+    /**
+     * Write one chunk to the target with the last key copied, skipping the keys written meanwhile
+     *
+     * @return false if the preferences were cleared meanwhile, so that the rest of the source is not copied
+     * @throws IllegalStateException if the target fails to write the chunk, the checkpoint stays before it
+     */
+    private synchronized boolean copy(final Map<String, Object> chunk, final String last) {
+        if (clearedWhileMigrating) {
+            chunk.clear();
+            return false;
+        }
+        chunk.keySet().removeAll(written);
+        chunk.put(CHECKPOINT, last);
+        if (!target.write(false, chunk, false)) {
+            throw new IllegalStateException("Simple Prefs failed to write a migration chunk before " + last + ".");
+        }
+        return true;
+    }
+
+    /**
+     * @return whether the preferences are read from the target
+     */
+    public boolean isMigrated() {
+        return migrated;
+    }
+
+    /**
+     * Wait until the preferences are moved to the target
+     *
+     * @return whether they were moved before the timeout
+     * @throws InterruptedException if the thread is interrupted while waiting
+     * @throws RuntimeException     if the migration failed, it resumes from its checkpoint on the next launch
+     */
+    public boolean awaitMigration(final long timeout, final TimeUnit unit) throws InterruptedException {
+        final boolean done = cutover.await(timeout, unit);
+        if (failure != null) {
+            throw new RuntimeException("Simple Prefs failed to migrate the preferences.", failure);
+        }
+        return done;
+    }
+
+    /**
+     * @return the engine the preferences are moved from
+     */
+    public PrefsStore getSource() {
+        return source;
+    }
+
+    /**
+     * @return the engine the preferences are moved to
+     */
+    public PrefsStore getTarget() {
+        return target;
+    }
+
+    private PrefsStore reads() {
+        return migrated ? target : source;
+    }
+
+    private static boolean hidden(final String key) {
+        return key.startsWith(PREFIX);
+    }
+
+    @Override
+    public int getInt(final String key, final int defValue) {
+        return reads().getInt(key, defValue);
+    }
+
+    @Override
+    public long getLong(final String key, final long defValue) {
+        return reads().getLong(key, defValue);
+    }
+
+    @Override
+    public float getFloat(final String key, final float defValue) {
+        return reads().getFloat(key, defValue);
+    }
+
+    @Override
+    public boolean getBoolean(final String key, final boolean defValue) {
+        return reads().getBoolean(key, defValue);
+    }
+
+    @Override
+    public String getString(final String key, final String defValue) {
+        return reads().getString(key, defValue);
+    }
+
+    @Override
+    public Set<String> getStringSet(final String key, final Set<String> defValues) {
+        return reads().getStringSet(key, defValues);
+    }
+
+    @Override
+    public boolean contains(final String key) {
+        return !hidden(key) && reads().contains(key);
+    }
+
+    /**
+     * @return the preferences without the keys of the migration
+     */
+    @Override
+    public Map<String, ?> getAll() {
+        final Map<String, ?> all = reads().getAll();
+        if (!migrated) {
+            return all;
+        }
+        final Map<String, Object> visible = new HashMap<>(all);
+        visible.remove(CHECKPOINT);
+        visible.remove(DONE);
+        return visible;
+    }
+
+    @Override
+    public void forEach(final String prefix, final PrefsVisitor visitor) {
+        if (!migrated) {
+            PrefsVisitor.forEach(source, prefix, visitor);
+            return;
+        }
+        PrefsVisitor.forEach(target, prefix, new PrefsVisitor() {
+            @Override
+            public void onInt(String key, int value) {
+                visitor.onInt(key, value);
+            }
+
+            @Override
+            public void onLong(String key, long value) {
+                visitor.onLong(key, value);
+            }
+
+            @Override
+            public void onFloat(String key, float value) {
+                visitor.onFloat(key, value);
+            }
+
+            @Override
+            public void onBoolean(String key, boolean value) {
+                if (!hidden(key)) {
+                    visitor.onBoolean(key, value);
+                }
+            }
+
+            @Override
+            public void onString(String key, String value) {
+                if (!hidden(key)) {
+                    visitor.onString(key, value);
+                }
+            }
+
+            @Override
+            public void onStringSet(String key, Set<String> values) {
+                visitor.onStringSet(key, values);
+            }
+        });
+    }
+
+    /**
+     * Write the changes to the target, and to the source as well until the cutover
+     */
+    @Override
+    public boolean write(final boolean clear, final Map<String, Object> changes, final boolean sync) {
+        if (migrated) {
+            return target.write(clear, marked(clear, changes), sync);
+        }
+        synchronized (this) {
+            if (migrated) {
+                return target.write(clear, marked(clear, changes), sync);
+            }
+            if (clear) {
+                clearedWhileMigrating = true;
+            }
+            written.addAll(changes.keySet());
+            final boolean result = source.write(clear, changes, sync);
+            if (!target.write(clear, changes, sync)) {
+                // copied again from the source at the cutover
+                if (clear) {
+                    missedClear = true;
+                }
+                missed.addAll(changes.keySet());
+            }
+            return result;
+        }
+    }
+
+    /**
+     * @return the changes, with the mark of the migration added to a clear of the target so it is not run again
+     */
+    private static Map<String, Object> marked(final boolean clear, final Map<String, Object> changes) {
+        if (!clear) {
+            return changes;
+        }
+        final Map<String, Object> marked = new HashMap<>(changes);
+        marked.put(DONE, true);
+        return marked;
+    }
+}
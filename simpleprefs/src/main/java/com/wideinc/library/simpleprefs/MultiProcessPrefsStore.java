@@ -0,0 +1,438 @@
+package com.wideinc.library.simpleprefs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Storage engine which several processes of the app can open at once, a replacement for the deprecated
+ * {@code MODE_MULTI_PROCESS}. The preferences are kept in the append-only log format of {@link LogPrefsStore},
+ * next to a small version file which every process maps into memory. The version file holds the length of the log,
+ * its generation and a version counter bumped by every write.
+ * <p>
+ * A write takes an exclusive lock on the version file, reads the records appended by the other processes,
+ * appends its own records and publishes the new length and version. A read compares the shared version with
+ * the one it last saw, which costs no system call, and only when another process has written since, reads the
+ * records appended after the part it already has under a shared lock. A clear or a compaction of the log starts
+ * a new generation, which the other processes load from the start.
+ * <p>
+ * The values read by other processes are not delivered to the change listeners, and the in-memory caches of
+ * {@link Prefs}, the primitive cache and the sorted key index, only see the writes made by their own process.
+ * The atomic counters and the expiry times would overwrite or miss the writes of the other processes,
+ * so a {@link Prefs} built in {@code MODE_MULTI_PROCESS} or on this store rejects the atomic operations
+ * and the time to live.
+ */
+public class MultiProcessPrefsStore extends AbstractPrefsStore implements VisitablePrefsStore, Closeable {
+
+    static final String VERSION_SUFFIX = ".version";
+    // written with the imported preferences, hidden from the reads
+    static final String IMPORTED = "\uFDD0imported";
+    private static final int VERSION_MAGIC = 0x5350564e; // "SPVN"
+    private static final int GENERATION = 8;
+    private static final int LENGTH = 16;
+    private static final int VERSION = 24;
+    private static final int VERSION_FILE_SIZE = 32;
+    private static final int DEFAULT_COMPACT_THRESHOLD = 64 * 1024;
+
+    // a file lock is held by the whole process, so two instances of one process must not lock the same file at once
+    private static final ConcurrentHashMap<String, Object> processLocks = new ConcurrentHashMap<>();
+
+    private final File file;
+    private final int compactThreshold;
+    private final Object processLock;
+    private final RandomAccessFile versionFile;
+    private final MappedByteBuffer shared;
+    private final ConcurrentHashMap<String, Object> values = new ConcurrentHashMap<>();
+
+    // guarded by processLock
+    private final Map<String, Integer> recordSizes = new HashMap<>();
+    private RandomAccessFile log;
+    private long generation;
+    private long offset;
+    private long liveBytes;
+    // shared version of the log part held in values
+    private volatile long version = -1;
+
+    /**
+     * Open the log, loading all its records
+     *
+     * @param file file of the log, it is created if it does not exist
+     * @throws IOException if the log can not be read or created
+     */
+    public MultiProcessPrefsStore(final File file) throws IOException {
+        this(file, DEFAULT_COMPACT_THRESHOLD);
+    }
+
+    /**
+     * Open the log, loading all its records
+     *
+     * @param file             file of the log, it is created if it does not exist, together with the version file
+     *                         named after it with the {@code .version} suffix
+     * @param compactThreshold the log is compacted when its garbage is larger than this many bytes
+     *                         and larger than the live records
+     * @throws IOException if the log can not be read or created
+     */
+    public MultiProcessPrefsStore(final File file, final int compactThreshold) throws IOException {
+        this.file = file;
+        this.compactThreshold = compactThreshold;
+        final Object lock = new Object();
+        final Object previous = processLocks.putIfAbsent(file.getCanonicalPath(), lock);
+        this.processLock = previous != null ? previous : lock;
+        this.versionFile = new RandomAccessFile(new File(file.getPath() + VERSION_SUFFIX), "rw");
+        synchronized (processLock) {
+            final FileLock fileLock = versionFile.getChannel().lock();
+            try {
+                if (versionFile.length() < VERSION_FILE_SIZE) {
+                    versionFile.setLength(VERSION_FILE_SIZE);
+                }
+                shared = versionFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, VERSION_FILE_SIZE);
+                if (!file.exists() || file.length() == 0 || shared.getInt(0) != VERSION_MAGIC) {
+                    // the log or the version file is new or was lost, publish the valid part of the log
+                    shared.putLong(GENERATION, shared.getLong(GENERATION) + 1);
+                    shared.putLong(LENGTH, recover());
+                    shared.putLong(VERSION, shared.getLong(VERSION) + 1);
+                    shared.putInt(0, VERSION_MAGIC);
+                    shared.force();
+                }
+                catchUp();
+            } finally {
+                fileLock.release();
+            }
+        }
+    }
+
+    /**
+     * @return whether the preferences were imported into the log, by this process or another one
+     */
+    boolean isImported() {
+        refresh();
+        return values.containsKey(IMPORTED);
+    }
+
+    /**
+     * Write the preferences to the log unless they were imported before, together with the mark of the import.
+     * The mark is checked holding the exclusive lock, so only one process imports them.
+     *
+     * @return {@code true} if the preferences were imported now or before
+     */
+    boolean importOnce(final Map<String, ?> imported) {
+        final Map<String, Object> changes = new HashMap<>(imported);
+        changes.put(IMPORTED, true);
+        return write(false, changes, true, true);
+    }
+
+    @Override
+    protected Object get(final String key) {
+        if (IMPORTED.equals(key)) {
+            return null;
+        }
+        refresh();
+        return values.get(key);
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        refresh();
+        final Map<String, Object> all = new HashMap<>(values);
+        all.remove(IMPORTED);
+        return all;
+    }
+
+    @Override
+    public void forEach(final String prefix, final PrefsVisitor visitor) {
+        refresh();
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            if (!IMPORTED.equals(entry.getKey()) && PrefsVisitor.matches(prefix, entry.getKey())) {
+                visitor.visit(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Append the changes to the log on the calling thread, the disk is synced only when sync is true.
+     * The records are visible to the other processes once the method returns.
+     */
+    @Override
+    public boolean write(final boolean clear, final Map<String, Object> changes, final boolean sync) {
+        return write(clear, changes, sync, false);
+    }
+
+    /**
+     * @param once skip the changes if the log already has the mark of the import
+     */
+    @SuppressWarnings("unchecked")
+    private boolean write(final boolean clear, final Map<String, Object> changes, final boolean sync,
+                          final boolean once) {
+        final Map<String, Object> copies = new LinkedHashMap<>(changes.size());
+        final Map<String, byte[]> records = new HashMap<>(changes.size());
+        for (Map.Entry<String, Object> entry : changes.entrySet()) {
+            Object value = entry.getValue();
+            if (value instanceof Set) {
+                value = Collections.unmodifiableSet(new HashSet<>((Set<String>) value));
+            }
+            copies.put(entry.getKey(), value);
+            records.put(entry.getKey(), LogPrefsStore.encode(entry.getKey(), value));
+        }
+        synchronized (processLock) {
+            try {
+                final FileLock fileLock = versionFile.getChannel().lock();
+                try {
+                    catchUp();
+                    if (once && values.containsKey(IMPORTED)) {
+                        return true;
+                    }
+                    if (clear && values.containsKey(IMPORTED)) {
+                        // a clear keeps the mark, so the next launch does not import the preferences again
+                        copies.put(IMPORTED, true);
+                        records.put(IMPORTED, LogPrefsStore.encode(IMPORTED, true));
+                    }
+                    append(clear, copies, records, sync);
+                } finally {
+                    fileLock.release();
+                }
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (processLock) {
+            versionFile.close();
+            if (log != null) {
+                log.close();
+            }
+        }
+    }
+
+    /**
+     * @return current length of the log file in bytes, as published to the processes
+     */
+    long length() {
+        return shared.getLong(LENGTH);
+    }
+
+    /**
+     * Read the records written by the other processes, if the shared version changed since the last read
+     */
+    private void refresh() {
+        if (shared.getLong(VERSION) == version) {
+            return;
+        }
+        synchronized (processLock) {
+            if (shared.getLong(VERSION) == version) {
+                return;
+            }
+            try {
+                final FileLock fileLock = versionFile.getChannel().lock(0, Long.MAX_VALUE, true);
+                try {
+                    catchUp();
+                } finally {
+                    fileLock.release();
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Simple Prefs failed to read " + file, e);
+            }
+        }
+    }
+
+    /**
+     * Load the records published since the last read, holding processLock and a lock of the version file.
+     * A new generation is loaded from the start of the log. Reading stops at a corrupt record,
+     * which the next write overwrites.
+     */
+    private void catchUp() throws IOException {
+        final long currentGeneration = shared.getLong(GENERATION);
+        final long length = shared.getLong(LENGTH);
+        if (log == null || currentGeneration != generation) {
+            if (log != null) {
+                log.close();
+            }
+            log = new RandomAccessFile(file, "rw");
+            generation = currentGeneration;
+            recordSizes.clear();
+            liveBytes = 0;
+            final Map<String, Object> loaded = new HashMap<>();
+            offset = read(LogPrefsStore.HEADER_SIZE, length, loaded);
+            values.keySet().retainAll(loaded.keySet());
+            values.putAll(loaded);
+        } else if (length > offset) {
+            offset = read(offset, length, values);
+        }
+        version = shared.getLong(VERSION);
+    }
+
+    /**
+     * Read the records between the offsets of the log into the values
+     *
+     * @return offset after the last valid record
+     */
+    private long read(final long from, final long to, final Map<String, Object> target) throws IOException {
+        final int length = (int) Math.min(to - from, Math.max(0, log.length() - from));
+        if (length <= 0) {
+            return from;
+        }
+        final byte[] content = new byte[length];
+        log.seek(from);
+        log.readFully(content);
+        final ByteBuffer buffer = ByteBuffer.wrap(content);
+        int valid = 0;
+        LogPrefsStore.Record record;
+        while ((record = LogPrefsStore.readRecord(buffer)) != null) {
+            final int size = buffer.position() - valid;
+            valid = buffer.position();
+            final Integer previous = recordSizes.remove(record.key);
+            liveBytes -= previous != null ? previous : 0;
+            if (record.value == null) {
+                target.remove(record.key);
+            } else {
+                target.put(record.key, record.value);
+                recordSizes.put(record.key, size);
+                liveBytes += size;
+            }
+        }
+        return from + valid;
+    }
+
+    /**
+     * Append the records and publish them, holding processLock and the exclusive lock of the version file
+     */
+    private void append(final boolean clear, final Map<String, Object> changes, final Map<String, byte[]> records,
+                        final boolean sync) throws IOException {
+        if (clear) {
+            log.setLength(LogPrefsStore.HEADER_SIZE);
+            offset = LogPrefsStore.HEADER_SIZE;
+            generation++;
+            values.clear();
+            recordSizes.clear();
+            liveBytes = 0;
+        }
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (Map.Entry<String, Object> entry : changes.entrySet()) {
+            final byte[] record = records.get(entry.getKey());
+            bytes.write(record, 0, record.length);
+            final Integer previous = recordSizes.remove(entry.getKey());
+            liveBytes -= previous != null ? previous : 0;
+            if (entry.getValue() == null) {
+                values.remove(entry.getKey());
+            } else {
+                values.put(entry.getKey(), entry.getValue());
+                recordSizes.put(entry.getKey(), record.length);
+                liveBytes += record.length;
+            }
+        }
+        log.seek(offset);
+        log.write(bytes.toByteArray());
+        offset += bytes.size();
+        if (sync) {
+            log.getFD().sync();
+        }
+        final long garbage = offset - LogPrefsStore.HEADER_SIZE - liveBytes;
+        if (garbage > compactThreshold && garbage > liveBytes) {
+            compact();
+        }
+        publish(sync);
+    }
+
+    /**
+     * Rewrite the log with the live records only and start a new generation. The compacted log is written
+     * next to the log and renamed over it, the other processes reopen it when they see the new generation.
+     */
+    private void compact() throws IOException {
+        final File compacted = new File(file.getPath() + ".compact");
+        final RandomAccessFile out = new RandomAccessFile(compacted, "rw");
+        final Map<String, Integer> sizes = new HashMap<>(values.size());
+        long live = 0;
+        try {
+            out.setLength(0);
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream data = new DataOutputStream(bytes);
+            data.writeInt(LogPrefsStore.MAGIC);
+            for (Map.Entry<String, Object> entry : values.entrySet()) {
+                final byte[] record = LogPrefsStore.encode(entry.getKey(), entry.getValue());
+                data.write(record);
+                sizes.put(entry.getKey(), record.length);
+                live += record.length;
+            }
+            out.write(bytes.toByteArray());
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        log.close();
+        if (!compacted.renameTo(file)) {
+            log = new RandomAccessFile(file, "rw");
+            throw new IOException("Can not replace " + file + " with the compacted log");
+        }
+        log = new RandomAccessFile(file, "rw");
+        offset = log.length();
+        generation++;
+        recordSizes.clear();
+        recordSizes.putAll(sizes);
+        liveBytes = live;
+    }
+
+    /**
+     * Publish the generation and length of the log, the version is written last
+     * since the readers check it without a lock
+     */
+    private void publish(final boolean sync) {
+        shared.putLong(GENERATION, generation);
+        shared.putLong(LENGTH, offset);
+        final long next = shared.getLong(VERSION) + 1;
+        shared.putLong(VERSION, next);
+        version = next;
+        if (sync) {
+            shared.force();
+        }
+    }
+
+    /**
+     * Create the log if it does not exist, or truncate the torn tail of an existing log
+     *
+     * @return length of the valid part of the log
+     */
+    private long recover() throws IOException {
+        final RandomAccessFile opened = new RandomAccessFile(file, "rw");
+        try {
+            if (opened.length() < LogPrefsStore.HEADER_SIZE) {
+                opened.setLength(0);
+                opened.writeInt(LogPrefsStore.MAGIC);
+                return LogPrefsStore.HEADER_SIZE;
+            }
+            final byte[] content = new byte[(int) opened.length()];
+            opened.readFully(content);
+            final ByteBuffer buffer = ByteBuffer.wrap(content);
+            if (buffer.getInt() != LogPrefsStore.MAGIC) {
+                throw new IOException("Not a SimplePrefs log: " + file);
+            }
+            int valid = LogPrefsStore.HEADER_SIZE;
+            while (LogPrefsStore.readRecord(buffer) != null) {
+                valid = buffer.position();
+            }
+            if (valid < content.length) {
+                // torn tail record, left by a crash in the middle of an append
+                opened.setLength(valid);
+            }
+            return valid;
+        } finally {
+            opened.close();
+        }
+    }
+}
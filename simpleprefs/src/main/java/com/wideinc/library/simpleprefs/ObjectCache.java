@@ -0,0 +1,199 @@
+package com.wideinc.library.simpleprefs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Saves objects as Base64 strings of their binary form, and keeps the decoded objects so that the repeated
+ * reads of a key decode it only once. A cached object is used as long as the saved string is the same,
+ * so the cache never returns a stale object, whichever way the preference was changed. Only the objects
+ * of the {@link #DEFAULT_CACHE_SIZE} most recently used keys are kept.
+ */
+final class ObjectCache {
+
+    static final int DEFAULT_CACHE_SIZE = 256;
+
+    private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    private static final int[] VALUES = new int[128];
+
+    static {
+        for (int i = 0; i < VALUES.length; i++) {
+            VALUES[i] = -1;
+        }
+        for (int i = 0; i < ALPHABET.length; i++) {
+            VALUES[ALPHABET[i]] = i;
+        }
+    }
+
+    private static final class Decoded {
+        final String encoded;
+        final Codec<?> codec;
+        final Object value;
+
+        Decoded(final String encoded, final Codec<?> codec, final Object value) {
+            this.encoded = encoded;
+            this.codec = codec;
+            this.value = value;
+        }
+    }
+
+    // guarded by itself, in access order
+    private final LinkedHashMap<String, Decoded> decoded;
+    private final Map<Class<?>, Codec<?>> codecs;
+
+    /**
+     * @param codecs codecs registered by the type of the objects
+     */
+    ObjectCache(final Map<Class<?>, Codec<?>> codecs) {
+        this(codecs, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * @param codecs    codecs registered by the type of the objects
+     * @param cacheSize number of decoded objects kept in memory
+     */
+    ObjectCache(final Map<Class<?>, Codec<?>> codecs, final int cacheSize) {
+        this.codecs = codecs;
+        this.decoded = new LinkedHashMap<String, Decoded>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Decoded> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    private void cache(final String key, final Decoded value) {
+        synchronized (decoded) {
+            if (value != null) {
+                decoded.put(key, value);
+            } else {
+                decoded.remove(key);
+            }
+        }
+    }
+
+    /**
+     * @return the codec registered for the type
+     * @throws IllegalArgumentException if no codec is registered for the type
+     */
+    @SuppressWarnings("unchecked")
+    <T> Codec<T> codec(final Class<T> type) {
+        final Codec<T> codec = (Codec<T>) codecs.get(type);
+        if (codec == null) {
+            throw new IllegalArgumentException("No codec is registered for " + type.getName() + ". Please call Builder().registerCodec(type, codec) to register it.");
+        }
+        return codec;
+    }
+
+    /**
+     * Encode the object and remember it as the decoded form of the result
+     *
+     * @return the string to save, or null for a null object
+     */
+    <T> String encode(final String key, final T value, final Codec<T> codec) {
+        if (value == null) {
+            cache(key, null);
+            return null;
+        }
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            final DataOutputStream out = new DataOutputStream(bytes);
+            codec.encode(value, out);
+            out.flush();
+        } catch (IOException e) {
+            throw new RuntimeException("Simple Prefs failed to encode the value of " + key + ".", e);
+        }
+        final String encoded = toBase64(bytes.toByteArray());
+        cache(key, new Decoded(encoded, codec, value));
+        return encoded;
+    }
+
+    /**
+     * Return the decoded object, decoding the saved string only if it changed since the last call
+     *
+     * @param encoded the saved string, or null if the preference does not exist
+     * @return the object, or null if the preference does not exist
+     * @throws RuntimeException if the saved string can not be decoded
+     */
+    @SuppressWarnings("unchecked")
+    <T> T decode(final String key, final String encoded, final Codec<T> codec) {
+        if (encoded == null) {
+            cache(key, null);
+            return null;
+        }
+        final Decoded cached;
+        synchronized (decoded) {
+            cached = decoded.get(key);
+        }
+        if (cached != null && cached.codec == codec && (cached.encoded == encoded || cached.encoded.equals(encoded))) {
+            return (T) cached.value;
+        }
+        final T value;
+        try {
+            value = codec.decode(new DataInputStream(new ByteArrayInputStream(fromBase64(encoded))));
+        } catch (IOException | IllegalArgumentException e) {
+            throw new RuntimeException("Simple Prefs failed to decode the value of " + key + ".", e);
+        }
+        cache(key, new Decoded(encoded, codec, value));
+        return value;
+    }
+
+    static String toBase64(final byte[] bytes) {
+        final char[] chars = new char[(bytes.length + 2) / 3 * 4];
+        int index = 0;
+        for (int i = 0; i < bytes.length; i += 3) {
+            final int b0 = bytes[i] & 0xff;
+            final int b1 = i + 1 < bytes.length ? bytes[i + 1] & 0xff : 0;
+            final int b2 = i + 2 < bytes.length ? bytes[i + 2] & 0xff : 0;
+            chars[index++] = ALPHABET[b0 >>> 2];
+            chars[index++] = ALPHABET[((b0 & 0x3) << 4) | (b1 >>> 4)];
+            chars[index++] = i + 1 < bytes.length ? ALPHABET[((b1 & 0xf) << 2) | (b2 >>> 6)] : '=';
+            chars[index++] = i + 2 < bytes.length ? ALPHABET[b2 & 0x3f] : '=';
+        }
+        return new String(chars);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the string is not valid Base64
+     */
+    static byte[] fromBase64(final String string) {
+        if (string.length() % 4 != 0) {
+            throw new IllegalArgumentException("Invalid Base64 length " + string.length());
+        }
+        int padding = 0;
+        if (string.endsWith("==")) {
+            padding = 2;
+        } else if (string.endsWith("=")) {
+            padding = 1;
+        }
+        final byte[] bytes = new byte[string.length() / 4 * 3 - padding];
+        int index = 0;
+        for (int i = 0; i < string.length(); i += 4) {
+            final int group = value(string, i) << 18 | value(string, i + 1) << 12
+                    | (string.charAt(i + 2) == '=' ? 0 : value(string, i + 2) << 6)
+                    | (string.charAt(i + 3) == '=' ? 0 : value(string, i + 3));
+            bytes[index++] = (byte) (group >>> 16);
+            if (index < bytes.length) {
+                bytes[index++] = (byte) (group >>> 8);
+            }
+            if (index < bytes.length) {
+                bytes[index++] = (byte) group;
+            }
+        }
+        return bytes;
+    }
+
+    private static int value(final String string, final int index) {
+        final char c = string.charAt(index);
+        final int value = c < VALUES.length ? VALUES[c] : -1;
+        if (value < 0) {
+            throw new IllegalArgumentException("Invalid Base64 character " + c + " at " + index);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,1215 @@
+package com.wideinc.library.simpleprefs;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.Editor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * A preference instance with the typed get and put methods of {@link SimplePrefs}. Every instance is backed by
+ * its own storage engine and has its own write scheduling, so that hot and cold data can be kept in separate files
+ * and a write to one of them does not rewrite the other.
+ * <p>
+ * The instances are created by {@link SimplePrefs.Builder#buildInstance()}, and the static methods of
+ * {@link SimplePrefs} use the instance created by {@link SimplePrefs.Builder#build()}.
+ */
+@SuppressWarnings("unused")
+public final class Prefs {
+
+    /**
+     * Flush window of the atomic operations when write-behind mode is not enabled
+     */
+    private static final long ATOMIC_FLUSH_DELAY_MS = 1000;
+
+    private final String name;
+    private final PrefsStore engine;
+    private final PrefsStore store;
+    private final WriteBehindStore writeBehind;
+    private final PrefsMetrics metrics;
+    private final ObjectCache objects;
+    private final ChangeNotifier notifier;
+    private final AtomicStore atomics;
+    private final ExpiryStore expiry;
+    private final boolean multiProcess;
+    private final Object keyIndexLock = new Object();
+    // application context the memory callbacks are registered with, until shutdown
+    private Context context;
+    private volatile boolean keyIndexed;
+    private ConcurrentSkipListSet<String> keyIndex;
+
+    /**
+     * @param name               name of the instance, or null if it is not registered by name;
+     * @param engine             storage engine to keep the preferences;
+     * @param writeBehindDelayMs flush window of write-behind mode or 0 to write every change directly;
+     * @param primitiveCache     whether int, long, float and boolean values are cached in primitive arrays;
+     * @param metrics            whether the operations are recorded into metrics;
+     * @param codecs             codecs of the objects saved with {@link #putObject(String, Object)};
+     * @param notifier           delivers the changes to the subscribed listeners;
+     * @param cacheMaxEntries    number of keys kept in cache mode before the least recently used are evicted, 0 for no limit;
+     * @param cacheMaxBytes      approximate size of the values kept in cache mode, 0 for no limit;
+     * @param multiProcess       whether other processes write the engine too, the atomic operations
+     *                           and the time to live are then rejected;
+     */
+    Prefs(String name, PrefsStore engine, long writeBehindDelayMs, boolean primitiveCache, boolean metrics,
+          Map<Class<?>, Codec<?>> codecs, ChangeNotifier notifier, int cacheMaxEntries, long cacheMaxBytes,
+          boolean multiProcess) {
+        this.name = name;
+        this.engine = engine;
+        this.multiProcess = multiProcess;
+        this.notifier = notifier;
+        this.objects = new ObjectCache(codecs);
+        this.metrics = metrics ? new PrefsMetrics() : null;
+        // the flushes are recorded in front of the engine, so that the atomic flushes and the removals are included
+        final PrefsStore recorded = metrics ? new MetricsStore(engine, this.metrics, false, true) : engine;
+        if (writeBehindDelayMs > 0) {
+            this.writeBehind = new WriteBehindStore(recorded, writeBehindDelayMs);
+        } else {
+            this.writeBehind = null;
+        }
+        final PrefsStore written = writeBehind != null ? writeBehind : recorded;
+        final PrefsStore cached = primitiveCache ? new PrimitiveCacheStore(written) : written;
+        final RemovalListener removals = new RemovalListener() {
+            @Override
+            public void removed(Map<String, Object> removed) {
+                // null until this instance is constructed, when no cell exists yet
+                final AtomicStore cells = Prefs.this.atomics;
+                if (cells != null) {
+                    cells.removed(removed.keySet());
+                }
+                if (keyIndexed) {
+                    updateKeyIndex(false, removed);
+                }
+                if (Prefs.this.notifier.isObserved()) {
+                    Prefs.this.notifier.changed(false, removed.keySet());
+                }
+            }
+        };
+        this.expiry = new ExpiryStore(cached, removals);
+        // the evictions are written through the expiry store, so an evicted key loses its expiry time as well
+        final LruStore bounded = cacheMaxEntries > 0 || cacheMaxBytes > 0
+                ? new LruStore(expiry, cacheMaxEntries, cacheMaxBytes, removals) : null;
+        this.atomics = new AtomicStore(bounded != null ? bounded : expiry, bounded,
+                writeBehindDelayMs > 0 ? writeBehindDelayMs : ATOMIC_FLUSH_DELAY_MS);
+        this.store = metrics ? new MetricsStore(atomics, this.metrics, true, false) : atomics;
+    }
+
+    /**
+     * Updates an int value, see {@link #getAndUpdateInt(String, IntUpdater)}
+     */
+    public interface IntUpdater {
+
+        /**
+         * @param value the current value
+         * @return the new value, without side effects since it may be called again if another thread changes the value
+         */
+        int apply(int value);
+    }
+
+    /**
+     * Updates a long value, see {@link #getAndUpdateLong(String, LongUpdater)}
+     */
+    public interface LongUpdater {
+
+        /**
+         * @param value the current value
+         * @return the new value, without side effects since it may be called again if another thread changes the value
+         */
+        long apply(long value);
+    }
+
+    /**
+     * Updates a double value, see {@link #getAndUpdateDouble(String, DoubleUpdater)}
+     */
+    public interface DoubleUpdater {
+
+        /**
+         * @param value the current value
+         * @return the new value, without side effects since it may be called again if another thread changes the value
+         */
+        double apply(double value);
+    }
+
+    /**
+     * @return name of this instance, or null if it has no name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Flush the pending changes when the app goes to background, until this instance is shut down
+     *
+     * @param context any context of the app, its application context keeps the callbacks
+     */
+    synchronized void registerCallbacks(final Context context) {
+        this.context = context.getApplicationContext();
+        this.context.registerComponentCallbacks(atomics);
+        if (writeBehind != null) {
+            this.context.registerComponentCallbacks(writeBehind);
+        }
+    }
+
+    /**
+     * Write the pending changes, stop the background threads and release the memory callbacks,
+     * so that the application context does not keep this instance
+     */
+    void shutdown() {
+        synchronized (this) {
+            if (context != null) {
+                context.unregisterComponentCallbacks(atomics);
+                if (writeBehind != null) {
+                    context.unregisterComponentCallbacks(writeBehind);
+                }
+                context = null;
+            }
+        }
+        atomics.shutdown();
+        expiry.shutdown();
+        if (writeBehind != null) {
+            writeBehind.shutdown();
+        }
+        notifier.shutdown();
+    }
+
+    /**
+     * instantiate basic SharedPreference class;
+     *
+     * @return instance of sharedPreference;
+     * @throws IllegalStateException if this instance uses a storage engine other than SharedPreferences
+     */
+    @SuppressWarnings("WeakerAccess")
+    public SharedPreferences getPreference() {
+        final PrefsStore opened = engine instanceof CompressionStore ? ((CompressionStore) engine).getStore() : engine;
+        final PrefsStore loaded = opened instanceof AsyncLoadStore ? ((AsyncLoadStore) opened).await() : opened;
+        if (loaded instanceof SharedPreferencesStore) {
+            return ((SharedPreferencesStore) loaded).getSharedPreferences();
+        }
+        throw new IllegalStateException("Simple Prefs uses " + loaded.getClass().getSimpleName() + " storage engine, which is not backed by SharedPreferences.");
+    }
+
+    /**
+     * Return the storage engine which keeps the preferences
+     *
+     * @return instance of storage engine, including the write-behind buffer if it is enabled;
+     * @see SimplePrefs.Builder#setStore(PrefsStore)
+     */
+    @SuppressWarnings("WeakerAccess")
+    public PrefsStore getStore() {
+        return store;
+    }
+
+    /**
+     * Return the migration which moves the preferences of this instance to its storage engine
+     *
+     * @return the migration, or null if the preferences are not migrated
+     * @see SimplePrefs.Builder#setMigrationSource(PrefsStore)
+     */
+    public MigrationStore getMigration() {
+        return engine instanceof MigrationStore ? (MigrationStore) engine : null;
+    }
+
+    /**
+     * Write all the preferences into a compact snapshot, see {@link PrefsSnapshot}. The expiry times
+     * of the keys saved with a time to live are not exported;
+     *
+     * @param out stream to write the snapshot to, left open
+     * @return number of preferences exported
+     * @throws IOException if the stream fails
+     */
+    public int exportSnapshot(final OutputStream out) throws IOException {
+        return PrefsSnapshot.export(store, out);
+    }
+
+    /**
+     * Read the preferences of a snapshot written by {@link #exportSnapshot(OutputStream)}, and save them in
+     * chunks as they are read. The listeners are notified of every chunk.
+     *
+     * @param in    stream to read the snapshot from, left open
+     * @param clear remove all the preferences with the first chunk
+     * @return number of preferences imported
+     * @throws IOException if the stream fails or the snapshot is corrupt
+     */
+    public int importSnapshot(final InputStream in, final boolean clear) throws IOException {
+        return PrefsSnapshot.read(in, clear, new PrefsSnapshot.ChunkWriter() {
+            @Override
+            public void write(boolean clear, Map<String, Object> chunk) {
+                Prefs.this.write(clear, chunk, false);
+            }
+        });
+    }
+
+    /**
+     * Return the metrics of this instance, to take a snapshot or to listen to the flushes
+     *
+     * @return the metrics recorder
+     * @throws IllegalStateException if the metrics are not enabled
+     * @see SimplePrefs.Builder#setMetrics(boolean)
+     */
+    public PrefsMetrics getMetrics() {
+        if (metrics == null) {
+            throw new IllegalStateException("Simple Prefs metrics are not enabled. Please call Builder().setMetrics(true) to enable them.");
+        }
+        return metrics;
+    }
+
+    /**
+     * @return snapshot of the operation counts, latencies, flushed bytes and hottest keys of this instance
+     * @throws IllegalStateException if the metrics are not enabled
+     * @see SimplePrefs.Builder#setMetrics(boolean)
+     */
+    public PrefsMetrics.Snapshot metrics() {
+        return getMetrics().snapshot();
+    }
+
+    /**
+     * @return a map that contains all the key value pairs saved in the preference
+     * @see SharedPreferences#getAll()
+     */
+    public Map<String, ?> getAll() {
+        return store.getAll();
+    }
+
+    /**
+     * Pass every preference to the visitor with its typed value, without copying all the preferences into a map
+     * like {@link #getAll()} when the storage engine is a {@link VisitablePrefsStore}
+     *
+     * @param visitor receives the preferences
+     * @see #forEach(String, PrefsVisitor)
+     */
+    public void forEach(final PrefsVisitor visitor) {
+        forEach(null, visitor);
+    }
+
+    /**
+     * Pass every preference whose key starts with the prefix to the visitor with its typed value.
+     * The visitor must not write to the preferences.
+     *
+     * @param prefix  the key prefix, or null for all the preferences
+     * @param visitor receives the preferences
+     */
+    public void forEach(final String prefix, final PrefsVisitor visitor) {
+        PrefsVisitor.forEach(store, prefix, visitor);
+    }
+
+    /**
+     * Return the sorted keys starting with the prefix. The keys are kept in a sorted index, built on the first call
+     * and then updated by the writes made through this instance, so the view is live and costs no copy;
+     * the changes made directly to the underlying SharedPreferences or by other processes are not seen by it.
+     *
+     * @param prefix the key prefix, an empty prefix for all the keys
+     * @return read-only sorted view of the keys
+     */
+    public SortedSet<String> keys(final String prefix) {
+        final SortedSet<String> index = keyIndex();
+        final String end = prefixEnd(prefix);
+        return Collections.unmodifiableSortedSet(end == null ? index.tailSet(prefix) : index.subSet(prefix, end));
+    }
+
+    /**
+     * @return the smallest string greater than all the strings starting with the prefix, or null if there is none
+     */
+    static String prefixEnd(final String prefix) {
+        for (int i = prefix.length() - 1; i >= 0; i--) {
+            final char c = prefix.charAt(i);
+            if (c != Character.MAX_VALUE) {
+                return prefix.substring(0, i) + (char) (c + 1);
+            }
+        }
+        return null;
+    }
+
+    private SortedSet<String> keyIndex() {
+        synchronized (keyIndexLock) {
+            if (keyIndex == null) {
+                // set before the keys are read, so that a write made meanwhile is indexed in updateKeyIndex
+                keyIndexed = true;
+                final ConcurrentSkipListSet<String> index = new ConcurrentSkipListSet<>();
+                forEach(null, new PrefsVisitor() {
+                    @Override
+                    public void onInt(String key, int value) {
+                        index.add(key);
+                    }
+
+                    @Override
+                    public void onLong(String key, long value) {
+                        index.add(key);
+                    }
+
+                    @Override
+                    public void onFloat(String key, float value) {
+                        index.add(key);
+                    }
+
+                    @Override
+                    public void onBoolean(String key, boolean value) {
+                        index.add(key);
+                    }
+
+                    @Override
+                    public void onString(String key, String value) {
+                        index.add(key);
+                    }
+
+                    @Override
+                    public void onStringSet(String key, Set<String> values) {
+                        index.add(key);
+                    }
+                });
+                keyIndex = index;
+            }
+            return keyIndex;
+        }
+    }
+
+    private void updateKeyIndex(final boolean clear, final Map<String, Object> changes) {
+        synchronized (keyIndexLock) {
+            if (keyIndex == null) {
+                return;
+            }
+            if (clear) {
+                keyIndex.clear();
+            }
+            for (Map.Entry<String, Object> entry : changes.entrySet()) {
+                if (entry.getValue() == null) {
+                    keyIndex.remove(entry.getKey());
+                } else {
+                    keyIndex.add(entry.getKey());
+                }
+            }
+        }
+    }
+
+    /**
+     * Return int value for key from preference;
+     *
+     * @param key      name of the preference to retrieve;
+     * @param defValue default value if the value does not exist;
+     * @return preference value if it exists or default value;
+     * @throws ClassCastException if the value exists but not int type
+     * @see android.content.SharedPreferences#getInt(String, int);
+     */
+
+    public int getInt(final String key, final int defValue) {
+        return store.getInt(key, defValue);
+    }
+
+    /**
+     * Retrieve the saved int value if the key exists or 0 if the key does not exist
+     *
+     * @param key the name of preference to retrieve
+     * @return retrieves the value of preference if it exists or 0
+     * @throws ClassCastException if the key exists with this name but its value is not int
+     * @see SharedPreferences#getInt(String, int)
+     */
+    public int getInt(final String key) {
+        return getInt(key, 0);
+    }
+
+    /**
+     * Retrieves a saved boolean value
+     *
+     * @param key      key of preference to retrieve
+     * @param defValue value to return, if the key does not exist
+     * @return preference value if it exists or defValue if it does not.
+     * @throws ClassCastException if there is a preference with this name that is not a boolean.
+     * @see android.content.SharedPreferences#getBoolean(String, boolean)
+     */
+    public boolean getBoolean(final String key, final boolean defValue) {
+        return store.getBoolean(key, defValue);
+    }
+
+    /**
+     * return the value of the preference if it exists, or return false;
+     *
+     * @param key name of the preference to return
+     * @return preference value if it exists or false it does not exist
+     * @throws ClassCastException if there is a preference with this name that is not a boolean.
+     * @see android.content.SharedPreferences#getBoolean(String, boolean)
+     */
+    public boolean getBoolean(final String key) {
+        return getBoolean(key, false);
+    }
+
+    /**
+     * Retrieve saved long value if it exists or defValue
+     *
+     * @param key      name of preference to retrieve
+     * @param defValue value if the preference does not exist
+     * @return preference value if it exist or defValue
+     * @throws ClassCastException if there is a preference with this name that is not a long.
+     * @see android.content.SharedPreferences#getLong(String, long)
+     */
+    public long getLong(final String key, final long defValue) {
+        return store.getLong(key, defValue);
+    }
+
+    /**
+     * Retrieve saved long value if it exists or 0
+     *
+     * @param key name of preference to retrieve
+     * @return preference value if it exist or 0
+     * @throws ClassCastException if there is a preference with this name that is not a long.
+     * @see android.content.SharedPreferences#getLong(String, long)
+     */
+
+    public long getLong(final String key) {
+        return getLong(key, 0L);
+    }
+
+    /**
+     * returns the double that has been saved as long raw bits in long preference
+     *
+     * @param key      name of preference to retrieve
+     * @param defValue value to return if the preference does not exist
+     * @return double value that has been saved as long raw bits or default if the preference does not exist
+     * @throws ClassCastException if there is a preference with this name that is not a long.
+     * @see android.content.SharedPreferences#getLong(String, long)
+     */
+    public double getDouble(final String key, final double defValue) {
+        return Double.longBitsToDouble(getLong(key, Double.doubleToLongBits(defValue)));
+    }
+
+    /**
+     * Retrieve the double that has been saved as long raw bits in long preference
+     * return 0 if the preference does not exist
+     *
+     * @param key name of preference to retrieve
+     * @return double value that has been saved as long raw bits or default if the preference does not exist
+     * @throws ClassCastException if there is a preference with this name that is not a long.
+     * @see android.content.SharedPreferences#getLong(String, long)
+     */
+    public double getDouble(final String key) {
+        return Double.longBitsToDouble(getLong(key, Double.doubleToLongBits(0.0d)));
+    }
+
+
+    /**
+     * Retrieve saved float value
+     *
+     * @param key      name of the preference to retrieve
+     * @param defValue value to return if the preference does not exist
+     * @return returns preference value if it exists or defValue if it does not exists
+     * @throws ClassCastException if there is a preference with this name that is not a float.
+     * @see android.content.SharedPreferences#getFloat(String, float)
+     */
+    public float getFloat(final String key, final float defValue) {
+        return store.getFloat(key, defValue);
+    }
+
+    /**
+     * Retrieve saved float value if it exists or 0
+     *
+     * @param key name of the preference to retrieve
+     * @return return preference value or 0 if it does not exist
+     * @throws ClassCastException if there is a preference with this name that is not a float.
+     * @see android.content.SharedPreferences#getFloat(String, float)
+     */
+    public float getFloat(final String key) {
+        return getFloat(key, 0.0f);
+    }
+
+    /**
+     * Retrieve the saved String value
+     *
+     * @param key      name of the preference to retrieve
+     * @param defValue value to return if the preference does not exist
+     * @return saved String value or defValue if it does not exist;
+     * @throws ClassCastException if there is a preference with this name that is not a String.
+     * @see android.content.SharedPreferences#getString(String, String)
+     */
+    public String getString(final String key, final String defValue) {
+        return store.getString(key, defValue);
+    }
+
+    /**
+     * Retrieve a set of strings from preference
+     * @param key name of preference string
+     * @param defValues values to return if the preference does not exist
+     * @return a set of string or defValues if the preference does not exist
+     * @throws ClassCastException if there is a preference with this name that is not a Set.
+     * @see android.content.SharedPreferences#getStringSet(String, java.util.Set
+     */
+
+    @SuppressWarnings("WeakerAccess")
+    public Set<String> getStringSet(final String key, final Set<String> defValues){
+        return store.getStringSet(key, defValues);
+    }
+
+    /**
+     * Retrieve the saved String value
+     *
+     * @param key name of the preference to retrieve
+     * @return saved String value or emptyString if it does not exist;
+     * @throws ClassCastException if there is a preference with this name that is not a String.
+     * @see android.content.SharedPreferences#getString(String, String)
+     */
+    public String getString(final String key) {
+        return getString(key, "");
+    }
+
+
+    /**
+     * Save long value for preference
+     *
+     * @param key   name of preference to save or modify
+     * @param value new value of preference to save
+     * @see android.content.SharedPreferences.Editor#putLong(String, long)
+     */
+    public void putLong(final String key, final long value) {
+        save(key, value);
+    }
+
+    /**
+     * Save int value for preference
+     *
+     * @param key   name of preference to save or modify
+     * @param value new value of preference to save
+     * @see android.content.SharedPreferences.Editor#putInt(String, int)
+     */
+
+    public void putInt(final String key, final int value) {
+        save(key, value);
+    }
+
+    /**
+     * Save long value as long raw bits value
+     *
+     * @param key   name of preference to save or modify
+     * @param value new value of preference to save
+     * @see android.content.SharedPreferences.Editor#putLong(String, long)
+     */
+
+    public void putDouble(final String key, final double value) {
+        save(key, Double.doubleToLongBits(value));
+    }
+
+    /**
+     * Save float value for preference
+     *
+     * @param key   name of preference to save or modify
+     * @param value new value of preference to save
+     * @see android.content.SharedPreferences.Editor#putFloat(String, float)
+     */
+    public void putFloat(final String key, final float value) {
+        save(key, value);
+    }
+
+    /**
+     * Save string value for preference
+     *
+     * @param key   name of preference to save or modify
+     * @param value new value of preference to save
+     * @see android.content.SharedPreferences.Editor#putString(String, String)
+     */
+    public void putString(final String key, final String value) {
+        save(key, value);
+    }
+
+    /**
+     * Save boolean value for preference
+     *
+     * @param key   name of preference to save or modify
+     * @param value new value of preference to save
+     * @see android.content.SharedPreferences.Editor#putBoolean(String, boolean)
+     */
+    public void putBoolean(final String key, final boolean value) {
+        save(key, value);
+    }
+
+
+
+    /**
+     * saves a set of strings
+     * @param key name of the preference to say
+     * @param values values of the preference to get
+     * @see android.content.SharedPreferences.Editor#putStringSet(String, java.util.Set)
+     */
+
+    @SuppressWarnings("WeakerAccess")
+    public void putStringSet(final String key, final Set<String> values) {
+        save(key, values);
+    }
+
+    /**
+     * Save string value which expires after the time to live. Once it expires, the reads return the default value
+     * as if it had been removed, and it is removed in background; Saving the key again without a time to live
+     * makes it permanent.
+     *
+     * @param key   name of preference to save or modify
+     * @param value new value of preference to save
+     * @param ttlMs time to live in milliseconds
+     * @throws IllegalArgumentException      if the time to live is not positive
+     * @throws UnsupportedOperationException in the multi-process mode
+     */
+    public void putString(final String key, final String value, final long ttlMs) {
+        save(key, value != null ? new ExpiryStore.Expiring(value, expiresAt(ttlMs)) : null);
+    }
+
+    /**
+     * Save a set of strings which expires after the time to live
+     *
+     * @see #putString(String, String, long)
+     */
+    public void putStringSet(final String key, final Set<String> values, final long ttlMs) {
+        save(key, values != null ? new ExpiryStore.Expiring(values, expiresAt(ttlMs)) : null);
+    }
+
+    /**
+     * Save int value which expires after the time to live
+     *
+     * @see #putString(String, String, long)
+     */
+    public void putInt(final String key, final int value, final long ttlMs) {
+        save(key, new ExpiryStore.Expiring(value, expiresAt(ttlMs)));
+    }
+
+    /**
+     * Save long value which expires after the time to live
+     *
+     * @see #putString(String, String, long)
+     */
+    public void putLong(final String key, final long value, final long ttlMs) {
+        save(key, new ExpiryStore.Expiring(value, expiresAt(ttlMs)));
+    }
+
+    /**
+     * Save double value as long raw bits value, which expires after the time to live
+     *
+     * @see #putString(String, String, long)
+     */
+    public void putDouble(final String key, final double value, final long ttlMs) {
+        save(key, new ExpiryStore.Expiring(Double.doubleToLongBits(value), expiresAt(ttlMs)));
+    }
+
+    /**
+     * Save float value which expires after the time to live
+     *
+     * @see #putString(String, String, long)
+     */
+    public void putFloat(final String key, final float value, final long ttlMs) {
+        save(key, new ExpiryStore.Expiring(value, expiresAt(ttlMs)));
+    }
+
+    /**
+     * Save boolean value which expires after the time to live
+     *
+     * @see #putString(String, String, long)
+     */
+    public void putBoolean(final String key, final boolean value, final long ttlMs) {
+        save(key, new ExpiryStore.Expiring(value, expiresAt(ttlMs)));
+    }
+
+    /**
+     * @return the wall clock time the value saved now with the time to live expires at
+     * @throws IllegalArgumentException if the time to live is not positive
+     */
+    static long expiresAt(final long ttlMs) {
+        if (ttlMs <= 0)
+            throw new IllegalArgumentException("Time to live must be positive: " + ttlMs);
+        return System.currentTimeMillis() + ttlMs;
+    }
+
+    /**
+     * Check if a value is stored for the given key
+     *
+     * @param key name of the preference
+     * @return {@code true} if the preference exists or {@code false};
+     * @see android.content.SharedPreferences#contains(String)
+     */
+    public boolean contains(final String key) {
+        return store.contains(key);
+    }
+
+    /**
+     * Remove the key value pair
+     * @param key value to remove from the preference
+     * @see Editor##remove(String)
+     */
+    public void remove(final String key){
+        save(key, null);
+    }
+
+    /**
+     * Save an object in the compact binary form written by the codec. Saving null removes the key;
+     * The object is kept as the decoded value of the key, it must not be changed after it is saved.
+     *
+     * @param key   name of preference to save or modify
+     * @param value new value of preference to save
+     * @param codec writes the object
+     * @throws RuntimeException if the codec fails to write the object
+     * @see #getObject(String, Codec)
+     */
+    public <T> void putObject(final String key, final T value, final Codec<T> codec) {
+        save(key, objects.encode(key, value, codec));
+    }
+
+    /**
+     * Save an object with the codec registered for its class. Saving null removes the key;
+     *
+     * @param key   name of preference to save or modify
+     * @param value new value of preference to save, null removes the key
+     * @throws IllegalArgumentException if no codec is registered for the class of the object
+     * @see SimplePrefs.Builder#registerCodec(Class, Codec)
+     */
+    @SuppressWarnings("unchecked")
+    public <T> void putObject(final String key, final T value) {
+        if (value == null) {
+            remove(key);
+            return;
+        }
+        putObject(key, value, objects.codec((Class<T>) value.getClass()));
+    }
+
+    /**
+     * Return the object saved with {@link #putObject(String, Object, Codec)}. The decoded object is cached
+     * until the preference changes, so the repeated reads return the same object without decoding it again;
+     * it must not be changed by the caller.
+     *
+     * @param key   name of the preference to retrieve;
+     * @param codec reads the object
+     * @return the object or null if the preference does not exist
+     * @throws ClassCastException if the value exists but not string type
+     * @throws RuntimeException   if the codec fails to read the object
+     */
+    public <T> T getObject(final String key, final Codec<T> codec) {
+        return objects.decode(key, store.getString(key, null), codec);
+    }
+
+    /**
+     * Return the object saved with the codec registered for the type
+     *
+     * @param key  name of the preference to retrieve;
+     * @param type class the codec is registered for
+     * @return the object or null if the preference does not exist
+     * @throws IllegalArgumentException if no codec is registered for the type
+     * @see #getObject(String, Codec)
+     */
+    public <T> T getObject(final String key, final Class<T> type) {
+        return getObject(key, objects.codec(type));
+    }
+
+    /**
+     * @return the string to save for the object
+     */
+    <T> String encode(final String key, final T value, final Codec<T> codec) {
+        return objects.encode(key, value, codec);
+    }
+
+    private void save(final String key, final Object value) {
+        final Map<String, Object> change = Collections.singletonMap(key, value);
+        checkShared(change);
+        store.write(false, change, false);
+        if (keyIndexed) {
+            updateKeyIndex(false, change);
+        }
+        if (notifier.isObserved()) {
+            notifier.changed(false, Collections.singleton(key));
+        }
+    }
+
+    /**
+     * Atomically add the delta to the int value, 0 if it does not exist. The value is changed in memory without
+     * a lock, and written to the storage together with the other atomic changes once per flush window,
+     * see {@link #flush()};
+     *
+     * @param key   name of the preference
+     * @param delta the value to add
+     * @return the updated value
+     * @throws ClassCastException            if the value exists but not int type
+     * @throws UnsupportedOperationException in the multi-process mode
+     */
+    public int incrementAndGet(final String key, final int delta) {
+        final long start = metrics != null ? System.nanoTime() : 0;
+        try {
+            final AtomicStore.Cell cell = cell(key, AtomicStore.INT);
+            while (true) {
+                final long current = cell.get();
+                // the cell keeps the int in a long, so the int overflow is done explicitly
+                final int updated = (int) current + delta;
+                if (cell.compareAndSet(current, updated)) {
+                    changed(key, cell);
+                    return updated;
+                }
+            }
+        } finally {
+            recordAtomic(key, start);
+        }
+    }
+
+    /**
+     * Atomically add the delta to the long value, 0 if it does not exist
+     *
+     * @param key   name of the preference
+     * @param delta the value to add
+     * @return the updated value
+     * @throws ClassCastException if the value exists but not long type
+     * @see #incrementAndGet(String, int)
+     */
+    public long incrementAndGet(final String key, final long delta) {
+        final long start = metrics != null ? System.nanoTime() : 0;
+        try {
+            final AtomicStore.Cell cell = cell(key, AtomicStore.LONG);
+            final long updated = cell.addAndGet(delta);
+            changed(key, cell);
+            return updated;
+        } finally {
+            recordAtomic(key, start);
+        }
+    }
+
+    /**
+     * Atomically add the delta to the double value saved with putDouble, 0 if it does not exist
+     *
+     * @param key   name of the preference
+     * @param delta the value to add
+     * @return the updated value
+     * @throws ClassCastException if the value exists but not long type
+     * @see #incrementAndGet(String, int)
+     */
+    public double incrementAndGet(final String key, final double delta) {
+        final long start = metrics != null ? System.nanoTime() : 0;
+        try {
+            final AtomicStore.Cell cell = cell(key, AtomicStore.LONG);
+            while (true) {
+                final long current = cell.get();
+                final double updated = Double.longBitsToDouble(current) + delta;
+                if (cell.compareAndSet(current, Double.doubleToLongBits(updated))) {
+                    changed(key, cell);
+                    return updated;
+                }
+            }
+        } finally {
+            recordAtomic(key, start);
+        }
+    }
+
+    /**
+     * Atomically set the int value to the update, if it is equal to the expected value
+     *
+     * @param key    name of the preference
+     * @param expect the expected value, 0 matches a missing value
+     * @param update the new value
+     * @return {@code true} if the value was updated
+     * @throws ClassCastException if the value exists but not int type
+     * @see #incrementAndGet(String, int)
+     */
+    public boolean compareAndSet(final String key, final int expect, final int update) {
+        final long start = metrics != null ? System.nanoTime() : 0;
+        try {
+            final AtomicStore.Cell cell = cell(key, AtomicStore.INT);
+            if (cell.compareAndSet(expect, update)) {
+                changed(key, cell);
+                return true;
+            }
+            return false;
+        } finally {
+            recordAtomic(key, start);
+        }
+    }
+
+    /**
+     * Atomically set the long value to the update, if it is equal to the expected value
+     *
+     * @param key    name of the preference
+     * @param expect the expected value, 0 matches a missing value
+     * @param update the new value
+     * @return {@code true} if the value was updated
+     * @throws ClassCastException if the value exists but not long type
+     * @see #incrementAndGet(String, int)
+     */
+    public boolean compareAndSet(final String key, final long expect, final long update) {
+        final long start = metrics != null ? System.nanoTime() : 0;
+        try {
+            final AtomicStore.Cell cell = cell(key, AtomicStore.LONG);
+            if (cell.compareAndSet(expect, update)) {
+                changed(key, cell);
+                return true;
+            }
+            return false;
+        } finally {
+            recordAtomic(key, start);
+        }
+    }
+
+    /**
+     * Atomically set the double value to the update, if it is equal to the expected value.
+     * The values are compared by their bits, like {@link Double#equals(Object)}.
+     *
+     * @param key    name of the preference
+     * @param expect the expected value, 0 matches a missing value
+     * @param update the new value
+     * @return {@code true} if the value was updated
+     * @throws ClassCastException if the value exists but not long type
+     * @see #incrementAndGet(String, int)
+     */
+    public boolean compareAndSet(final String key, final double expect, final double update) {
+        final long start = metrics != null ? System.nanoTime() : 0;
+        try {
+            final AtomicStore.Cell cell = cell(key, AtomicStore.LONG);
+            if (cell.compareAndSet(Double.doubleToLongBits(expect), Double.doubleToLongBits(update))) {
+                changed(key, cell);
+                return true;
+            }
+            return false;
+        } finally {
+            recordAtomic(key, start);
+        }
+    }
+
+    /**
+     * Atomically replace the int value with the result of the updater, 0 is passed if the value does not exist
+     *
+     * @param key     name of the preference
+     * @param updater computes the new value
+     * @return the previous value
+     * @throws ClassCastException if the value exists but not int type
+     * @see #incrementAndGet(String, int)
+     */
+    public int getAndUpdateInt(final String key, final IntUpdater updater) {
+        final long start = metrics != null ? System.nanoTime() : 0;
+        try {
+            final AtomicStore.Cell cell = cell(key, AtomicStore.INT);
+            while (true) {
+                final long current = cell.get();
+                if (cell.compareAndSet(current, updater.apply((int) current))) {
+                    changed(key, cell);
+                    return (int) current;
+                }
+            }
+        } finally {
+            recordAtomic(key, start);
+        }
+    }
+
+    /**
+     * Atomically replace the long value with the result of the updater, 0 is passed if the value does not exist
+     *
+     * @param key     name of the preference
+     * @param updater computes the new value
+     * @return the previous value
+     * @throws ClassCastException if the value exists but not long type
+     * @see #incrementAndGet(String, int)
+     */
+    public long getAndUpdateLong(final String key, final LongUpdater updater) {
+        final long start = metrics != null ? System.nanoTime() : 0;
+        try {
+            final AtomicStore.Cell cell = cell(key, AtomicStore.LONG);
+            while (true) {
+                final long current = cell.get();
+                if (cell.compareAndSet(current, updater.apply(current))) {
+                    changed(key, cell);
+                    return current;
+                }
+            }
+        } finally {
+            recordAtomic(key, start);
+        }
+    }
+
+    /**
+     * Atomically replace the double value with the result of the updater, 0 is passed if the value does not exist
+     *
+     * @param key     name of the preference
+     * @param updater computes the new value
+     * @return the previous value
+     * @throws ClassCastException if the value exists but not long type
+     * @see #incrementAndGet(String, int)
+     */
+    public double getAndUpdateDouble(final String key, final DoubleUpdater updater) {
+        final long start = metrics != null ? System.nanoTime() : 0;
+        try {
+            final AtomicStore.Cell cell = cell(key, AtomicStore.LONG);
+            while (true) {
+                final long current = cell.get();
+                final double previous = Double.longBitsToDouble(current);
+                if (cell.compareAndSet(current, Double.doubleToLongBits(updater.apply(previous)))) {
+                    changed(key, cell);
+                    return previous;
+                }
+            }
+        } finally {
+            recordAtomic(key, start);
+        }
+    }
+
+    /**
+     * Return the cell of the atomic operation on the key
+     *
+     * @throws UnsupportedOperationException in the multi-process mode, the cell would overwrite
+     *                                       the changes of the other processes
+     */
+    private AtomicStore.Cell cell(final String key, final byte type) {
+        if (multiProcess) {
+            throw new UnsupportedOperationException("Simple Prefs does not support the atomic operations in the multi-process mode.");
+        }
+        return atomics.cell(key, type);
+    }
+
+    /**
+     * @throws UnsupportedOperationException if a value with a time to live is written in the multi-process mode,
+     *                                       the expiry times are loaded once and would miss those of the other processes
+     */
+    private void checkShared(final Map<String, Object> changes) {
+        if (!multiProcess) {
+            return;
+        }
+        for (Object value : changes.values()) {
+            if (value instanceof ExpiryStore.Expiring) {
+                throw new UnsupportedOperationException("Simple Prefs does not support the time to live in the multi-process mode.");
+            }
+        }
+    }
+
+    /**
+     * Record the atomic operation into the metrics, the atomic operations do not pass through the store
+     * which records the other operations
+     */
+    private void recordAtomic(final String key, final long start) {
+        if (metrics != null) {
+            metrics.record(PrefsMetrics.Operation.ATOMIC, System.nanoTime() - start);
+            metrics.recordKey(key);
+        }
+    }
+
+    private void changed(final String key, final AtomicStore.Cell cell) {
+        atomics.changed(key, cell);
+        if (keyIndexed) {
+            updateKeyIndex(false, Collections.<String, Object>singletonMap(key, cell.boxed()));
+        }
+        if (notifier.isObserved()) {
+            notifier.changed(false, Collections.singleton(key));
+        }
+    }
+
+    /**
+     * Listen to the changes of one key made through this instance. The changes are delivered in batches,
+     * off the writing thread, see {@link SimplePrefs.Builder#setChangeExecutor(java.util.concurrent.Executor)};
+     * The listener is held by a weak reference, keep a reference to it while it should receive the changes.
+     *
+     * @param key      name of the preference to listen to
+     * @param listener receives the changes
+     * @see #unsubscribe(PrefsChangeListener)
+     */
+    public void subscribe(final String key, final PrefsChangeListener listener) {
+        notifier.subscribe(listener, key, null);
+    }
+
+    /**
+     * Listen to the changes of all the keys starting with the prefix
+     *
+     * @param prefix   the key prefix to listen to
+     * @param listener receives the changes
+     * @see #subscribe(String, PrefsChangeListener)
+     */
+    public void subscribePrefix(final String prefix, final PrefsChangeListener listener) {
+        notifier.subscribe(listener, null, prefix);
+    }
+
+    /**
+     * Listen to the changes of all the keys
+     *
+     * @param listener receives the changes
+     * @see #subscribe(String, PrefsChangeListener)
+     */
+    public void subscribeAll(final PrefsChangeListener listener) {
+        notifier.subscribe(listener, null, null);
+    }
+
+    /**
+     * Stop delivering the changes to the listener, from all its subscriptions
+     *
+     * @param listener the subscribed listener
+     */
+    public void unsubscribe(final PrefsChangeListener listener) {
+        notifier.unsubscribe(listener);
+    }
+
+    /**
+     * Write all the changes to the store at once
+     *
+     * @param clear   remove all the preferences before writing the changes
+     * @param changes new values of preferences, null value removes the key
+     * @param sync    wait for the disk write
+     * @return {@code true} if the changes were written or queued successfully
+     * @see PrefsStore#write(boolean, Map, boolean)
+     */
+    boolean write(final boolean clear, final Map<String, Object> changes, final boolean sync) {
+        checkShared(changes);
+        final boolean written = store.write(clear, changes, sync);
+        if (keyIndexed) {
+            updateKeyIndex(clear, changes);
+        }
+        if (notifier.isObserved()) {
+            notifier.changed(clear, changes.keySet());
+        }
+        return written;
+    }
+
+    /**
+     * Write all the changes waiting in write-behind mode and wait for the disk write.
+     * Call it when the app goes to background, if the changes must survive the process death;
+     * The instance also flushes by itself when the app UI is hidden.
+     * It does nothing if write-behind mode is not enabled.
+     *
+     * @return {@code true} if the pending changes were written successfully
+     * @see SimplePrefs.Builder#setWriteBehind(long)
+     */
+    public boolean flush() {
+        final boolean atomicsWritten = atomics.flush(writeBehind == null);
+        return (writeBehind == null || writeBehind.flush()) && atomicsWritten;
+    }
+
+
+    /**
+     * Removes all the saved key and value pairs from preference
+     *
+     * @return editor
+     * @see android.content.SharedPreferences.Editor#clear()
+     */
+    public Editor clear() {
+        final Batch batch = beginBatch().clear();
+        batch.apply();
+        return batch;
+    }
+
+    /**
+     * Start a batch of changes which are written with a single editor on {@link Batch#apply()}
+     * or {@link Batch#commit()}. Repeated writes to the same key inside the batch are coalesced.
+     *
+     * @return new empty batch
+     * @see Batch
+     */
+    public Batch beginBatch() {
+        return new Batch(this);
+    }
+
+    /**
+     * Run the block and apply all the changes it records with a single editor
+     *
+     * @param block records the changes into the given batch
+     * @see Batch#apply()
+     */
+    public void batch(final Batch.Block block) {
+        final Batch batch = beginBatch();
+        block.run(batch);
+        batch.apply();
+    }
+
+    /**
+     * Returns editor for the preferences, which writes all its changes to the storage engine at once
+     *
+     * @return editor
+     * @see Batch
+     */
+    public Editor edit() {
+        return beginBatch();
+    }
+}
@@ -0,0 +1,19 @@
+package com.wideinc.library.simpleprefs;
+
+import java.util.Set;
+
+/**
+ * Receives the changes of the preferences in batches, see {@link Prefs#subscribe(String, PrefsChangeListener)}.
+ * The listeners are held by weak references, so the subscriber must keep a reference to its listener
+ * for as long as it wants to receive the changes.
+ */
+public interface PrefsChangeListener {
+
+    /**
+     * Called on the change executor with all the changes made since the previous call
+     *
+     * @param keys    the changed keys the listener is subscribed to, may be empty if the preferences were cleared
+     * @param cleared whether all the preferences were cleared by one of the changes
+     */
+    void onPrefsChanged(Set<String> keys, boolean cleared);
+}
@@ -0,0 +1,358 @@
+package com.wideinc.library.simpleprefs;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records how often every operation is called, how long it takes, how many bytes every flush writes
+ * and which keys are used the most. The latencies are kept in log-linear histogram buckets, every power
+ * of two is split into 8 buckets, so a percentile is accurate to about 12%.
+ * <p>
+ * The uses of at most {@link #MAX_KEYS} keys are counted at a time. Once there are more, the least used half
+ * is forgotten, so the hottest keys are approximate: a key used again after it was forgotten counts from zero.
+ * <p>
+ * The metrics are recorded only when enabled with {@link SimplePrefs.Builder#setMetrics(boolean)},
+ * otherwise the operations are not instrumented at all.
+ *
+ * @see SimplePrefs#metrics()
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class PrefsMetrics {
+
+    /**
+     * The recorded operations. A flush is the write which reaches the storage engine, it is the same as
+     * the write unless write-behind mode is enabled, and it also includes the values of the atomic operations
+     * and the removals of the expired and evicted keys. An atomic operation is an increment, a compare-and-set
+     * or an update of a number, its value is flushed together with the other atomic changes.
+     */
+    public enum Operation {
+        GET_INT, GET_LONG, GET_FLOAT, GET_BOOLEAN, GET_STRING, GET_STRING_SET, CONTAINS, GET_ALL, WRITE, FLUSH, ATOMIC
+    }
+
+    /**
+     * Receives every flush to the storage engine, on the thread which flushes
+     */
+    public interface Listener {
+
+        /**
+         * @param keys          number of changed keys written
+         * @param bytes         approximate size of the written keys and values
+         * @param durationNanos time taken by the write
+         */
+        void onFlush(int keys, long bytes, long durationNanos);
+    }
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+    private static final int HOTTEST_KEYS = 10;
+    static final int MAX_KEYS = 1024;
+    private static final Operation[] OPERATIONS = Operation.values();
+
+    private final AtomicLongArray counts = new AtomicLongArray(OPERATIONS.length);
+    private final AtomicLongArray totalNanos = new AtomicLongArray(OPERATIONS.length);
+    private final AtomicLongArray buckets = new AtomicLongArray(OPERATIONS.length * BUCKETS);
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong maxFlushBytes = new AtomicLong();
+    private final ConcurrentHashMap<String, AtomicLong> keyCounts = new ConcurrentHashMap<>();
+    private final AtomicBoolean pruning = new AtomicBoolean();
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    PrefsMetrics() {
+    }
+
+    /**
+     * @return index of the histogram bucket of the value
+     */
+    static int bucket(final long value) {
+        if (value < SUB_BUCKETS) {
+            return value < 0 ? 0 : (int) value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        final int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return the highest value which falls into the bucket
+     */
+    static long bucketMax(final int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        final int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        final long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BITS);
+        return lowest + (1L << (exponent - SUB_BITS)) - 1;
+    }
+
+    void record(final Operation operation, final long durationNanos) {
+        final int index = operation.ordinal();
+        counts.incrementAndGet(index);
+        totalNanos.addAndGet(index, durationNanos);
+        buckets.incrementAndGet(index * BUCKETS + bucket(durationNanos));
+    }
+
+    void recordKey(final String key) {
+        AtomicLong count = keyCounts.get(key);
+        if (count == null) {
+            if (keyCounts.size() >= MAX_KEYS) {
+                prune();
+            }
+            final AtomicLong created = new AtomicLong();
+            count = keyCounts.putIfAbsent(key, created);
+            if (count == null) {
+                count = created;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * Forget the least used half of the counted keys, on one thread at a time
+     */
+    private void prune() {
+        if (!pruning.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            final List<Map.Entry<String, Long>> keys = sortedKeys();
+            for (int i = MAX_KEYS / 2; i < keys.size(); i++) {
+                keyCounts.remove(keys.get(i).getKey());
+            }
+        } finally {
+            pruning.set(false);
+        }
+    }
+
+    /**
+     * @return number of keys whose uses are counted
+     */
+    int countedKeys() {
+        return keyCounts.size();
+    }
+
+    /**
+     * @return the counted keys with their counts, the most used first
+     */
+    private List<Map.Entry<String, Long>> sortedKeys() {
+        final List<Map.Entry<String, Long>> keys = new ArrayList<>(keyCounts.size());
+        for (Map.Entry<String, AtomicLong> entry : keyCounts.entrySet()) {
+            keys.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), entry.getValue().get()));
+        }
+        Collections.sort(keys, new Comparator<Map.Entry<String, Long>>() {
+            @Override
+            public int compare(Map.Entry<String, Long> first, Map.Entry<String, Long> second) {
+                return second.getValue().compareTo(first.getValue());
+            }
+        });
+        return keys;
+    }
+
+    void recordFlush(final Map<String, Object> changes, final long durationNanos) {
+        record(Operation.FLUSH, durationNanos);
+        long bytes = 0;
+        for (Map.Entry<String, Object> entry : changes.entrySet()) {
+            bytes += sizeOf(entry.getKey()) + sizeOf(entry.getValue());
+        }
+        bytesWritten.addAndGet(bytes);
+        long max;
+        while (bytes > (max = maxFlushBytes.get()) && !maxFlushBytes.compareAndSet(max, bytes)) {
+            // retry until the maximum is updated or a bigger flush is recorded
+        }
+        for (Listener listener : listeners) {
+            listener.onFlush(changes.size(), bytes, durationNanos);
+        }
+    }
+
+    /**
+     * @return approximate number of bytes the value takes in the storage, the UTF-8 length of strings
+     */
+    static long sizeOf(final Object value) {
+        if (value == null) {
+            return 0;
+        } else if (value instanceof String) {
+            final String string = (String) value;
+            long bytes = 0;
+            for (int i = 0; i < string.length(); i++) {
+                final char c = string.charAt(i);
+                bytes += c < 0x80 ? 1 : c < 0x800 || (c >= 0xD800 && c <= 0xDFFF) ? 2 : 3;
+            }
+            return bytes;
+        } else if (value instanceof Set) {
+            long bytes = 0;
+            for (Object item : (Set<?>) value) {
+                bytes += sizeOf(item);
+            }
+            return bytes;
+        } else if (value instanceof Long) {
+            return 8;
+        } else if (value instanceof Boolean) {
+            return 1;
+        }
+        return 4;
+    }
+
+    /**
+     * @param listener receives every flush to the storage engine
+     */
+    public void addListener(final Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @param listener listener added with {@link #addListener(Listener)}
+     */
+    public void removeListener(final Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Forget everything recorded so far
+     */
+    public void reset() {
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            counts.set(i, 0);
+            totalNanos.set(i, 0);
+        }
+        for (int i = 0; i < buckets.length(); i++) {
+            buckets.set(i, 0);
+        }
+        bytesWritten.set(0);
+        maxFlushBytes.set(0);
+        keyCounts.clear();
+    }
+
+    /**
+     * Copy the recorded metrics. The operations running during the copy may be partially included.
+     *
+     * @return the recorded metrics
+     */
+    public Snapshot snapshot() {
+        final long[] counts = new long[OPERATIONS.length];
+        final long[] totalNanos = new long[OPERATIONS.length];
+        final long[] buckets = new long[this.buckets.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = this.counts.get(i);
+            totalNanos[i] = this.totalNanos.get(i);
+        }
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = this.buckets.get(i);
+        }
+        final List<Map.Entry<String, Long>> keys = sortedKeys();
+        return new Snapshot(counts, totalNanos, buckets, bytesWritten.get(), maxFlushBytes.get(),
+                Collections.unmodifiableList(new ArrayList<>(keys.subList(0, Math.min(HOTTEST_KEYS, keys.size())))));
+    }
+
+    /**
+     * The metrics recorded until {@link PrefsMetrics#snapshot()} was called
+     */
+    public static final class Snapshot {
+
+        private final long[] counts;
+        private final long[] totalNanos;
+        private final long[] buckets;
+        private final long bytesWritten;
+        private final long maxFlushBytes;
+        private final List<Map.Entry<String, Long>> hottestKeys;
+
+        Snapshot(long[] counts, long[] totalNanos, long[] buckets, long bytesWritten, long maxFlushBytes,
+                 List<Map.Entry<String, Long>> hottestKeys) {
+            this.counts = counts;
+            this.totalNanos = totalNanos;
+            this.buckets = buckets;
+            this.bytesWritten = bytesWritten;
+            this.maxFlushBytes = maxFlushBytes;
+            this.hottestKeys = hottestKeys;
+        }
+
+        /**
+         * @return number of calls of the operation
+         */
+        public long getCount(final Operation operation) {
+            return counts[operation.ordinal()];
+        }
+
+        /**
+         * @return mean duration of the operation in nanoseconds or 0 if it was not called
+         */
+        public long getMeanNanos(final Operation operation) {
+            final long count = counts[operation.ordinal()];
+            return count == 0 ? 0 : totalNanos[operation.ordinal()] / count;
+        }
+
+        /**
+         * @param operation  the operation
+         * @param percentile percentile from 0 to 100, for example 99 or 99.9
+         * @return duration in nanoseconds which the given percent of the calls did not exceed, or 0 if it was not called
+         */
+        public long getPercentileNanos(final Operation operation, final double percentile) {
+            final long count = counts[operation.ordinal()];
+            if (count == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(count * Math.min(100, percentile) / 100));
+            final int offset = operation.ordinal() * BUCKETS;
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets[offset + i];
+                if (seen >= rank) {
+                    return bucketMax(i);
+                }
+            }
+            return bucketMax(BUCKETS - 1);
+        }
+
+        /**
+         * @return approximate number of bytes of the keys and values written by all the flushes
+         */
+        public long getBytesWritten() {
+            return bytesWritten;
+        }
+
+        /**
+         * @return mean number of bytes written per flush or 0 if there was no flush
+         */
+        public long getMeanFlushBytes() {
+            final long flushes = getCount(Operation.FLUSH);
+            return flushes == 0 ? 0 : bytesWritten / flushes;
+        }
+
+        /**
+         * @return the largest number of bytes written by one flush
+         */
+        public long getMaxFlushBytes() {
+            return maxFlushBytes;
+        }
+
+        /**
+         * @return up to 10 most read and written keys with their number of reads and writes, the hottest first
+         */
+        public List<Map.Entry<String, Long>> getHottestKeys() {
+            return hottestKeys;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder builder = new StringBuilder("PrefsMetrics{");
+            for (Operation operation : OPERATIONS) {
+                if (getCount(operation) > 0) {
+                    builder.append(operation).append(": count=").append(getCount(operation))
+                            .append(", p50=").append(getPercentileNanos(operation, 50))
+                            .append("ns, p99=").append(getPercentileNanos(operation, 99)).append("ns; ");
+                }
+            }
+            return builder.append("bytesWritten=").append(bytesWritten)
+                    .append(", hottestKeys=").append(hottestKeys).append('}').toString();
+        }
+    }
+}
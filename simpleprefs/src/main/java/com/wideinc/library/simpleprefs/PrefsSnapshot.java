@@ -0,0 +1,231 @@
+package com.wideinc.library.simpleprefs;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Exports the preferences into a compact snapshot for backup, and imports them back into any storage engine.
+ * <p>
+ * A snapshot is the {@link #MAGIC} header followed by the Deflate-compressed typed records of the
+ * {@link LogPrefsStore} format, each with its CRC32, and a trailer with the number of records.
+ * A record is at most {@link #MAX_RECORD_SIZE} bytes long.
+ * The preferences are streamed in both directions: the export walks the store in place when it is
+ * a {@link VisitablePrefsStore}, and the import writes the records in chunks as they are read.
+ */
+public final class PrefsSnapshot {
+
+    static final int MAGIC = 0x5350534e; // "SPSN"
+    static final int IMPORT_CHUNK_SIZE = 256;
+    // the longest record, so that a corrupt length does not allocate the memory it claims
+    static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+    private static final int END = -1;
+
+    private PrefsSnapshot() {
+    }
+
+    /**
+     * Saves the chunks of a snapshot as they are read
+     */
+    interface ChunkWriter {
+
+        /**
+         * @param clear remove all the preferences before writing the chunk
+         * @param chunk the preferences read
+         */
+        void write(boolean clear, Map<String, Object> chunk);
+    }
+
+    /**
+     * Write all the preferences of the store to the stream, which is left open
+     *
+     * @return number of preferences written
+     * @throws IOException if the stream fails
+     */
+    public static int export(final PrefsStore store, final OutputStream out) throws IOException {
+        final DataOutputStream header = new DataOutputStream(out);
+        header.writeInt(MAGIC);
+        header.flush();
+        final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            final DeflaterOutputStream compressed = new DeflaterOutputStream(out, deflater);
+            final DataOutputStream records = new DataOutputStream(compressed);
+            final int[] count = new int[1];
+            final IOException[] failure = new IOException[1];
+            PrefsVisitor.forEach(store, null, new PrefsVisitor() {
+                @Override
+                public void onInt(String key, int value) {
+                    add(key, value);
+                }
+
+                @Override
+                public void onLong(String key, long value) {
+                    add(key, value);
+                }
+
+                @Override
+                public void onFloat(String key, float value) {
+                    add(key, value);
+                }
+
+                @Override
+                public void onBoolean(String key, boolean value) {
+                    add(key, value);
+                }
+
+                @Override
+                public void onString(String key, String value) {
+                    add(key, value);
+                }
+
+                @Override
+                public void onStringSet(String key, Set<String> values) {
+                    add(key, values);
+                }
+
+                private void add(final String key, final Object value) {
+                    if (failure[0] != null) {
+                        return;
+                    }
+                    try {
+                        final byte[] record = LogPrefsStore.encode(key, value);
+                        if (record.length - 8 > MAX_RECORD_SIZE) {
+                            throw new IOException("Simple Prefs failed to export the snapshot: the value of " + key + " is too large.");
+                        }
+                        records.write(record);
+                        count[0]++;
+                    } catch (IOException e) {
+                        failure[0] = e;
+                    }
+                }
+            });
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+            records.writeInt(END);
+            records.writeInt(count[0]);
+            records.flush();
+            compressed.finish();
+            out.flush();
+            return count[0];
+        } finally {
+            // frees the native memory, the stream does not end a deflater it was given
+            deflater.end();
+        }
+    }
+
+    /**
+     * Write the preferences of the snapshot to the store, in chunks of {@link #IMPORT_CHUNK_SIZE}.
+     * The preferences of the store which are not in the snapshot are kept, unless clear is set.
+     * The chunks read before a corrupt record are already written when the exception is thrown.
+     *
+     * @param clear remove all the preferences of the store with the first chunk
+     * @return number of preferences imported
+     * @throws IOException if the stream fails or the snapshot is corrupt
+     */
+    public static int restore(final PrefsStore store, final InputStream in, final boolean clear) throws IOException {
+        return read(in, clear, new ChunkWriter() {
+            @Override
+            public void write(boolean clear, Map<String, Object> chunk) {
+                store.write(clear, chunk, false);
+            }
+        });
+    }
+
+    /**
+     * Read the snapshot and pass its preferences to the writer in chunks of {@link #IMPORT_CHUNK_SIZE}
+     *
+     * @param clear the first chunk clears the preferences, an empty chunk if the snapshot is empty
+     * @return number of preferences read
+     * @throws IOException if the stream fails or the snapshot is corrupt
+     */
+    static int read(final InputStream in, final boolean clear, final ChunkWriter writer) throws IOException {
+        final Reader reader = new Reader(in);
+        boolean first = true;
+        Map<String, Object> chunk;
+        while ((chunk = reader.next()) != null) {
+            writer.write(first && clear, chunk);
+            first = false;
+        }
+        if (first && clear) {
+            writer.write(true, new HashMap<String, Object>());
+        }
+        return reader.count();
+    }
+
+    /**
+     * Reads a snapshot chunk by chunk
+     */
+    private static final class Reader {
+
+        private final DataInputStream header;
+        private DataInputStream records;
+        private int count;
+        private boolean ended;
+
+        Reader(final InputStream in) {
+            this.header = new DataInputStream(in);
+        }
+
+        /**
+         * @return the next chunk of preferences, or null at the end of the snapshot
+         * @throws IOException if the stream fails or the snapshot is corrupt
+         */
+        Map<String, Object> next() throws IOException {
+            if (ended) {
+                return null;
+            }
+            if (records == null) {
+                if (header.readInt() != MAGIC) {
+                    throw new IOException("Simple Prefs failed to import the snapshot: unknown format.");
+                }
+                records = new DataInputStream(new InflaterInputStream(header));
+            }
+            final Map<String, Object> chunk = new HashMap<>();
+            try {
+                while (chunk.size() < IMPORT_CHUNK_SIZE) {
+                    final int length = records.readInt();
+                    if (length == END) {
+                        if (records.readInt() != count) {
+                            throw new IOException("Simple Prefs failed to import the snapshot: records are missing.");
+                        }
+                        ended = true;
+                        break;
+                    }
+                    if (length < 0 || length > MAX_RECORD_SIZE) {
+                        throw new IOException("Simple Prefs failed to import the snapshot: corrupt record.");
+                    }
+                    final byte[] record = new byte[8 + length];
+                    ByteBuffer.wrap(record).putInt(length);
+                    records.readFully(record, 4, 4 + length);
+                    final LogPrefsStore.Record parsed = LogPrefsStore.readRecord(ByteBuffer.wrap(record));
+                    if (parsed == null || parsed.value == null) {
+                        throw new IOException("Simple Prefs failed to import the snapshot: corrupt record.");
+                    }
+                    chunk.put(parsed.key, parsed.value);
+                    count++;
+                }
+            } catch (EOFException e) {
+                throw new IOException("Simple Prefs failed to import the snapshot: it is truncated.", e);
+            }
+            return chunk.isEmpty() ? null : chunk;
+        }
+
+        /**
+         * @return number of preferences read so far
+         */
+        int count() {
+            return count;
+        }
+    }
+}
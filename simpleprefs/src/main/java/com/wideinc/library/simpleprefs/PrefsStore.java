@@ -0,0 +1,46 @@
+package com.wideinc.library.simpleprefs;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Storage engine behind {@link SimplePrefs}. The default engine is {@link SharedPreferencesStore},
+ * which keeps the preferences in the stock XML SharedPreferences file;
+ * another engine can be selected with {@link SimplePrefs.Builder#setStore(PrefsStore)}.
+ * <p>
+ * The getters follow the contract of {@link android.content.SharedPreferences}: they return the default
+ * value if the key does not exist and throw {@link ClassCastException} if it exists with another type.
+ * Double values are stored as long raw bits.
+ */
+public interface PrefsStore {
+
+    /**
+     * @return a map that contains all the key value pairs saved in the store
+     */
+    Map<String, ?> getAll();
+
+    int getInt(String key, int defValue);
+
+    long getLong(String key, long defValue);
+
+    float getFloat(String key, float defValue);
+
+    boolean getBoolean(String key, boolean defValue);
+
+    String getString(String key, String defValue);
+
+    Set<String> getStringSet(String key, Set<String> defValues);
+
+    boolean contains(String key);
+
+    /**
+     * Write all the changes at once. The values are Integer, Long, Float, Boolean, String or Set of Strings,
+     * null value removes the key.
+     *
+     * @param clear   remove all the preferences before writing the changes
+     * @param changes new values of preferences, the store must not keep a reference to the map
+     * @param sync    if true, return after the changes are on disk, otherwise the disk write may be done in background
+     * @return {@code true} if the changes were written successfully
+     */
+    boolean write(boolean clear, Map<String, Object> changes, boolean sync);
+}
@@ -0,0 +1,74 @@
+package com.wideinc.library.simpleprefs;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Receives the preferences one by one with their typed values, see {@link Prefs#forEach(String, PrefsVisitor)}.
+ * Override the callbacks of the types of interest, the others ignore their values.
+ * A double saved with putDouble is received by {@link #onLong(String, long)} as its raw long bits.
+ */
+@SuppressWarnings("unused")
+public abstract class PrefsVisitor {
+
+    public void onInt(final String key, final int value) {
+    }
+
+    public void onLong(final String key, final long value) {
+    }
+
+    public void onFloat(final String key, final float value) {
+    }
+
+    public void onBoolean(final String key, final boolean value) {
+    }
+
+    public void onString(final String key, final String value) {
+    }
+
+    public void onStringSet(final String key, final Set<String> values) {
+    }
+
+    /**
+     * Pass the untyped value to the callback of its type
+     */
+    @SuppressWarnings("unchecked")
+    final void visit(final String key, final Object value) {
+        if (value instanceof Integer) {
+            onInt(key, (Integer) value);
+        } else if (value instanceof Long) {
+            onLong(key, (Long) value);
+        } else if (value instanceof Float) {
+            onFloat(key, (Float) value);
+        } else if (value instanceof Boolean) {
+            onBoolean(key, (Boolean) value);
+        } else if (value instanceof String) {
+            onString(key, (String) value);
+        } else if (value instanceof Set) {
+            onStringSet(key, (Set<String>) value);
+        }
+    }
+
+    /**
+     * @return whether the key starts with the prefix, every key matches a null prefix
+     */
+    static boolean matches(final String prefix, final String key) {
+        return prefix == null || key.startsWith(prefix);
+    }
+
+    /**
+     * Visit the preferences of the store which start with the prefix, without copying them if the store
+     * is a {@link VisitablePrefsStore}
+     */
+    static void forEach(final PrefsStore store, final String prefix, final PrefsVisitor visitor) {
+        if (store instanceof VisitablePrefsStore) {
+            ((VisitablePrefsStore) store).forEach(prefix, visitor);
+            return;
+        }
+        for (Map.Entry<String, ?> entry : store.getAll().entrySet()) {
+            if (matches(prefix, entry.getKey())) {
+                visitor.visit(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,439 @@
+package com.wideinc.library.simpleprefs;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Caches int, long, float and boolean values in an open-addressing table of primitive arrays,
+ * so that the reads of those values take no lock and allocate nothing once the key is cached.
+ * Strings and string sets are not cached and are read from the underlying store.
+ * <p>
+ * A slot is updated in place: its state holds the type and a sequence number, which the writer marks before
+ * changing the value and bumps after, and a read that sees the state change while reading the value reads
+ * the store instead. The writers lock only the stripes of their keys, like {@link WriteBehindStore}, and hold
+ * them over the write of the store, so that two writes of one key update the cache in the order they were written.
+ * The keys are never removed from a table, a removed key is marked absent, and the table is rebuilt without
+ * the absent keys when it grows. At most {@link #MAX_ABSENT} keys read as missing are cached at a time.
+ */
+final class PrimitiveCacheStore implements VisitablePrefsStore {
+
+    static final int MAX_ABSENT = 256;
+
+    // read from the store, a slot is in this state while its key is being inserted
+    private static final int OTHER = 0;
+    private static final int INT = 1;
+    private static final int LONG = 2;
+    private static final int FLOAT = 3;
+    private static final int BOOLEAN = 4;
+    private static final int ABSENT = 5;
+    private static final int TYPE_MASK = 7;
+    private static final int WRITING = 8;
+    private static final int SEQUENCE = 16;
+    private static final int SEQUENCE_MASK = 0x7ffffff0;
+    private static final int MIN_CAPACITY = 16;
+    private static final int STRIPES = 16;
+
+    private final PrefsStore store;
+    private final Object[] stripes = new Object[STRIPES];
+    // bumped under the stripe lock after every write, a value read from the store during a write is not cached
+    private final AtomicLongArray versions = new AtomicLongArray(STRIPES);
+    // replaced holding all the stripes
+    private volatile Table table = new Table(MIN_CAPACITY);
+
+    PrimitiveCacheStore(final PrefsStore store) {
+        this.store = store;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+    }
+
+    private static final class Table {
+        final AtomicReferenceArray<String> keys;
+        final AtomicLongArray values;
+        final AtomicIntegerArray states;
+        final AtomicInteger size = new AtomicInteger();
+        final AtomicInteger absent = new AtomicInteger();
+        final int mask;
+
+        Table(final int capacity) {
+            keys = new AtomicReferenceArray<>(capacity);
+            values = new AtomicLongArray(capacity);
+            states = new AtomicIntegerArray(capacity);
+            mask = capacity - 1;
+        }
+
+        private int index(final String key) {
+            final int h = key.hashCode() * 0x9E3779B9;
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        /**
+         * @return slot of the key or -1 if it is not cached
+         */
+        int find(final String key) {
+            int index = index(key);
+            String current;
+            while ((current = keys.get(index)) != null) {
+                if (current == key || current.equals(key)) {
+                    return index;
+                }
+                index = (index + 1) & mask;
+            }
+            return -1;
+        }
+
+        /**
+         * Return the slot of the key, claiming a free one if it is not cached yet. Called holding the stripe of the key.
+         *
+         * @return slot of the key or -1 if the table is full
+         */
+        int slot(final String key) {
+            int index = index(key);
+            int probes = 0;
+            while (probes <= mask) {
+                final String current = keys.get(index);
+                if (current == null) {
+                    if (keys.compareAndSet(index, null, key)) {
+                        size.incrementAndGet();
+                        return index;
+                    }
+                    // claimed by a key of another stripe, the slot is looked at again
+                    continue;
+                }
+                if (current.equals(key)) {
+                    return index;
+                }
+                index = (index + 1) & mask;
+                probes++;
+            }
+            return -1;
+        }
+
+        /**
+         * Change the value of the slot in place, called holding the stripe of its key
+         */
+        void set(final int index, final int type, final long value) {
+            final int state = states.get(index);
+            states.set(index, state | WRITING);
+            values.set(index, value);
+            states.set(index, ((state + SEQUENCE) & SEQUENCE_MASK) | type);
+            final int previous = state & TYPE_MASK;
+            if (previous != ABSENT && type == ABSENT) {
+                absent.incrementAndGet();
+            } else if (previous == ABSENT && type != ABSENT) {
+                absent.decrementAndGet();
+            }
+        }
+
+        /**
+         * @return whether the table has no room for extra keys
+         */
+        boolean full(final int extra) {
+            return (size.get() + extra) * 2 > mask + 1;
+        }
+    }
+
+    /**
+     * @return state of the slot if it holds a value of the given type or is absent, or -1 if the key must be
+     * read from the store
+     */
+    private static int state(final Table table, final int index, final int type) {
+        final int state = table.states.get(index);
+        final int cached = state & TYPE_MASK;
+        return (state & WRITING) == 0 && (cached == type || cached == ABSENT) ? state : -1;
+    }
+
+    private static int stripe(final String key) {
+        final int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+
+    /**
+     * Run the task holding the given stripes, always locked in the same order so that the writers can not deadlock
+     */
+    private void lockStripes(final boolean[] locked, final int from, final Runnable task) {
+        int index = from;
+        while (index < STRIPES && !locked[index]) {
+            index++;
+        }
+        if (index == STRIPES) {
+            task.run();
+            return;
+        }
+        synchronized (stripes[index]) {
+            lockStripes(locked, index + 1, task);
+        }
+    }
+
+    private void lockAll(final int from, final Runnable task) {
+        if (from == STRIPES) {
+            task.run();
+            return;
+        }
+        synchronized (stripes[from]) {
+            lockAll(from + 1, task);
+        }
+    }
+
+    /**
+     * Rebuild the table without the absent keys if it has no room for the extra keys. It is called before
+     * a stripe is locked, since the rebuild locks all of them.
+     */
+    private void ensureCapacity(final int extra) {
+        if (!table.full(extra)) {
+            return;
+        }
+        lockAll(0, new Runnable() {
+            @Override
+            public void run() {
+                final Table current = table;
+                if (!current.full(extra)) {
+                    return;
+                }
+                int live = 0;
+                for (int i = 0; i <= current.mask; i++) {
+                    final int type = current.states.get(i) & TYPE_MASK;
+                    if (type != OTHER && type != ABSENT) {
+                        live++;
+                    }
+                }
+                int capacity = MIN_CAPACITY;
+                while ((live + extra) * 4 > capacity) {
+                    capacity <<= 1;
+                }
+                final Table rebuilt = new Table(capacity);
+                for (int i = 0; i <= current.mask; i++) {
+                    final int type = current.states.get(i) & TYPE_MASK;
+                    if (type != OTHER && type != ABSENT) {
+                        rebuilt.set(rebuilt.slot(current.keys.get(i)), type, current.values.get(i));
+                    }
+                }
+                table = rebuilt;
+            }
+        });
+    }
+
+    /**
+     * Cache a value read from the store, unless the store has been written since it was read
+     */
+    private void cache(final long readVersion, final String key, final int stripe, final boolean exists,
+                       final int type, final long value) {
+        if (!exists && table.absent.get() >= MAX_ABSENT) {
+            return;
+        }
+        ensureCapacity(1);
+        synchronized (stripes[stripe]) {
+            if (readVersion != versions.get(stripe)) {
+                return;
+            }
+            final Table current = table;
+            final int index = current.slot(key);
+            if (index >= 0) {
+                current.set(index, exists ? type : ABSENT, value);
+            }
+        }
+    }
+
+    @Override
+    public int getInt(final String key, final int defValue) {
+        final Table current = table;
+        final int index = current.find(key);
+        if (index >= 0) {
+            final int state = state(current, index, INT);
+            if (state >= 0) {
+                final long value = current.values.get(index);
+                // the slot was not written while its value was read
+                if (current.states.get(index) == state) {
+                    return (state & TYPE_MASK) == ABSENT ? defValue : (int) value;
+                }
+            }
+        }
+        final int stripe = stripe(key);
+        final long readVersion = versions.get(stripe);
+        final boolean exists = store.contains(key);
+        final int value = store.getInt(key, defValue);
+        cache(readVersion, key, stripe, exists, INT, value);
+        return value;
+    }
+
+    @Override
+    public long getLong(final String key, final long defValue) {
+        final Table current = table;
+        final int index = current.find(key);
+        if (index >= 0) {
+            final int state = state(current, index, LONG);
+            if (state >= 0) {
+                final long value = current.values.get(index);
+                if (current.states.get(index) == state) {
+                    return (state & TYPE_MASK) == ABSENT ? defValue : value;
+                }
+            }
+        }
+        final int stripe = stripe(key);
+        final long readVersion = versions.get(stripe);
+        final boolean exists = store.contains(key);
+        final long value = store.getLong(key, defValue);
+        cache(readVersion, key, stripe, exists, LONG, value);
+        return value;
+    }
+
+    @Override
+    public float getFloat(final String key, final float defValue) {
+        final Table current = table;
+        final int index = current.find(key);
+        if (index >= 0) {
+            final int state = state(current, index, FLOAT);
+            if (state >= 0) {
+                final long value = current.values.get(index);
+                if (current.states.get(index) == state) {
+                    return (state & TYPE_MASK) == ABSENT ? defValue : Float.intBitsToFloat((int) value);
+                }
+            }
+        }
+        final int stripe = stripe(key);
+        final long readVersion = versions.get(stripe);
+        final boolean exists = store.contains(key);
+        final float value = store.getFloat(key, defValue);
+        cache(readVersion, key, stripe, exists, FLOAT, Float.floatToRawIntBits(value));
+        return value;
+    }
+
+    @Override
+    public boolean getBoolean(final String key, final boolean defValue) {
+        final Table current = table;
+        final int index = current.find(key);
+        if (index >= 0) {
+            final int state = state(current, index, BOOLEAN);
+            if (state >= 0) {
+                final long value = current.values.get(index);
+                if (current.states.get(index) == state) {
+                    return (state & TYPE_MASK) == ABSENT ? defValue : value != 0;
+                }
+            }
+        }
+        final int stripe = stripe(key);
+        final long readVersion = versions.get(stripe);
+        final boolean exists = store.contains(key);
+        final boolean value = store.getBoolean(key, defValue);
+        cache(readVersion, key, stripe, exists, BOOLEAN, value ? 1 : 0);
+        return value;
+    }
+
+    @Override
+    public String getString(final String key, final String defValue) {
+        return store.getString(key, defValue);
+    }
+
+    @Override
+    public Set<String> getStringSet(final String key, final Set<String> defValues) {
+        return store.getStringSet(key, defValues);
+    }
+
+    @Override
+    public boolean contains(final String key) {
+        final Table current = table;
+        final int index = current.find(key);
+        if (index >= 0) {
+            final int type = current.states.get(index) & TYPE_MASK;
+            if (type != OTHER) {
+                return type != ABSENT;
+            }
+        }
+        return store.contains(key);
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        return store.getAll();
+    }
+
+    @Override
+    public void forEach(final String prefix, final PrefsVisitor visitor) {
+        PrefsVisitor.forEach(store, prefix, visitor);
+    }
+
+    /**
+     * Write the changes to the store and update the cached values of the changed keys
+     */
+    @Override
+    public boolean write(final boolean clear, final Map<String, Object> changes, final boolean sync) {
+        final boolean[] written = new boolean[1];
+        if (clear) {
+            lockAll(0, new Runnable() {
+                @Override
+                public void run() {
+                    written[0] = store.write(true, changes, sync);
+                    int capacity = MIN_CAPACITY;
+                    while (changes.size() * 4 > capacity) {
+                        capacity <<= 1;
+                    }
+                    table = new Table(capacity);
+                    update(changes);
+                    for (int i = 0; i < STRIPES; i++) {
+                        versions.incrementAndGet(i);
+                    }
+                }
+            });
+            return written[0];
+        }
+        ensureCapacity(changes.size());
+        final boolean[] locked = new boolean[STRIPES];
+        for (String key : changes.keySet()) {
+            locked[stripe(key)] = true;
+        }
+        lockStripes(locked, 0, new Runnable() {
+            @Override
+            public void run() {
+                written[0] = store.write(false, changes, sync);
+                update(changes);
+                for (int i = 0; i < STRIPES; i++) {
+                    if (locked[i]) {
+                        versions.incrementAndGet(i);
+                    }
+                }
+            }
+        });
+        return written[0];
+    }
+
+    /**
+     * Update the cached values of the changed keys, holding their stripes
+     */
+    private void update(final Map<String, Object> changes) {
+        final Table current = table;
+        for (Map.Entry<String, Object> entry : changes.entrySet()) {
+            final Object value = entry.getValue();
+            final int type;
+            final long bits;
+            if (value instanceof Integer) {
+                type = INT;
+                bits = (Integer) value;
+            } else if (value instanceof Long) {
+                type = LONG;
+                bits = (Long) value;
+            } else if (value instanceof Float) {
+                type = FLOAT;
+                bits = Float.floatToRawIntBits((Float) value);
+            } else if (value instanceof Boolean) {
+                type = BOOLEAN;
+                bits = (Boolean) value ? 1 : 0;
+            } else {
+                // a removed key or a value of another type only changes a cached key
+                final int index = current.find(entry.getKey());
+                if (index >= 0) {
+                    current.set(index, value == null ? ABSENT : OTHER, 0);
+                }
+                continue;
+            }
+            // left out of a full table, the key is read from the store
+            final int index = current.slot(entry.getKey());
+            if (index >= 0) {
+                current.set(index, type, bits);
+            }
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.wideinc.library.simpleprefs;
+
+import java.util.Map;
+
+/**
+ * Receives the keys a store removes by itself, like the expired or evicted keys,
+ * so that the key index and the change listeners of {@link Prefs} see the removal
+ */
+interface RemovalListener {
+
+    /**
+     * Called while no other write can happen to the store
+     *
+     * @param removed the removed keys, each with a null value
+     */
+    void removed(Map<String, Object> removed);
+}
@@ -0,0 +1,202 @@
+package com.wideinc.library.simpleprefs;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Splits one logical store across several stores by the hash of the key, so that a write
+ * rewrites only the shard which owns the key instead of all the preferences.
+ * A key always goes to the same shard, as long as the number of shards does not change.
+ */
+public class ShardedPrefsStore implements VisitablePrefsStore {
+
+    private final PrefsStore[] shards;
+
+    /**
+     * @param shards the stores to split the preferences across, at least one
+     * @throws IllegalArgumentException if no shard is given
+     */
+    public ShardedPrefsStore(final PrefsStore... shards) {
+        if (shards.length == 0) {
+            throw new IllegalArgumentException("At least one shard is required");
+        }
+        this.shards = shards.clone();
+    }
+
+    /**
+     * @return index of the shard which owns the key
+     */
+    static int shardOf(final Object key, final int count) {
+        final int h = key.hashCode();
+        return ((h ^ (h >>> 16)) & 0x7fffffff) % count;
+    }
+
+    private PrefsStore shard(final String key) {
+        return shards[shardOf(key, shards.length)];
+    }
+
+    /**
+     * @return number of shards
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    @Override
+    public int getInt(final String key, final int defValue) {
+        return shard(key).getInt(key, defValue);
+    }
+
+    @Override
+    public long getLong(final String key, final long defValue) {
+        return shard(key).getLong(key, defValue);
+    }
+
+    @Override
+    public float getFloat(final String key, final float defValue) {
+        return shard(key).getFloat(key, defValue);
+    }
+
+    @Override
+    public boolean getBoolean(final String key, final boolean defValue) {
+        return shard(key).getBoolean(key, defValue);
+    }
+
+    @Override
+    public String getString(final String key, final String defValue) {
+        return shard(key).getString(key, defValue);
+    }
+
+    @Override
+    public Set<String> getStringSet(final String key, final Set<String> defValues) {
+        return shard(key).getStringSet(key, defValues);
+    }
+
+    @Override
+    public boolean contains(final String key) {
+        return shard(key).contains(key);
+    }
+
+    /**
+     * @return a read-only view over all the shards, a shard is read only when the view needs its entries
+     */
+    @Override
+    public Map<String, ?> getAll() {
+        return new MergedMap();
+    }
+
+    @Override
+    public void forEach(final String prefix, final PrefsVisitor visitor) {
+        for (PrefsStore shard : shards) {
+            PrefsVisitor.forEach(shard, prefix, visitor);
+        }
+    }
+
+    /**
+     * Write every shard's part of the changes to that shard, the shards without changes are not written
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean write(final boolean clear, final Map<String, Object> changes, final boolean sync) {
+        final Map<String, Object>[] parts = (Map<String, Object>[]) new Map<?, ?>[shards.length];
+        for (Map.Entry<String, Object> entry : changes.entrySet()) {
+            final int index = shardOf(entry.getKey(), shards.length);
+            if (parts[index] == null) {
+                parts[index] = new HashMap<>();
+            }
+            parts[index].put(entry.getKey(), entry.getValue());
+        }
+        boolean written = true;
+        for (int i = 0; i < shards.length; i++) {
+            if (clear || parts[i] != null) {
+                final Map<String, Object> part = parts[i] != null ? parts[i] : new HashMap<String, Object>();
+                written &= shards[i].write(clear, part, sync);
+            }
+        }
+        return written;
+    }
+
+    private final class MergedMap extends AbstractMap<String, Object> {
+
+        private final Map<String, ?>[] loaded;
+
+        @SuppressWarnings("unchecked")
+        MergedMap() {
+            loaded = (Map<String, ?>[]) new Map<?, ?>[shards.length];
+        }
+
+        private Map<String, ?> shard(final int index) {
+            if (loaded[index] == null) {
+                loaded[index] = shards[index].getAll();
+            }
+            return loaded[index];
+        }
+
+        @Override
+        public Object get(final Object key) {
+            return key == null ? null : shard(shardOf(key, shards.length)).get(key);
+        }
+
+        @Override
+        public boolean containsKey(final Object key) {
+            return key != null && shard(shardOf(key, shards.length)).containsKey(key);
+        }
+
+        @Override
+        public int size() {
+            int size = 0;
+            for (int i = 0; i < loaded.length; i++) {
+                size += shard(i).size();
+            }
+            return size;
+        }
+
+        @Override
+        public Set<Entry<String, Object>> entrySet() {
+            return new AbstractSet<Entry<String, Object>>() {
+                @Override
+                public Iterator<Entry<String, Object>> iterator() {
+                    return new Iterator<Entry<String, Object>>() {
+                        private int index = -1;
+                        private Iterator<? extends Entry<String, ?>> current;
+
+                        @Override
+                        public boolean hasNext() {
+                            while (current == null || !current.hasNext()) {
+                                if (++index >= loaded.length) {
+                                    return false;
+                                }
+                                current = shard(index).entrySet().iterator();
+                            }
+                            return true;
+                        }
+
+                        @Override
+                        @SuppressWarnings("unchecked")
+                        public Entry<String, Object> next() {
+                            if (!hasNext()) {
+                                throw new NoSuchElementException();
+                            }
+                            return (Entry<String, Object>) current.next();
+                        }
+
+                        @Override
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return MergedMap.this.size();
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.wideinc.library.simpleprefs;
+
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.Editor;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The default engine, which keeps the preferences in the stock XML SharedPreferences file
+ */
+public final class SharedPreferencesStore implements PrefsStore {
+
+    private final SharedPreferences preference;
+
+    public SharedPreferencesStore(final SharedPreferences preference) {
+        this.preference = preference;
+    }
+
+    /**
+     * @return the underlying shared preference
+     */
+    public SharedPreferences getSharedPreferences() {
+        return preference;
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        return preference.getAll();
+    }
+
+    @Override
+    public int getInt(final String key, final int defValue) {
+        return preference.getInt(key, defValue);
+    }
+
+    @Override
+    public long getLong(final String key, final long defValue) {
+        return preference.getLong(key, defValue);
+    }
+
+    @Override
+    public float getFloat(final String key, final float defValue) {
+        return preference.getFloat(key, defValue);
+    }
+
+    @Override
+    public boolean getBoolean(final String key, final boolean defValue) {
+        return preference.getBoolean(key, defValue);
+    }
+
+    @Override
+    public String getString(final String key, final String defValue) {
+        return preference.getString(key, defValue);
+    }
+
+    @Override
+    public Set<String> getStringSet(final String key, final Set<String> defValues) {
+        return preference.getStringSet(key, defValues);
+    }
+
+    @Override
+    public boolean contains(final String key) {
+        return preference.contains(key);
+    }
+
+    /**
+     * Write all the changes with a single editor
+     *
+     * @see Editor#commit()
+     * @see Editor#apply()
+     */
+    @Override
+    public boolean write(final boolean clear, final Map<String, Object> changes, final boolean sync) {
+        final Editor editor = preference.edit();
+        if (clear) {
+            editor.clear();
+        }
+        for (Map.Entry<String, Object> entry : changes.entrySet()) {
+            Batch.putValue(editor, entry.getKey(), entry.getValue());
+        }
+        if (sync) {
+            return editor.commit();
+        }
+        editor.apply();
+        return true;
+    }
+}
@@ -8,17 +8,49 @@ import android.os.Build;
 import android.text.TextUtils;
 import android.content.SharedPreferences.Editor;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 
+/**
+ * Static access to the default preference instance, see {@link Prefs} for the independent instances.
+ * <p>
+ * Concurrency model: all the methods can be called from any thread.
+ * <ul>
+ * <li>The default instance is published through a volatile field and the instances are immutable apart from
+ * their thread-safe stores, so a thread calling the static methods after {@link Builder#build()} sees
+ * a fully built instance, and a rebuild replaces it atomically.</li>
+ * <li>A read sees the last value written by any thread through the same instance, including the values
+ * not yet written to the disk in write-behind mode.</li>
+ * <li>The writes of one key are ordered: the last put wins, in memory and on the disk.
+ * The changes of one batch are applied together, a flush never writes a part of a batch.</li>
+ * <li>Without write-behind mode every put opens its own {@link Editor}, so the writers contend on
+ * the SharedPreferences lock. With {@link Builder#setWriteBehind(long)} the puts go into an in-memory buffer
+ * striped by the key hash, where the threads writing different keys do not wait for each other, and the
+ * buffer is merged into the file in one write per flush window.</li>
+ * </ul>
+ */
 @SuppressWarnings("unused")
 public final class SimplePrefs {
 
     private static final String DEFAULT_SUFFIX = "_simple_preferences";
-    private static SharedPreferences simplePreference;
+    private static final String SHARD_SUFFIX = "_shard";
+    private static final String MULTI_PROCESS_SUFFIX = ".mpprefs";
+    private static final Map<String, Prefs> instances = new ConcurrentHashMap<>();
+    private static volatile Prefs instance;
 
     /**
-     * Initialize the SimplePrefs using init method to save the preferences for this application
+     * Open the SharedPreferences file to save the preferences for this application
      *
      * @param context   application context to get preference for SharedPreference;
      * @param prefsName uniquely identifiable name to your app. An easy way to do this is prefix the file name with your application ID.
@@ -28,10 +60,103 @@ public final class SimplePrefs {
      *                  Starting with Android 7.0 (API level 24), Android throws a SecurityException if you use them;
      *                  If your app needs to share private files with other apps,
      *                  it may use a FileProvider with the FLAG_GRANT_READ_URI_PERMISSION
+     *                  MODE_MULTI_PROCESS opens a {@link MultiProcessPrefsStore} instead of the SharedPreferences file;
+     * @param shards    number of files to split the preferences across, 1 keeps them in the one file named prefsName;
+     * @param load      whether to block until the files are loaded and parsed;
+     * @return the default storage engine backed by the file
      */
 
-    private static void init(Context context, String prefsName, int mode) {
-        simplePreference = context.getSharedPreferences(prefsName, mode);
+    @SuppressWarnings("deprecation")
+    private static PrefsStore open(Context context, String prefsName, int mode, int shards, boolean load) {
+        if (mode == Context.MODE_MULTI_PROCESS) {
+            return openMultiProcess(context, prefsName);
+        }
+        if (shards <= 1) {
+            return open(context.getSharedPreferences(prefsName, mode), load);
+        }
+        final PrefsStore[] stores = new PrefsStore[shards];
+        for (int i = 0; i < shards; i++) {
+            stores[i] = open(context.getSharedPreferences(prefsName + SHARD_SUFFIX + i, mode), load);
+        }
+        return new ShardedPrefsStore(stores);
+    }
+
+    /**
+     * Open the multi-process log named after the preferences in the files directory. The preferences already
+     * saved in the SharedPreferences file of the same name are copied into it once, by the first process to open it.
+     */
+    private static PrefsStore openMultiProcess(Context context, String prefsName) {
+        final MultiProcessPrefsStore store;
+        try {
+            store = new MultiProcessPrefsStore(new File(context.getFilesDir(), prefsName + MULTI_PROCESS_SUFFIX));
+        } catch (IOException e) {
+            throw new RuntimeException("Simple Prefs failed to open the multi-process storage engine.", e);
+        }
+        if (!store.isImported()) {
+            store.importOnce(context.getSharedPreferences(prefsName, Context.MODE_PRIVATE).getAll());
+        }
+        return store;
+    }
+
+    private static PrefsStore open(SharedPreferences preference, boolean load) {
+        if (load) {
+            // blocks until the file is loaded and parsed
+            preference.contains(DEFAULT_SUFFIX);
+        }
+        return new SharedPreferencesStore(preference);
+    }
+
+    static void init(SharedPreferences preference) {
+        init(preference, 0);
+    }
+
+    static void init(SharedPreferences preference, long writeBehindDelayMs) {
+        install(new Prefs(null, new SharedPreferencesStore(preference), writeBehindDelayMs, false, false,
+                Collections.<Class<?>, Codec<?>>emptyMap(), new ChangeNotifier(null, 0), 0, 0, false));
+    }
+
+    /**
+     * Make the instance the one used by the static methods. The previous one is shut down,
+     * unless it is still registered by its name.
+     */
+    static synchronized void install(Prefs prefs) {
+        final Prefs previous = instance;
+        instance = prefs;
+        if (previous != null && previous != prefs && !isRegistered(previous)) {
+            previous.shutdown();
+        }
+    }
+
+    private static boolean isRegistered(Prefs prefs) {
+        return prefs.getName() != null && instances.get(prefs.getName()) == prefs;
+    }
+
+    /**
+     * @return the instance used by the static methods
+     * @throws RuntimeException if SimplePrefs is not instantiated
+     */
+    static Prefs instance() {
+        final Prefs prefs = instance;
+        if (prefs != null) {
+            return prefs;
+        }
+        throw new RuntimeException("Simple Prefs instance not instantiated.Please call Builder().setContext().build() to instantiate SimplePrefs.");
+    }
+
+    /**
+     * Return the independent preference instance created with the given name
+     *
+     * @param prefsName name of the instance, set by {@link Builder#setPrefsName(String)}
+     * @return the instance
+     * @throws RuntimeException if no instance has been created with the name
+     * @see Builder#buildInstance()
+     */
+    public static Prefs getInstance(final String prefsName) {
+        final Prefs prefs = instances.get(prefsName);
+        if (prefs != null) {
+            return prefs;
+        }
+        throw new RuntimeException("Simple Prefs instance " + prefsName + " not instantiated.Please call Builder().setPrefsName(name).buildInstance() to instantiate it.");
     }
 
     /**
@@ -39,13 +164,58 @@ public final class SimplePrefs {
      *
      * @return instance of sharedPreference;
      * @throws RuntimeException if simplePreference is not instantiated
+     * @throws IllegalStateException if SimplePrefs uses a storage engine other than SharedPreferences
      */
     @SuppressWarnings("WeakerAccess")
     public static SharedPreferences getPreference() {
-        if (simplePreference != null) {
-            return simplePreference;
-        }
-        throw new RuntimeException("Simple Prefs instance not instantiated.Please call Builder().setContext().build() to instantiate SimplePrefs.");
+        return instance().getPreference();
+    }
+
+    /**
+     * Return the storage engine which keeps the preferences
+     *
+     * @return instance of storage engine, including the write-behind buffer if it is enabled;
+     * @throws RuntimeException if SimplePrefs is not instantiated
+     * @see Builder#setStore(PrefsStore)
+     */
+    @SuppressWarnings("WeakerAccess")
+    public static PrefsStore getStore() {
+        return instance().getStore();
+    }
+
+    /**
+     * @return snapshot of the operation counts, latencies, flushed bytes and hottest keys
+     * @throws IllegalStateException if the metrics are not enabled
+     * @see Builder#setMetrics(boolean)
+     * @see Prefs#getMetrics()
+     */
+    public static PrefsMetrics.Snapshot metrics() {
+        return instance().metrics();
+    }
+
+    /**
+     * Write all the preferences into a compact snapshot for backup
+     *
+     * @param out stream to write the snapshot to, left open
+     * @return number of preferences exported
+     * @throws IOException if the stream fails
+     * @see Prefs#exportSnapshot(OutputStream)
+     */
+    public static int exportSnapshot(final OutputStream out) throws IOException {
+        return instance().exportSnapshot(out);
+    }
+
+    /**
+     * Read the preferences of a snapshot and save them in chunks
+     *
+     * @param in    stream to read the snapshot from, left open
+     * @param clear remove all the preferences with the first chunk
+     * @return number of preferences imported
+     * @throws IOException if the stream fails or the snapshot is corrupt
+     * @see Prefs#importSnapshot(InputStream, boolean)
+     */
+    public static int importSnapshot(final InputStream in, final boolean clear) throws IOException {
+        return instance().importSnapshot(in, clear);
     }
 
     /**
@@ -53,7 +223,7 @@ public final class SimplePrefs {
      * @see SharedPreferences#getAll()
      */
     public static Map<String, ?> getAll() {
-        return getPreference().getAll();
+        return instance().getAll();
     }
 
     /**
@@ -67,7 +237,7 @@ public final class SimplePrefs {
      */
 
     public static int getInt(final String key, final int defValue) {
-        return getPreference().getInt(key, defValue);
+        return instance().getInt(key, defValue);
     }
 
     /**
@@ -79,7 +249,7 @@ public final class SimplePrefs {
      * @see SharedPreferences#getInt(String, int)
      */
     public static int getInt(final String key) {
-        return getPreference().getInt(key, 0);
+        return instance().getInt(key);
     }
 
     /**
@@ -92,7 +262,7 @@ public final class SimplePrefs {
      * @see android.content.SharedPreferences#getBoolean(String, boolean)
      */
     public static boolean getBoolean(final String key, final boolean defValue) {
-        return getPreference().getBoolean(key, defValue);
+        return instance().getBoolean(key, defValue);
     }
 
     /**
@@ -104,7 +274,7 @@ public final class SimplePrefs {
      * @see android.content.SharedPreferences#getBoolean(String, boolean)
      */
     public static boolean getBoolean(final String key) {
-        return getPreference().getBoolean(key, false);
+        return instance().getBoolean(key);
     }
 
     /**
@@ -117,9 +287,10 @@ public final class SimplePrefs {
      * @see android.content.SharedPreferences#getLong(String, long)
      */
     public static long getLong(final String key, final int defValue) {
-        return getPreference().getLong(key, defValue);
+        return instance().getLong(key, (long) defValue);
     }
 
+
     /**
      * Retrieve saved long value if it exists or 0
      *
@@ -130,7 +301,7 @@ public final class SimplePrefs {
      */
 
     public static long getLong(final String key) {
-        return getPreference().getLong(key, 0L);
+        return instance().getLong(key);
     }
 
     /**
@@ -143,7 +314,7 @@ public final class SimplePrefs {
      * @see android.content.SharedPreferences#getLong(String, long)
      */
     public static double getDouble(final String key, final double defValue) {
-        return Double.longBitsToDouble(getPreference().getLong(key, Double.doubleToLongBits(defValue)));
+        return instance().getDouble(key, defValue);
     }
 
     /**
@@ -156,7 +327,7 @@ public final class SimplePrefs {
      * @see android.content.SharedPreferences#getLong(String, long)
      */
     public static double getDouble(final String key) {
-        return Double.longBitsToDouble(getPreference().getLong(key, Double.doubleToLongBits(0.0d)));
+        return instance().getDouble(key);
     }
 
 
@@ -170,7 +341,7 @@ public final class SimplePrefs {
      * @see android.content.SharedPreferences#getFloat(String, float)
      */
     public static float getFloat(final String key, final float defValue) {
-        return getPreference().getFloat(key, defValue);
+        return instance().getFloat(key, defValue);
     }
 
     /**
@@ -182,7 +353,7 @@ public final class SimplePrefs {
      * @see android.content.SharedPreferences#getFloat(String, float)
      */
     public static float getFloat(final String key) {
-        return getPreference().getFloat(key, 0.0f);
+        return instance().getFloat(key);
     }
 
     /**
@@ -195,7 +366,7 @@ public final class SimplePrefs {
      * @see android.content.SharedPreferences#getString(String, String)
      */
     public static String getString(final String key, final String defValue) {
-        return getPreference().getString(key, defValue);
+        return instance().getString(key, defValue);
     }
 
     /**
@@ -208,8 +379,8 @@ public final class SimplePrefs {
      */
 
     @SuppressWarnings("WeakerAccess")
-    public Set<String> getStringSet(final String key, final Set<String> defValues){
-        return getPreference().getStringSet(key,defValues);
+    public static Set<String> getStringSet(final String key, final Set<String> defValues){
+        return instance().getStringSet(key, defValues);
     }
 
     /**
@@ -221,7 +392,7 @@ public final class SimplePrefs {
      * @see android.content.SharedPreferences#getString(String, String)
      */
     public static String getString(final String key) {
-        return getPreference().getString(key, "");
+        return instance().getString(key);
     }
 
 
@@ -233,9 +404,7 @@ public final class SimplePrefs {
      * @see android.content.SharedPreferences.Editor#putLong(String, long)
      */
     public static void putLong(final String key, final long value) {
-        final Editor editor = getPreference().edit();
-        editor.putLong(key, value);
-        editor.apply();
+        instance().putLong(key, value);
     }
 
     /**
@@ -247,9 +416,7 @@ public final class SimplePrefs {
      */
 
     public static void putInt(final String key, final int value) {
-        final Editor editor = getPreference().edit();
-        editor.putInt(key, value);
-        editor.apply();
+        instance().putInt(key, value);
     }
 
     /**
@@ -261,9 +428,7 @@ public final class SimplePrefs {
      */
 
     public static void putDouble(final String key, final double value) {
-        final Editor editor = getPreference().edit();
-        editor.putLong(key, Double.doubleToLongBits(value));
-        editor.apply();
+        instance().putDouble(key, value);
     }
 
     /**
@@ -274,9 +439,7 @@ public final class SimplePrefs {
      * @see android.content.SharedPreferences.Editor#putFloat(String, float)
      */
     public static void putFloat(final String key, final float value) {
-        final Editor editor = getPreference().edit();
-        editor.putFloat(key, value);
-        editor.apply();
+        instance().putFloat(key, value);
     }
 
     /**
@@ -287,9 +450,7 @@ public final class SimplePrefs {
      * @see android.content.SharedPreferences.Editor#putString(String, String)
      */
     public static void putString(final String key, final String value) {
-        final Editor editor = getPreference().edit();
-        editor.putString(key, value);
-        editor.apply();
+        instance().putString(key, value);
     }
 
     /**
@@ -300,9 +461,7 @@ public final class SimplePrefs {
      * @see android.content.SharedPreferences.Editor#putBoolean(String, boolean)
      */
     public static void putBoolean(final String key, final boolean value) {
-        final Editor editor = getPreference().edit();
-        editor.putBoolean(key, value);
-        editor.apply();
+        instance().putBoolean(key, value);
     }
 
 
@@ -316,9 +475,303 @@ public final class SimplePrefs {
 
     @SuppressWarnings("WeakerAccess")
     public static void putStringSet(final String key, final Set<String> values) {
-        final Editor editor = getPreference().edit();
-        editor.putStringSet(key, values);
-        editor.apply();
+        instance().putStringSet(key, values);
+    }
+
+    /**
+     * Save string value which expires after the time to live
+     *
+     * @param key   name of preference to save or modify
+     * @param value new value of preference to save
+     * @param ttlMs time to live in milliseconds
+     * @throws IllegalArgumentException if the time to live is not positive
+     * @see Prefs#putString(String, String, long)
+     */
+    public static void putString(final String key, final String value, final long ttlMs) {
+        instance().putString(key, value, ttlMs);
+    }
+
+    /**
+     * Save a set of strings which expires after the time to live
+     *
+     * @see Prefs#putStringSet(String, Set, long)
+     */
+    public static void putStringSet(final String key, final Set<String> values, final long ttlMs) {
+        instance().putStringSet(key, values, ttlMs);
+    }
+
+    /**
+     * Save int value which expires after the time to live
+     *
+     * @see Prefs#putInt(String, int, long)
+     */
+    public static void putInt(final String key, final int value, final long ttlMs) {
+        instance().putInt(key, value, ttlMs);
+    }
+
+    /**
+     * Save long value which expires after the time to live
+     *
+     * @see Prefs#putLong(String, long, long)
+     */
+    public static void putLong(final String key, final long value, final long ttlMs) {
+        instance().putLong(key, value, ttlMs);
+    }
+
+    /**
+     * Save double value as long raw bits value, which expires after the time to live
+     *
+     * @see Prefs#putDouble(String, double, long)
+     */
+    public static void putDouble(final String key, final double value, final long ttlMs) {
+        instance().putDouble(key, value, ttlMs);
+    }
+
+    /**
+     * Save float value which expires after the time to live
+     *
+     * @see Prefs#putFloat(String, float, long)
+     */
+    public static void putFloat(final String key, final float value, final long ttlMs) {
+        instance().putFloat(key, value, ttlMs);
+    }
+
+    /**
+     * Save boolean value which expires after the time to live
+     *
+     * @see Prefs#putBoolean(String, boolean, long)
+     */
+    public static void putBoolean(final String key, final boolean value, final long ttlMs) {
+        instance().putBoolean(key, value, ttlMs);
+    }
+
+    /**
+     * Save an object in the compact binary form written by the codec
+     *
+     * @param key   name of preference to save or modify
+     * @param value new value of preference to save, null removes the key
+     * @param codec writes the object
+     * @see Prefs#putObject(String, Object, Codec)
+     */
+    public static <T> void putObject(final String key, final T value, final Codec<T> codec) {
+        instance().putObject(key, value, codec);
+    }
+
+    /**
+     * Save an object with the codec registered for its class
+     *
+     * @param key   name of preference to save or modify
+     * @param value new value of preference to save, null removes the key
+     * @see Builder#registerCodec(Class, Codec)
+     */
+    public static <T> void putObject(final String key, final T value) {
+        instance().putObject(key, value);
+    }
+
+    /**
+     * Return the object saved with the codec, decoded once until the preference changes
+     *
+     * @param key   name of the preference to retrieve;
+     * @param codec reads the object
+     * @return the object or null if the preference does not exist
+     * @see Prefs#getObject(String, Codec)
+     */
+    public static <T> T getObject(final String key, final Codec<T> codec) {
+        return instance().getObject(key, codec);
+    }
+
+    /**
+     * Return the object saved with the codec registered for the type
+     *
+     * @param key  name of the preference to retrieve;
+     * @param type class the codec is registered for
+     * @return the object or null if the preference does not exist
+     * @see Builder#registerCodec(Class, Codec)
+     */
+    public static <T> T getObject(final String key, final Class<T> type) {
+        return instance().getObject(key, type);
+    }
+
+    /**
+     * Pass every preference to the visitor with its typed value, without copying all of them into a map
+     *
+     * @param visitor receives the preferences
+     * @see Prefs#forEach(PrefsVisitor)
+     */
+    public static void forEach(final PrefsVisitor visitor) {
+        instance().forEach(visitor);
+    }
+
+    /**
+     * Pass every preference whose key starts with the prefix to the visitor with its typed value
+     *
+     * @param prefix  the key prefix, or null for all the preferences
+     * @param visitor receives the preferences
+     * @see Prefs#forEach(String, PrefsVisitor)
+     */
+    public static void forEach(final String prefix, final PrefsVisitor visitor) {
+        instance().forEach(prefix, visitor);
+    }
+
+    /**
+     * @param prefix the key prefix, an empty prefix for all the keys
+     * @return read-only sorted view of the keys starting with the prefix
+     * @see Prefs#keys(String)
+     */
+    public static SortedSet<String> keys(final String prefix) {
+        return instance().keys(prefix);
+    }
+
+    /**
+     * Atomically add the delta to the int value, 0 if it does not exist
+     *
+     * @param key   name of the preference
+     * @param delta the value to add
+     * @return the updated value
+     * @see Prefs#incrementAndGet(String, int)
+     */
+    public static int incrementAndGet(final String key, final int delta) {
+        return instance().incrementAndGet(key, delta);
+    }
+
+    /**
+     * Atomically add the delta to the long value, 0 if it does not exist
+     *
+     * @param key   name of the preference
+     * @param delta the value to add
+     * @return the updated value
+     * @see Prefs#incrementAndGet(String, long)
+     */
+    public static long incrementAndGet(final String key, final long delta) {
+        return instance().incrementAndGet(key, delta);
+    }
+
+    /**
+     * Atomically add the delta to the double value, 0 if it does not exist
+     *
+     * @param key   name of the preference
+     * @param delta the value to add
+     * @return the updated value
+     * @see Prefs#incrementAndGet(String, double)
+     */
+    public static double incrementAndGet(final String key, final double delta) {
+        return instance().incrementAndGet(key, delta);
+    }
+
+    /**
+     * Atomically set the int value to the update, if it is equal to the expected value
+     *
+     * @param key    name of the preference
+     * @param expect the expected value, 0 matches a missing value
+     * @param update the new value
+     * @return {@code true} if the value was updated
+     * @see Prefs#compareAndSet(String, int, int)
+     */
+    public static boolean compareAndSet(final String key, final int expect, final int update) {
+        return instance().compareAndSet(key, expect, update);
+    }
+
+    /**
+     * Atomically set the long value to the update, if it is equal to the expected value
+     *
+     * @param key    name of the preference
+     * @param expect the expected value, 0 matches a missing value
+     * @param update the new value
+     * @return {@code true} if the value was updated
+     * @see Prefs#compareAndSet(String, long, long)
+     */
+    public static boolean compareAndSet(final String key, final long expect, final long update) {
+        return instance().compareAndSet(key, expect, update);
+    }
+
+    /**
+     * Atomically set the double value to the update, if it is equal to the expected value
+     *
+     * @param key    name of the preference
+     * @param expect the expected value, 0 matches a missing value
+     * @param update the new value
+     * @return {@code true} if the value was updated
+     * @see Prefs#compareAndSet(String, double, double)
+     */
+    public static boolean compareAndSet(final String key, final double expect, final double update) {
+        return instance().compareAndSet(key, expect, update);
+    }
+
+    /**
+     * Atomically replace the int value with the result of the updater
+     *
+     * @param key     name of the preference
+     * @param updater computes the new value
+     * @return the previous value
+     * @see Prefs#getAndUpdateInt(String, Prefs.IntUpdater)
+     */
+    public static int getAndUpdateInt(final String key, final Prefs.IntUpdater updater) {
+        return instance().getAndUpdateInt(key, updater);
+    }
+
+    /**
+     * Atomically replace the long value with the result of the updater
+     *
+     * @param key     name of the preference
+     * @param updater computes the new value
+     * @return the previous value
+     * @see Prefs#getAndUpdateLong(String, Prefs.LongUpdater)
+     */
+    public static long getAndUpdateLong(final String key, final Prefs.LongUpdater updater) {
+        return instance().getAndUpdateLong(key, updater);
+    }
+
+    /**
+     * Atomically replace the double value with the result of the updater
+     *
+     * @param key     name of the preference
+     * @param updater computes the new value
+     * @return the previous value
+     * @see Prefs#getAndUpdateDouble(String, Prefs.DoubleUpdater)
+     */
+    public static double getAndUpdateDouble(final String key, final Prefs.DoubleUpdater updater) {
+        return instance().getAndUpdateDouble(key, updater);
+    }
+
+    /**
+     * Listen to the changes of one key
+     *
+     * @param key      name of the preference to listen to
+     * @param listener receives the changes, held by a weak reference
+     * @see Prefs#subscribe(String, PrefsChangeListener)
+     */
+    public static void subscribe(final String key, final PrefsChangeListener listener) {
+        instance().subscribe(key, listener);
+    }
+
+    /**
+     * Listen to the changes of all the keys starting with the prefix
+     *
+     * @param prefix   the key prefix to listen to
+     * @param listener receives the changes, held by a weak reference
+     * @see Prefs#subscribePrefix(String, PrefsChangeListener)
+     */
+    public static void subscribePrefix(final String prefix, final PrefsChangeListener listener) {
+        instance().subscribePrefix(prefix, listener);
+    }
+
+    /**
+     * Listen to the changes of all the keys
+     *
+     * @param listener receives the changes, held by a weak reference
+     * @see Prefs#subscribeAll(PrefsChangeListener)
+     */
+    public static void subscribeAll(final PrefsChangeListener listener) {
+        instance().subscribeAll(listener);
+    }
+
+    /**
+     * Stop delivering the changes to the listener
+     *
+     * @param listener the subscribed listener
+     */
+    public static void unsubscribe(final PrefsChangeListener listener) {
+        instance().unsubscribe(listener);
     }
 
     /**
@@ -329,7 +782,7 @@ public final class SimplePrefs {
      * @see android.content.SharedPreferences#contains(String)
      */
     public static boolean contains(final String key) {
-        return getPreference().contains(key);
+        return instance().contains(key);
     }
 
     /**
@@ -338,9 +791,22 @@ public final class SimplePrefs {
      * @see Editor##remove(String)
      */
     public static void remove(final String key){
-        final Editor editor = getPreference().edit();
-        editor.remove(key);
-        editor.apply();
+        instance().remove(key);
+    }
+
+
+
+    /**
+     * Write all the changes waiting in write-behind mode and wait for the disk write.
+     * Call it when the app goes to background, if the changes must survive the process death;
+     * SimplePrefs also flushes by itself when the app UI is hidden.
+     * It does nothing if write-behind mode is not enabled.
+     *
+     * @return {@code true} if the pending changes were written successfully
+     * @see Builder#setWriteBehind(long)
+     */
+    public static boolean flush() {
+        return instance().flush();
     }
 
 
@@ -351,18 +817,38 @@ public final class SimplePrefs {
      * @see android.content.SharedPreferences.Editor#clear()
      */
     public static Editor clear() {
-        final Editor editor = getPreference().edit().clear();
-        editor.apply();
-        return editor;
+        return instance().clear();
+    }
+
+    /**
+     * Start a batch of changes which are written with a single editor on {@link Batch#apply()}
+     * or {@link Batch#commit()}. Repeated writes to the same key inside the batch are coalesced.
+     *
+     * @return new empty batch
+     * @see Batch
+     */
+    public static Batch beginBatch() {
+        return instance().beginBatch();
     }
 
     /**
-     * Returns editor for underlying shared preference
+     * Run the block and apply all the changes it records with a single editor
+     *
+     * @param block records the changes into the given batch
+     * @see Batch#apply()
+     */
+    public static void batch(final Batch.Block block) {
+        instance().batch(block);
+    }
+
+    /**
+     * Returns editor for the preferences, which writes all its changes to the storage engine at once
      *
      * @return editor
+     * @see Batch
      */
     public static Editor edit() {
-        return getPreference().edit();
+        return instance().edit();
     }
 
 
@@ -371,6 +857,23 @@ public final class SimplePrefs {
         private int mode = Context.MODE_PRIVATE;
         private Context context;
         private boolean isDefaultUsed = false;
+        private long writeBehindDelayMs;
+        private PrefsStore store;
+        private Callable<? extends PrefsStore> storeLoader;
+        private Executor executor;
+        private boolean primitiveCache;
+        private int shards = 1;
+        private boolean metrics;
+        private final Map<Class<?>, Codec<?>> codecs = new HashMap<>();
+        private int compressionThreshold;
+        private String[] compressedPrefixes = new String[0];
+        private Executor changeExecutor;
+        private long changeDebounceMs;
+        private int cacheMaxEntries;
+        private EncryptedPrefsStore.KeyProvider keyProvider;
+        private long cacheMaxBytes;
+        private PrefsStore migrationSource;
+        private int migrationChunkSize = MigrationStore.DEFAULT_CHUNK_SIZE;
 
         /**
          * Set the filename of SimplePrefs name. It is packagename.xml by default but it can
@@ -403,6 +906,11 @@ public final class SimplePrefs {
          * @param mode an operate mode, use 0 or {@link Context#MODE_PRIVATE} to create a private filename.xml
          *             or {@link Context#MODE_WORLD_READABLE},{@link Context#MODE_WORLD_WRITEABLE} to create a public filename.xml which is accessible by other apps.
          *             However, the MODE_WORLD_READABLE and MODE_WORLD_WRITABLE have been depreciated since API level 17;
+         *             {@link Context#MODE_MULTI_PROCESS} keeps the preferences in a {@link MultiProcessPrefsStore},
+         *             which is consistent across the processes of the app, instead of reloading the whole file on
+         *             every read; the preferences of the SharedPreferences file are copied into it the first time;
+         *             the shards are not used in this mode, and the atomic operations and the time to live
+         *             throw {@link UnsupportedOperationException};
          * @return the {@link com.wideinc.library.simpleprefs.SimplePrefs.Builder} object;
          * @see Context#getSharedPreferences(String, int)
          */
@@ -430,12 +938,317 @@ public final class SimplePrefs {
         }
 
         /**
-         * Initialize the preference instance
+         * Enable write-behind mode. Changed keys are kept in memory and written together once per
+         * flush window on a background thread, instead of one disk write per put.
+         * Reads see the pending values immediately. Pending changes are flushed when the app UI is hidden
+         * or explicitly with {@link SimplePrefs#flush()}.
          *
-         * @throws RuntimeException if context is null or not set
+         * @param flushDelayMs length of the flush window in milliseconds, 0 disables write-behind mode;
+         * @return the {@link com.wideinc.library.simpleprefs.SimplePrefs.Builder} object;
+         * @throws IllegalArgumentException if flushDelayMs is negative
          */
+        public Builder setWriteBehind(long flushDelayMs) {
+            if (flushDelayMs < 0)
+                throw new IllegalArgumentException("Flush delay can not be negative: " + flushDelayMs);
+            this.writeBehindDelayMs = flushDelayMs;
+            return this;
+        }
 
-        public void build() {
+        /**
+         * Cache int, long, float, double and boolean values in primitive arrays, so that their reads take
+         * no lock and allocate nothing once the key has been read. The cache is updated by the writes made
+         * through SimplePrefs, it suits read-mostly keys like feature flags read in rendering code;
+         *
+         * @param primitiveCache whether the primitive values are cached, false by default;
+         * @return the {@link com.wideinc.library.simpleprefs.SimplePrefs.Builder} object;
+         */
+        public Builder setPrimitiveCache(boolean primitiveCache) {
+            this.primitiveCache = primitiveCache;
+            return this;
+        }
+
+        /**
+         * Set the executor which calls the change listeners, for example one posting to the main thread.
+         * They are called on a background thread by default;
+         *
+         * @param executor executor to deliver the changes on;
+         * @return the {@link com.wideinc.library.simpleprefs.SimplePrefs.Builder} object;
+         * @see Prefs#subscribe(String, PrefsChangeListener)
+         */
+        public Builder setChangeExecutor(Executor executor) {
+            this.changeExecutor = executor;
+            return this;
+        }
+
+        /**
+         * Collect the changes for the given time before they are delivered to the listeners, so that a burst of
+         * writes makes one call per listener. The changes made at the same time are always delivered together;
+         *
+         * @param debounceMs time to collect the changes in milliseconds, 0 by default;
+         * @return the {@link com.wideinc.library.simpleprefs.SimplePrefs.Builder} object;
+         * @throws IllegalArgumentException if debounceMs is negative
+         */
+        public Builder setChangeDebounce(long debounceMs) {
+            if (debounceMs < 0)
+                throw new IllegalArgumentException("Change debounce can not be negative: " + debounceMs);
+            this.changeDebounceMs = debounceMs;
+            return this;
+        }
+
+        /**
+         * Save the string and string set values with at least the given number of characters Deflate-compressed.
+         * They are decompressed when they are read, and the values saved uncompressed are still read as they are.
+         * A value is compressed only if that makes it shorter; {@link Prefs#getPreference()} returns the raw values;
+         *
+         * @param thresholdChars values with at least this many characters are compressed, 0 disables the threshold;
+         * @return the {@link com.wideinc.library.simpleprefs.SimplePrefs.Builder} object;
+         * @throws IllegalArgumentException if thresholdChars is negative
+         * @see #setCompressedPrefixes(String...)
+         */
+        public Builder setCompression(int thresholdChars) {
+            if (thresholdChars < 0)
+                throw new IllegalArgumentException("Compression threshold can not be negative: " + thresholdChars);
+            this.compressionThreshold = thresholdChars;
+            return this;
+        }
+
+        /**
+         * Save the string and string set values of the keys starting with any of the prefixes Deflate-compressed,
+         * whatever their size;
+         *
+         * @param prefixes key prefixes, none by default;
+         * @return the {@link com.wideinc.library.simpleprefs.SimplePrefs.Builder} object;
+         * @see #setCompression(int)
+         */
+        public Builder setCompressedPrefixes(String... prefixes) {
+            this.compressedPrefixes = prefixes.clone();
+            return this;
+        }
+
+        /**
+         * Register the codec which saves the objects of the given class with {@link SimplePrefs#putObject(String, Object)};
+         *
+         * @param type  class of the objects;
+         * @param codec writes and reads the objects;
+         * @return the {@link com.wideinc.library.simpleprefs.SimplePrefs.Builder} object;
+         */
+        public <T> Builder registerCodec(Class<T> type, Codec<T> codec) {
+            codecs.put(type, codec);
+            return this;
+        }
+
+        /**
+         * Record the count and the latency of every operation, the bytes written by every flush and the
+         * most used keys. When disabled, the operations are not instrumented and cost nothing extra;
+         *
+         * @param metrics whether the metrics are recorded, false by default;
+         * @return the {@link com.wideinc.library.simpleprefs.SimplePrefs.Builder} object;
+         * @see SimplePrefs#metrics()
+         */
+        public Builder setMetrics(boolean metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        /**
+         * Split the preferences across several SharedPreferences files by the hash of the key, so that a write
+         * rewrites only the file which owns the key. It helps when there are many keys, since every write
+         * of a SharedPreferences file rewrites the whole file. The files are named prefsName_shard0 to
+         * prefsName_shardN-1, the preferences already saved in the unsharded file are not moved to them.
+         * The number of shards must not change between app launches. It is not used with a custom engine,
+         * see {@link ShardedPrefsStore} to shard a custom engine;
+         *
+         * @param shards number of files, 1 by default;
+         * @return the {@link com.wideinc.library.simpleprefs.SimplePrefs.Builder} object;
+         * @throws IllegalArgumentException if shards is less than 1
+         */
+        public Builder setShards(int shards) {
+            if (shards < 1)
+                throw new IllegalArgumentException("Number of shards must be at least 1: " + shards);
+            this.shards = shards;
+            return this;
+        }
+
+        /**
+         * Encrypt the values at rest with the key of the provider, see {@link EncryptedPrefsStore}. The values are
+         * compressed before they are encrypted. Use it with a new preferences name, since the values of other types
+         * than string already saved with the name can not be read;
+         *
+         * @param keyProvider provides the secret key, null to save the values in plain
+         * @return the {@link com.wideinc.library.simpleprefs.SimplePrefs.Builder} object;
+         */
+        public Builder setEncryption(EncryptedPrefsStore.KeyProvider keyProvider) {
+            this.keyProvider = keyProvider;
+            return this;
+        }
+
+        /**
+         * Enable cache mode for a store which holds cached data. Once the preferences pass one of the limits,
+         * the least recently read or written keys are evicted, and their removal is written together with
+         * the write which passed the limit. The recency is tracked in memory, after a restart the keys
+         * saved by the previous launches are the first evicted;
+         *
+         * @param maxEntries number of keys to keep, 0 for no limit;
+         * @param maxBytes   approximate size of the keys and values to keep, strings counted in UTF-8 bytes,
+         *                   0 for no limit;
+         * @return the {@link com.wideinc.library.simpleprefs.SimplePrefs.Builder} object;
+         * @throws IllegalArgumentException if a limit is negative
+         */
+        public Builder setCacheMode(int maxEntries, long maxBytes) {
+            if (maxEntries < 0 || maxBytes < 0)
+                throw new IllegalArgumentException("Cache limits must not be negative: " + maxEntries + ", " + maxBytes);
+            this.cacheMaxEntries = maxEntries;
+            this.cacheMaxBytes = maxBytes;
+            return this;
+        }
+
+        /**
+         * Move the preferences from the source to the storage engine of this instance, in chunks on a background
+         * thread, see {@link MigrationStore}. The reads are served from the source until all the preferences are
+         * moved; an interrupted migration resumes on the next launch. Once moved, the source is no longer used;
+         *
+         * @param source the engine which holds the preferences, for example the SharedPreferences file used so far;
+         * @return the {@link com.wideinc.library.simpleprefs.SimplePrefs.Builder} object;
+         * @see Prefs#getMigration()
+         */
+        public Builder setMigrationSource(PrefsStore source) {
+            return setMigrationSource(source, MigrationStore.DEFAULT_CHUNK_SIZE);
+        }
+
+        /**
+         * Move the preferences from the source to the storage engine of this instance, see {@link #setMigrationSource(PrefsStore)};
+         *
+         * @param source    the engine which holds the preferences;
+         * @param chunkSize number of preferences copied in one write;
+         * @return the {@link com.wideinc.library.simpleprefs.SimplePrefs.Builder} object;
+         * @throws IllegalArgumentException if the chunk size is not positive
+         */
+        public Builder setMigrationSource(PrefsStore source, int chunkSize) {
+            if (chunkSize <= 0)
+                throw new IllegalArgumentException("Migration chunk size must be positive: " + chunkSize);
+            this.migrationSource = source;
+            this.migrationChunkSize = chunkSize;
+            return this;
+        }
+
+        /**
+         * Set the storage engine to keep the preferences, instead of the default SharedPreferences file.
+         * The prefs name and mode are not used with a custom engine and the context is optional;
+         *
+         * @param store a storage engine;
+         * @return the {@link com.wideinc.library.simpleprefs.SimplePrefs.Builder} object;
+         * @see SharedPreferencesStore
+         */
+        public Builder setStore(PrefsStore store) {
+            this.store = store;
+            return this;
+        }
+
+        /**
+         * Set the loader which opens the storage engine, so that it can be opened in background by {@link #buildAsync()}.
+         * The prefs name and mode are not used with a custom engine and the context is optional;
+         *
+         * @param storeLoader opens a storage engine;
+         * @return the {@link com.wideinc.library.simpleprefs.SimplePrefs.Builder} object;
+         * @see #setStore(PrefsStore)
+         */
+        public Builder setStoreLoader(Callable<? extends PrefsStore> storeLoader) {
+            this.storeLoader = storeLoader;
+            return this;
+        }
+
+        /**
+         * Set the executor which loads the preferences in {@link #buildAsync()}. A new thread is started by default;
+         *
+         * @param executor a background executor;
+         * @return the {@link com.wideinc.library.simpleprefs.SimplePrefs.Builder} object;
+         */
+        public Builder setExecutor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        /**
+         * Initialize the preference instance used by the static methods of SimplePrefs
+         *
+         * @return the instance
+         * @throws RuntimeException if neither context nor storage engine is set, or the storage engine failed to open
+         */
+
+        public Prefs build() {
+            final Prefs prefs = buildInstance();
+            install(prefs);
+            return prefs;
+        }
+
+        /**
+         * Create an independent preference instance, backed by its own storage engine and with its own write scheduling.
+         * It does not change the instance used by the static methods of SimplePrefs. The instance is registered by its
+         * prefs name, see {@link SimplePrefs#getInstance(String)}; building another one with the same name replaces it;
+         *
+         * @return the instance
+         * @throws RuntimeException if neither context nor storage engine is set, or the storage engine failed to open
+         */
+        public Prefs buildInstance() {
+            if (store != null) {
+                return create(store);
+            }
+            if (storeLoader != null) {
+                try {
+                    return create(storeLoader.call());
+                } catch (Exception e) {
+                    throw new RuntimeException("Simple Prefs failed to open the storage engine.", e);
+                }
+            }
+            checkContext();
+            return create(SimplePrefs.open(context, prefsName, mode, shards, false));
+        }
+
+        /**
+         * Initialize the preference instance without blocking the calling thread, the preferences are loaded
+         * on the background executor. Until they are loaded, reads of keys written in the meantime are served
+         * from memory and other reads wait for the load to complete;
+         *
+         * @return future which completes when the preferences are loaded
+         * @throws RuntimeException if neither context nor storage engine is set
+         * @see #setExecutor(Executor)
+         */
+        public Future<PrefsStore> buildAsync() {
+            final Callable<? extends PrefsStore> loader;
+            if (store != null) {
+                final PrefsStore opened = store;
+                loader = new Callable<PrefsStore>() {
+                    @Override
+                    public PrefsStore call() {
+                        return opened;
+                    }
+                };
+            } else if (storeLoader != null) {
+                loader = storeLoader;
+            } else {
+                checkContext();
+                final Context context = this.context;
+                final String prefsName = this.prefsName;
+                final int mode = this.mode;
+                final int shards = this.shards;
+                loader = new Callable<PrefsStore>() {
+                    @Override
+                    public PrefsStore call() {
+                        return SimplePrefs.open(context, prefsName, mode, shards, true);
+                    }
+                };
+            }
+            final AsyncLoadStore async = new AsyncLoadStore(loader, executor != null ? executor : new Executor() {
+                @Override
+                public void execute(Runnable runnable) {
+                    new Thread(runnable, "SimplePrefs-Load").start();
+                }
+            });
+            install(create(async));
+            return async.future();
+        }
+
+        private void checkContext() {
             if (context == null)
                 throw new RuntimeException("Please, set the context before initializing");
             if (TextUtils.isEmpty(prefsName)) {
@@ -444,9 +1257,33 @@ public final class SimplePrefs {
             if (isDefaultUsed) {
                 prefsName.concat(DEFAULT_SUFFIX);
             }
-            SimplePrefs.init(context, prefsName, mode);
         }
 
-
+        private Prefs create(PrefsStore engine) {
+            final boolean multiProcess = engine instanceof MultiProcessPrefsStore
+                    || store == null && storeLoader == null && mode == Context.MODE_MULTI_PROCESS;
+            if (keyProvider != null) {
+                engine = new EncryptedPrefsStore(engine, keyProvider);
+            }
+            if (compressionThreshold > 0 || compressedPrefixes.length > 0) {
+                engine = new CompressionStore(engine, compressionThreshold, compressedPrefixes);
+            }
+            if (migrationSource != null) {
+                engine = new MigrationStore(migrationSource, engine, migrationChunkSize);
+            }
+            final Prefs prefs = new Prefs(prefsName, engine, writeBehindDelayMs, primitiveCache, metrics,
+                    new HashMap<Class<?>, Codec<?>>(codecs), new ChangeNotifier(changeExecutor, changeDebounceMs),
+                    cacheMaxEntries, cacheMaxBytes, multiProcess);
+            if (context != null) {
+                prefs.registerCallbacks(context);
+            }
+            if (prefsName != null) {
+                final Prefs previous = instances.put(prefsName, prefs);
+                if (previous != null && previous != instance) {
+                    previous.shutdown();
+                }
+            }
+            return prefs;
+        }
     }
 }
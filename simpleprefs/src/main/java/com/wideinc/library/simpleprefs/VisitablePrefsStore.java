@@ -0,0 +1,16 @@
+package com.wideinc.library.simpleprefs;
+
+/**
+ * A storage engine which can walk its preferences in place, instead of copying them all like {@link #getAll()}
+ */
+public interface VisitablePrefsStore extends PrefsStore {
+
+    /**
+     * Pass every preference whose key starts with the prefix to the visitor. The changes made during the walk
+     * may or may not be visited. The visitor must not write to the store.
+     *
+     * @param prefix  the key prefix, or null for all the preferences
+     * @param visitor receives the preferences
+     */
+    void forEach(String prefix, PrefsVisitor visitor);
+}
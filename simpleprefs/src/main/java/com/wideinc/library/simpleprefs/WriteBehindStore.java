@@ -0,0 +1,404 @@
+package com.wideinc.library.simpleprefs;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps dirty keys in memory and writes them to the underlying store once per flush window
+ * on a single background thread. Pending values are visible to the readers immediately.
+ * It also flushes when the app goes to background, see {@link #onTrimMemory(int)}.
+ * <p>
+ * The writers lock only the stripes of their keys, chosen by the key hash, so that the threads writing
+ * different keys do not wait for each other. A flush and a clear lock all the stripes, so a flush never
+ * writes a part of a batch, and a value written during a flush stays pending for the next one.
+ */
+final class WriteBehindStore implements VisitablePrefsStore, ComponentCallbacks2 {
+
+    /**
+     * Marks a pending removal, since the pending map can not hold null values
+     */
+    private static final Object REMOVED = new Object();
+    private static final int STRIPES = 16;
+
+    private final PrefsStore store;
+    private final long flushDelayMs;
+    private final ConcurrentHashMap<String, Object> pending = new ConcurrentHashMap<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final Object flushLock = new Object();
+    private final Object[] stripes = new Object[STRIPES];
+    private final ScheduledExecutorService executor;
+    private volatile boolean clearPending;
+    // guarded by all the stripes
+    private long clears;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            scheduled.set(false);
+            if (!flush()) {
+                // retried after the next delay, nothing else may schedule it
+                schedule();
+            }
+        }
+    };
+
+    WriteBehindStore(final PrefsStore store, final long flushDelayMs) {
+        this.store = store;
+        this.flushDelayMs = flushDelayMs;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "SimplePrefs-WriteBehind");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Return the pending value of the key
+     *
+     * @return pending value, {@link #REMOVED} if the key is going to be removed or null if nothing is pending
+     */
+    private Object pending(final String key) {
+        final Object value = pending.get(key);
+        if (value == null && clearPending) {
+            return REMOVED;
+        }
+        return value;
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        final Map<String, Object> all = clearPending ? new HashMap<String, Object>() : new HashMap<String, Object>(store.getAll());
+        for (Map.Entry<String, Object> entry : pending.entrySet()) {
+            if (entry.getValue() == REMOVED) {
+                all.remove(entry.getKey());
+            } else {
+                all.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return all;
+    }
+
+    /**
+     * Visit the saved preferences without a pending change, then the pending values
+     */
+    @Override
+    public void forEach(final String prefix, final PrefsVisitor visitor) {
+        if (!clearPending) {
+            PrefsVisitor.forEach(store, prefix, new PrefsVisitor() {
+                @Override
+                public void onInt(String key, int value) {
+                    if (!pending.containsKey(key)) {
+                        visitor.onInt(key, value);
+                    }
+                }
+
+                @Override
+                public void onLong(String key, long value) {
+                    if (!pending.containsKey(key)) {
+                        visitor.onLong(key, value);
+                    }
+                }
+
+                @Override
+                public void onFloat(String key, float value) {
+                    if (!pending.containsKey(key)) {
+                        visitor.onFloat(key, value);
+                    }
+                }
+
+                @Override
+                public void onBoolean(String key, boolean value) {
+                    if (!pending.containsKey(key)) {
+                        visitor.onBoolean(key, value);
+                    }
+                }
+
+                @Override
+                public void onString(String key, String value) {
+                    if (!pending.containsKey(key)) {
+                        visitor.onString(key, value);
+                    }
+                }
+
+                @Override
+                public void onStringSet(String key, Set<String> values) {
+                    if (!pending.containsKey(key)) {
+                        visitor.onStringSet(key, values);
+                    }
+                }
+            });
+        }
+        for (Map.Entry<String, Object> entry : pending.entrySet()) {
+            if (entry.getValue() != REMOVED && PrefsVisitor.matches(prefix, entry.getKey())) {
+                visitor.visit(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    @Override
+    public int getInt(final String key, final int defValue) {
+        final Object value = pending(key);
+        if (value != null) {
+            return value == REMOVED ? defValue : (Integer) value;
+        }
+        return store.getInt(key, defValue);
+    }
+
+    @Override
+    public long getLong(final String key, final long defValue) {
+        final Object value = pending(key);
+        if (value != null) {
+            return value == REMOVED ? defValue : (Long) value;
+        }
+        return store.getLong(key, defValue);
+    }
+
+    @Override
+    public float getFloat(final String key, final float defValue) {
+        final Object value = pending(key);
+        if (value != null) {
+            return value == REMOVED ? defValue : (Float) value;
+        }
+        return store.getFloat(key, defValue);
+    }
+
+    @Override
+    public boolean getBoolean(final String key, final boolean defValue) {
+        final Object value = pending(key);
+        if (value != null) {
+            return value == REMOVED ? defValue : (Boolean) value;
+        }
+        return store.getBoolean(key, defValue);
+    }
+
+    @Override
+    public String getString(final String key, final String defValue) {
+        final Object value = pending(key);
+        if (value != null) {
+            return value == REMOVED ? defValue : (String) value;
+        }
+        return store.getString(key, defValue);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Set<String> getStringSet(final String key, final Set<String> defValues) {
+        final Object value = pending(key);
+        if (value != null) {
+            return value == REMOVED ? defValues : (Set<String>) value;
+        }
+        return store.getStringSet(key, defValues);
+    }
+
+    @Override
+    public boolean contains(final String key) {
+        final Object value = pending(key);
+        if (value != null) {
+            return value != REMOVED;
+        }
+        return store.contains(key);
+    }
+
+    /**
+     * Queue the changes, null value removes the key
+     *
+     * @param sync if true, flush on the calling thread and wait for the disk write
+     * @return {@code true} if the changes were queued or written successfully
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean write(final boolean clear, final Map<String, Object> changes, final boolean sync) {
+        if (clear) {
+            lockAll(0, new Runnable() {
+                @Override
+                public void run() {
+                    pending.clear();
+                    clearPending = true;
+                    clears++;
+                    queue(changes);
+                }
+            });
+        } else if (changes.size() == 1) {
+            final String key = changes.keySet().iterator().next();
+            synchronized (stripes[stripe(key)]) {
+                queue(changes);
+            }
+        } else if (!changes.isEmpty()) {
+            final boolean[] locked = new boolean[STRIPES];
+            for (String key : changes.keySet()) {
+                locked[stripe(key)] = true;
+            }
+            lockStripes(locked, 0, new Runnable() {
+                @Override
+                public void run() {
+                    queue(changes);
+                }
+            });
+        }
+        if (sync) {
+            return flush();
+        }
+        schedule();
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void queue(final Map<String, Object> changes) {
+        for (Map.Entry<String, Object> entry : changes.entrySet()) {
+            final Object value = entry.getValue();
+            if (value == null) {
+                pending.put(entry.getKey(), REMOVED);
+            } else if (value instanceof Set) {
+                pending.put(entry.getKey(), Collections.unmodifiableSet(new HashSet<>((Set<String>) value)));
+            } else {
+                pending.put(entry.getKey(), value);
+            }
+        }
+    }
+
+    private static int stripe(final String key) {
+        final int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+
+    /**
+     * Run the task holding the given stripes, always locked in the same order so that the writers can not deadlock
+     */
+    private void lockStripes(final boolean[] locked, final int from, final Runnable task) {
+        int index = from;
+        while (index < STRIPES && !locked[index]) {
+            index++;
+        }
+        if (index == STRIPES) {
+            task.run();
+            return;
+        }
+        synchronized (stripes[index]) {
+            lockStripes(locked, index + 1, task);
+        }
+    }
+
+    private void lockAll(final int from, final Runnable task) {
+        if (from == STRIPES) {
+            task.run();
+            return;
+        }
+        synchronized (stripes[from]) {
+            lockAll(from + 1, task);
+        }
+    }
+
+    private void schedule() {
+        if (executor.isShutdown()) {
+            // shut down while still referenced, the changes are written right away
+            flush();
+        } else if (scheduled.compareAndSet(false, true)) {
+            executor.schedule(flushTask, flushDelayMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Flush on the background thread, or on the calling thread once this store is shut down
+     */
+    private void flushNow() {
+        if (executor.isShutdown()) {
+            flush();
+        } else {
+            executor.execute(flushTask);
+        }
+    }
+
+    /**
+     * Write all pending changes at once and wait for the disk write
+     *
+     * @return {@code true} if there was nothing to write or the changes were written successfully,
+     * otherwise the changes stay pending
+     */
+    boolean flush() {
+        synchronized (flushLock) {
+            if (pending.isEmpty() && !clearPending) {
+                return true;
+            }
+            final Map<String, Object> snapshot = new HashMap<>(pending.size() * 2);
+            final boolean[] clear = new boolean[1];
+            final long[] clearsSnapshot = new long[1];
+            lockAll(0, new Runnable() {
+                @Override
+                public void run() {
+                    snapshot.putAll(pending);
+                    clear[0] = clearPending;
+                    clearsSnapshot[0] = clears;
+                }
+            });
+            final Map<String, Object> changes = new HashMap<>(snapshot.size());
+            for (Map.Entry<String, Object> entry : snapshot.entrySet()) {
+                changes.put(entry.getKey(), entry.getValue() == REMOVED ? null : entry.getValue());
+            }
+            final boolean written = store.write(clear[0], changes, true);
+            if (!written) {
+                // the changes stay pending and are written again by the next flush
+                return false;
+            }
+            lockAll(0, new Runnable() {
+                @Override
+                public void run() {
+                    // the clear is reset first, the reads do not lock and a key
+                    // already removed from pending must not look cleared meanwhile
+                    if (clears == clearsSnapshot[0]) {
+                        clearPending = false;
+                    }
+                    // values changed again while writing stay pending for the next flush
+                    for (Map.Entry<String, Object> entry : snapshot.entrySet()) {
+                        pending.remove(entry.getKey(), entry.getValue());
+                    }
+                }
+            });
+            return true;
+        }
+    }
+
+    /**
+     * Write pending changes and stop the background thread
+     */
+    void shutdown() {
+        executor.shutdown();
+        flush();
+    }
+
+    /**
+     * Flush pending changes as soon as the app UI is hidden, the process may be killed in background
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            flushNow();
+        }
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    @Override
+    public void onLowMemory() {
+        flushNow();
+    }
+}
@@ -0,0 +1,57 @@
+package com.wideinc.library.simpleprefs;
+
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class AsyncLoadTest {
+
+    /**
+     * Opens an in-memory store with one saved key once it is released, as slowly as a large preference file
+     */
+    private static Callable<PrefsStore> slowLoader(final CountDownLatch release) {
+        return new Callable<PrefsStore>() {
+            @Override
+            public PrefsStore call() throws Exception {
+                release.await();
+                final InMemoryPrefsStore store = new InMemoryPrefsStore();
+                SimplePrefsTestUtil.put(store, "saved", 42);
+                return store;
+            }
+        };
+    }
+
+    @Test(timeout = 5000)
+    public void buildAsyncDoesNotBlockCallingThread() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        // returns while the loader is still waiting, it would never return if it loaded on this thread
+        final Future<PrefsStore> loaded = new SimplePrefs.Builder().setStoreLoader(slowLoader(release)).buildAsync();
+        assertFalse(loaded.isDone());
+
+        release.countDown();
+        assertEquals(42, SimplePrefs.getInt("saved"));
+        assertTrue(loaded.isDone());
+    }
+
+    @Test
+    public void keysWrittenBeforeLoadAreReadWithoutWaiting() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final Future<PrefsStore> loaded = new SimplePrefs.Builder().setStoreLoader(slowLoader(release)).buildAsync();
+
+        SimplePrefs.putString("session", "started");
+        SimplePrefs.remove("saved");
+        assertEquals("started", SimplePrefs.getString("session"));
+        assertFalse(SimplePrefs.contains("saved"));
+        assertFalse(loaded.isDone());
+
+        release.countDown();
+        final PrefsStore store = loaded.get();
+        assertEquals("started", store.getString("session", null));
+        assertFalse(store.contains("saved"));
+        assertEquals(1, SimplePrefs.getAll().size());
+    }
+}
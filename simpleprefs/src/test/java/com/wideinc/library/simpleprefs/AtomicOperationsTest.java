@@ -0,0 +1,189 @@
+package com.wideinc.library.simpleprefs;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class AtomicOperationsTest {
+
+    private FakeSharedPreferences preferences;
+    private Prefs prefs;
+
+    @Before
+    public void setUp() {
+        preferences = new FakeSharedPreferences();
+        prefs = new SimplePrefs.Builder()
+                .setStore(new SharedPreferencesStore(preferences))
+                .buildInstance();
+    }
+
+    @Test
+    public void concurrentIncrementsAreNotLost() throws Exception {
+        final int threads = 8;
+        final int increments = 10000;
+        final List<Thread> started = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < increments; i++) {
+                        prefs.incrementAndGet("launches", 1);
+                        prefs.incrementAndGet("bytes", 2L);
+                    }
+                }
+            });
+            thread.start();
+            started.add(thread);
+        }
+        for (Thread thread : started) {
+            thread.join();
+        }
+        assertEquals(threads * increments, prefs.getInt("launches"));
+        assertEquals(2L * threads * increments, prefs.getLong("bytes"));
+        assertTrue(prefs.flush());
+        assertEquals(threads * increments, preferences.getInt("launches", 0));
+        assertEquals(2L * threads * increments, preferences.getLong("bytes", 0));
+        // coalesced into the flushes of the window, not one write per increment
+        assertTrue(preferences.writes <= 3);
+    }
+
+    @Test
+    public void startsFromSavedValue() {
+        prefs.putInt("count", 41);
+        assertEquals(42, prefs.incrementAndGet("count", 1));
+        prefs.putDouble("total", 1.5);
+        assertEquals(2.0, prefs.incrementAndGet("total", 0.5), 0.0);
+        assertEquals(2.0, prefs.getDouble("total"), 0.0);
+        assertEquals(5, prefs.incrementAndGet("missing", 5));
+    }
+
+    @Test
+    public void compareAndSet() {
+        assertTrue(prefs.compareAndSet("version", 0, 3));
+        assertFalse(prefs.compareAndSet("version", 0, 4));
+        assertEquals(3, prefs.getInt("version"));
+        assertTrue(prefs.compareAndSet("ts", 0L, 1L << 40));
+        assertTrue(prefs.compareAndSet("ratio", 0.0, 0.25));
+        assertFalse(prefs.compareAndSet("ratio", 0.0, 0.5));
+        assertEquals(0.25, prefs.getDouble("ratio"), 0.0);
+    }
+
+    @Test
+    public void getAndUpdate() {
+        prefs.putInt("flags", 1);
+        final int previous = prefs.getAndUpdateInt("flags", new Prefs.IntUpdater() {
+            @Override
+            public int apply(int value) {
+                return value | 4;
+            }
+        });
+        assertEquals(1, previous);
+        assertEquals(5, prefs.getInt("flags"));
+        assertEquals(0L, prefs.getAndUpdateLong("max", new Prefs.LongUpdater() {
+            @Override
+            public long apply(long value) {
+                return Math.max(value, 10L);
+            }
+        }));
+        assertEquals(0.0, prefs.getAndUpdateDouble("half", new Prefs.DoubleUpdater() {
+            @Override
+            public double apply(double value) {
+                return (value + 1) / 2;
+            }
+        }), 0.0);
+        assertEquals(0.5, prefs.getDouble("half"), 0.0);
+    }
+
+    @Test
+    public void intOverflowWraps() {
+        prefs.putInt("count", Integer.MAX_VALUE);
+        assertEquals(Integer.MIN_VALUE, prefs.incrementAndGet("count", 1));
+        assertTrue(prefs.flush());
+        assertEquals(Integer.MIN_VALUE, preferences.getInt("count", 0));
+    }
+
+    @Test
+    public void putReplacesAtomicValue() {
+        prefs.incrementAndGet("count", 10);
+        prefs.putInt("count", 3);
+        assertEquals(3, prefs.getInt("count"));
+        assertTrue(prefs.flush());
+        assertEquals(3, preferences.getInt("count", 0));
+        assertEquals(4, prefs.incrementAndGet("count", 1));
+
+        prefs.clear();
+        assertFalse(prefs.contains("count"));
+        assertEquals(1, prefs.incrementAndGet("count", 1));
+    }
+
+    @Test
+    public void atomicValuesAreVisibleToReads() {
+        prefs.incrementAndGet("count", 2);
+        prefs.putString("name", "smash");
+        final Map<String, ?> all = prefs.getAll();
+        assertEquals(2, all.get("count"));
+        assertEquals(2, all.size());
+        assertTrue(prefs.contains("count"));
+        assertEquals(0, preferences.getInt("count", 0));
+    }
+
+    @Test
+    public void failedFlushKeepsCellsQueued() {
+        final boolean[] failing = {true};
+        final InMemoryPrefsStore engine = new InMemoryPrefsStore() {
+            @Override
+            public synchronized boolean write(boolean clear, Map<String, Object> changes, boolean sync) {
+                return !failing[0] && super.write(clear, changes, sync);
+            }
+        };
+        final AtomicStore store = new AtomicStore(engine, 60000);
+        final AtomicStore.Cell cell = store.cell("count", AtomicStore.INT);
+        cell.incrementAndGet();
+        store.changed("count", cell);
+        assertFalse(store.flush(true));
+
+        failing[0] = false;
+        assertTrue(store.flush(true));
+        assertEquals(1, engine.getInt("count", 0));
+        store.shutdown();
+    }
+
+    @Test
+    public void expiredKeyDropsItsCell() throws InterruptedException {
+        prefs.putInt("count", 5, 100);
+        assertEquals(6, prefs.incrementAndGet("count", 1));
+        Thread.sleep(300);
+        assertFalse(prefs.contains("count"));
+        assertEquals(0, prefs.getInt("count"));
+        // the dropped cell is not written back
+        assertTrue(prefs.flush());
+        assertFalse(preferences.contains("count"));
+    }
+
+    @Test
+    public void changesAfterShutdownAreWrittenDirectly() {
+        prefs.incrementAndGet("count", 1);
+        prefs.shutdown();
+        assertEquals(1, preferences.getInt("count", 0));
+        // no background thread is started again to write it later
+        assertEquals(2, prefs.incrementAndGet("count", 1));
+        assertEquals(2, preferences.getInt("count", 0));
+    }
+
+    @Test(expected = ClassCastException.class)
+    public void wrongTypeThrows() {
+        prefs.putString("count", "1");
+        prefs.incrementAndGet("count", 1);
+    }
+
+    @Test(expected = ClassCastException.class)
+    public void intCellReadAsLongThrows() {
+        prefs.incrementAndGet("count", 1);
+        prefs.getLong("count", 0);
+    }
+}
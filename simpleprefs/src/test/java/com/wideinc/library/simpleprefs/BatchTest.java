@@ -0,0 +1,63 @@
+package com.wideinc.library.simpleprefs;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BatchTest {
+
+    private FakeSharedPreferences preferences;
+
+    @Before
+    public void setUp() {
+        preferences = new FakeSharedPreferences();
+        SimplePrefs.init(preferences);
+    }
+
+    @Test
+    public void manyPutsProduceOneWrite() {
+        final Batch batch = SimplePrefs.beginBatch();
+        for (int i = 0; i < 40; i++) {
+            batch.putInt("key" + i, i);
+        }
+        batch.putString("name", "smash").putBoolean("flag", true).putDouble("ratio", 0.5d);
+        batch.apply();
+
+        assertEquals(1, preferences.writes);
+        assertEquals(39, SimplePrefs.getInt("key39"));
+        assertEquals("smash", SimplePrefs.getString("name"));
+        assertTrue(SimplePrefs.getBoolean("flag"));
+        assertEquals(0.5d, SimplePrefs.getDouble("ratio"), 0.0d);
+    }
+
+    @Test
+    public void repeatedWritesToSameKeyAreCoalesced() {
+        final Batch batch = SimplePrefs.beginBatch();
+        for (long i = 0; i < 100; i++) {
+            batch.putLong("counter", i);
+        }
+        batch.remove("gone").putString("gone", "back");
+
+        assertEquals(2, batch.size());
+        assertTrue(batch.commit());
+        assertEquals(1, preferences.writes);
+        assertEquals(99L, SimplePrefs.getLong("counter"));
+        assertEquals("back", SimplePrefs.getString("gone"));
+    }
+
+    @Test
+    public void clearIsDoneBeforePuts() {
+        SimplePrefs.putInt("old", 1);
+        SimplePrefs.batch(new Batch.Block() {
+            @Override
+            public void run(Batch batch) {
+                batch.putInt("new", 2).clear();
+            }
+        });
+
+        assertEquals(2, preferences.writes);
+        assertFalse(SimplePrefs.contains("old"));
+        assertEquals(2, SimplePrefs.getInt("new"));
+    }
+}
@@ -0,0 +1,172 @@
+package com.wideinc.library.simpleprefs;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static com.wideinc.library.simpleprefs.SimplePrefsTestUtil.put;
+import static org.junit.Assert.*;
+
+public class CacheModeTest {
+
+    private FakeSharedPreferences preferences;
+    private SharedPreferencesStore engine;
+    private final List<String> evicted = new ArrayList<>();
+    private final RemovalListener listener = new RemovalListener() {
+        @Override
+        public void removed(Map<String, Object> removed) {
+            synchronized (evicted) {
+                evicted.addAll(removed.keySet());
+            }
+        }
+    };
+
+    @Before
+    public void setUp() {
+        preferences = new FakeSharedPreferences();
+        engine = new SharedPreferencesStore(preferences);
+    }
+
+    private static LruStore loaded(final LruStore store) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (!store.isLoaded()) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        return store;
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedKeys() throws InterruptedException {
+        final LruStore store = loaded(new LruStore(engine, 3, 0, listener));
+        put(store, "a", "1");
+        put(store, "b", "2");
+        put(store, "c", "3");
+        assertEquals("1", store.getString("a", null));
+        put(store, "d", "4");
+        assertEquals(Arrays.asList("b"), evicted);
+        assertFalse(preferences.contains("b"));
+        assertEquals(new HashSet<>(Arrays.asList("a", "c", "d")), preferences.getAll().keySet());
+    }
+
+    @Test
+    public void evictionsAreWrittenWithTheChange() throws InterruptedException {
+        final LruStore store = loaded(new LruStore(engine, 3, 0, listener));
+        for (int i = 0; i < 10; i++) {
+            put(store, "key" + i, i);
+        }
+        assertEquals(10, preferences.writes);
+        assertEquals(3, preferences.getAll().size());
+        assertEquals(7, evicted.size());
+    }
+
+    @Test
+    public void byteBudget() throws InterruptedException {
+        final LruStore store = loaded(new LruStore(engine, 0, 100, listener));
+        final String value = "0123456789012345678901234567890123456789"; // 40 bytes with the 4 byte key
+        put(store, "k1_", value.substring(4));
+        put(store, "k2_", value.substring(4));
+        assertEquals(2, preferences.getAll().size());
+        put(store, "k3_", value.substring(4));
+        assertEquals(Arrays.asList("k1_"), evicted);
+        put(store, "k2_", null);
+        put(store, "k4_", value.substring(4));
+        assertEquals(1, evicted.size());
+    }
+
+    @Test
+    public void savedKeysAreEvictedFirst() throws InterruptedException {
+        for (int i = 0; i < 5; i++) {
+            put(engine, "old" + i, i);
+        }
+        final LruStore store = new LruStore(engine, 4, 0, listener);
+        put(store, "new", 1);
+        loaded(store);
+        // the two keys over the limit are evicted by the load
+        assertEquals(2, evicted.size());
+        assertTrue(preferences.contains("new"));
+        assertEquals(4, preferences.getAll().size());
+    }
+
+    @Test
+    public void cacheModeOnBuilder() throws InterruptedException {
+        final Prefs prefs = new SimplePrefs.Builder()
+                .setStore(engine)
+                .setCacheMode(2, 0)
+                .buildInstance();
+        Thread.sleep(50);
+        prefs.putString("token", "a", 60000);
+        prefs.putString("response", "b", 60000);
+        assertEquals(2, prefs.keys("").size());
+        prefs.putString("other", "c");
+        assertEquals(2, prefs.keys("").size());
+        assertFalse(prefs.contains("token"));
+        assertEquals("b", prefs.getString("response"));
+    }
+
+    @Test
+    public void evictedKeyLosesItsExpiry() throws InterruptedException {
+        final Prefs prefs = new SimplePrefs.Builder()
+                .setStore(engine)
+                .setCacheMode(1, 0)
+                .buildInstance();
+        Thread.sleep(50);
+        prefs.putString("token", "a", 100);
+        prefs.putString("other", "b");
+        assertFalse(preferences.contains("token"));
+        assertFalse(preferences.contains(ExpiryStore.EXPIRY_PREFIX + "token"));
+        // saved again without a time to live, the expiry of the evicted value does not remove it
+        put(engine, "token", "c");
+        Thread.sleep(300);
+        assertEquals("c", preferences.getString("token", null));
+    }
+
+    @Test
+    public void evictedCounterDropsItsCell() throws InterruptedException {
+        final Prefs prefs = new SimplePrefs.Builder()
+                .setStore(engine)
+                .setCacheMode(2, 0)
+                .buildInstance();
+        Thread.sleep(50);
+        assertEquals(1, prefs.incrementAndGet("c", 1));
+        assertTrue(prefs.flush());
+        prefs.putString("a", "1");
+        prefs.putString("b", "2");
+        assertFalse(prefs.contains("c"));
+        assertEquals(0, prefs.getInt("c", 0));
+        assertFalse(prefs.getAll().containsKey("c"));
+        // counted again from zero, the evicted value is not written back
+        assertEquals(1, prefs.incrementAndGet("c", 1));
+        assertTrue(prefs.flush());
+        assertEquals(1, preferences.getInt("c", 0));
+        prefs.shutdown();
+    }
+
+    @Test
+    public void readCounterIsNotEvictedFirst() throws InterruptedException {
+        final Prefs prefs = new SimplePrefs.Builder()
+                .setStore(engine)
+                .setCacheMode(2, 0)
+                .buildInstance();
+        Thread.sleep(50);
+        prefs.incrementAndGet("c", 1);
+        assertTrue(prefs.flush());
+        prefs.putString("a", "1");
+        // read from its cell, the counter is used after the string
+        assertEquals(1, prefs.getInt("c", 0));
+        prefs.putString("b", "2");
+        assertTrue(prefs.contains("c"));
+        assertFalse(prefs.contains("a"));
+        prefs.shutdown();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeLimitThrows() {
+        new SimplePrefs.Builder().setCacheMode(-1, 0);
+    }
+}
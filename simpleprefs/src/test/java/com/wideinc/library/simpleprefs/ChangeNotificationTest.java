@@ -0,0 +1,159 @@
+package com.wideinc.library.simpleprefs;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class ChangeNotificationTest {
+
+    private final List<Runnable> tasks = new ArrayList<>();
+    private final Executor executor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+    };
+    private Prefs prefs;
+
+    private static final class Recorder implements PrefsChangeListener {
+        final List<Set<String>> calls = new ArrayList<>();
+        final List<Boolean> cleared = new ArrayList<>();
+
+        @Override
+        public synchronized void onPrefsChanged(Set<String> keys, boolean cleared) {
+            calls.add(keys);
+            this.cleared.add(cleared);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        prefs = new SimplePrefs.Builder()
+                .setStore(new InMemoryPrefsStore())
+                .setChangeExecutor(executor)
+                .build();
+    }
+
+    private void runTasks() {
+        final List<Runnable> run = new ArrayList<>(tasks);
+        tasks.clear();
+        for (Runnable task : run) {
+            task.run();
+        }
+    }
+
+    @Test
+    public void changesAreBatchedPerListener() {
+        final Recorder key = new Recorder();
+        final Recorder prefix = new Recorder();
+        final Recorder all = new Recorder();
+        SimplePrefs.subscribe("flag", key);
+        SimplePrefs.subscribePrefix("user_", prefix);
+        SimplePrefs.subscribeAll(all);
+
+        SimplePrefs.putBoolean("flag", true);
+        SimplePrefs.putString("user_name", "smash");
+        final Batch batch = SimplePrefs.beginBatch();
+        for (int i = 0; i < 1000; i++) {
+            batch.putInt("bulk" + i, i);
+        }
+        batch.apply();
+        assertEquals(1, tasks.size());
+        assertTrue(all.calls.isEmpty());
+
+        runTasks();
+        assertEquals(Arrays.asList(new HashSet<>(Arrays.asList("flag"))), key.calls);
+        assertEquals(Arrays.asList(new HashSet<>(Arrays.asList("user_name"))), prefix.calls);
+        assertEquals(1, all.calls.size());
+        assertEquals(1002, all.calls.get(0).size());
+    }
+
+    @Test
+    public void clearNotifiesEveryListenerOnce() {
+        final Recorder key = new Recorder();
+        final Recorder all = new Recorder();
+        SimplePrefs.subscribe("flag", key);
+        SimplePrefs.subscribeAll(all);
+        SimplePrefs.putInt("other", 1);
+        SimplePrefs.clear();
+        runTasks();
+        assertEquals(1, key.calls.size());
+        assertTrue(key.cleared.get(0));
+        assertTrue(key.calls.get(0).isEmpty());
+        assertEquals(new HashSet<>(Arrays.asList("other")), all.calls.get(0));
+        assertTrue(all.cleared.get(0));
+    }
+
+    @Test
+    public void unsubscribedListenerIsNotCalled() {
+        final Recorder key = new Recorder();
+        SimplePrefs.subscribe("flag", key);
+        SimplePrefs.unsubscribe(key);
+        SimplePrefs.putBoolean("flag", true);
+        assertTrue(tasks.isEmpty());
+        assertTrue(key.calls.isEmpty());
+    }
+
+    @Test
+    public void listenersAreWeaklyReferenced() throws Exception {
+        prefs.subscribeAll(new Recorder());
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        prefs.putInt("a", 1);
+        runTasks();
+        // the collected listener is dropped on delivery, no change is reported afterwards
+        prefs.putInt("a", 2);
+        assertTrue(tasks.isEmpty());
+    }
+
+    @Test
+    public void debouncedOnBackgroundThread() throws Exception {
+        final Prefs debounced = new SimplePrefs.Builder()
+                .setStore(new InMemoryPrefsStore())
+                .setChangeDebounce(50)
+                .buildInstance();
+        final Recorder all = new Recorder();
+        debounced.subscribeAll(all);
+        for (int i = 0; i < 100; i++) {
+            debounced.putInt("key" + i, i);
+        }
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            synchronized (all) {
+                if (!all.calls.isEmpty()) {
+                    break;
+                }
+            }
+            Thread.sleep(10);
+        }
+        Thread.sleep(100);
+        synchronized (all) {
+            assertEquals(1, all.calls.size());
+            assertEquals(100, all.calls.get(0).size());
+        }
+        debounced.shutdown();
+    }
+
+    @Test
+    public void changesAfterShutdownAreDropped() throws InterruptedException {
+        final ChangeNotifier notifier = new ChangeNotifier(null, 10);
+        final Recorder all = new Recorder();
+        notifier.subscribe(all, null, null);
+        notifier.shutdown();
+        notifier.changed(false, Arrays.asList("key"));
+        Thread.sleep(100);
+        synchronized (all) {
+            assertTrue(all.calls.isEmpty());
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.wideinc.library.simpleprefs;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class CompressionTest {
+
+    private InMemoryPrefsStore engine;
+    private Prefs prefs;
+
+    @Before
+    public void setUp() {
+        engine = new InMemoryPrefsStore();
+        prefs = new SimplePrefs.Builder()
+                .setStore(engine)
+                .setCompression(256)
+                .setCompressedPrefixes("cache_")
+                .buildInstance();
+    }
+
+    private static String large(final String word) {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            builder.append(word).append(i % 10).append(' ');
+        }
+        return builder.toString();
+    }
+
+    @Test
+    public void largeStringIsCompressed() {
+        final String value = large("lorem\u00fc");
+        prefs.putString("large", value);
+        final String saved = engine.getString("large", null);
+        assertTrue(saved.startsWith(CompressionStore.HEADER));
+        assertTrue(saved.length() < value.length() / 4);
+        assertEquals(value, prefs.getString("large"));
+        assertSame(prefs.getString("large"), prefs.getString("large"));
+        assertEquals(value, prefs.getAll().get("large"));
+    }
+
+    @Test
+    public void smallStringIsNotCompressed() {
+        prefs.putString("small", "value");
+        assertEquals("value", engine.getString("small", null));
+        // compressing a short value by prefix would make it longer
+        prefs.putString("cache_small", "value");
+        assertEquals("value", engine.getString("cache_small", null));
+    }
+
+    @Test
+    public void prefixedStringSetIsCompressed() {
+        final Set<String> values = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            values.add("https://example.com/items/" + i);
+        }
+        prefs.putStringSet("cache_urls", values);
+        final Set<String> saved = engine.getStringSet("cache_urls", null);
+        assertEquals(1, saved.size());
+        assertTrue(saved.iterator().next().startsWith(CompressionStore.HEADER));
+        assertEquals(values, prefs.getStringSet("cache_urls", null));
+        assertEquals(values, prefs.getAll().get("cache_urls"));
+    }
+
+    @Test
+    public void legacyValuesAreRead() {
+        final String legacy = large("legacy");
+        final Set<String> legacySet = new HashSet<>(Arrays.asList("a", "b"));
+        SimplePrefsTestUtil.put(engine, "legacy", legacy);
+        SimplePrefsTestUtil.put(engine, "cache_set", legacySet);
+        assertEquals(legacy, prefs.getString("legacy"));
+        assertEquals(legacySet, prefs.getStringSet("cache_set", null));
+        final Map<String, ?> all = prefs.getAll();
+        assertEquals(legacy, all.get("legacy"));
+    }
+
+    @Test
+    public void overwriteInvalidatesDecompressedValue() {
+        prefs.putString("large", large("first"));
+        assertEquals(large("first"), prefs.getString("large"));
+        prefs.putString("large", large("second"));
+        assertEquals(large("second"), prefs.getString("large"));
+        prefs.remove("large");
+        assertNull(prefs.getString("large", null));
+    }
+
+    @Test
+    public void decompressedValuesAreBounded() {
+        final CompressionStore store = new CompressionStore(engine, 256, new String[0], 2);
+        SimplePrefsTestUtil.put(store, "first", large("first"));
+        SimplePrefsTestUtil.put(store, "second", large("second"));
+        SimplePrefsTestUtil.put(store, "third", large("third"));
+        final String first = store.getString("first", null);
+        assertSame(first, store.getString("first", null));
+        store.getString("second", null);
+        store.getString("third", null);
+        // the least recently used value is decompressed again
+        final String again = store.getString("first", null);
+        assertEquals(first, again);
+        assertNotSame(first, again);
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void corruptValueThrows() {
+        SimplePrefsTestUtil.put(engine, "large", CompressionStore.HEADER + "AAAA");
+        prefs.getString("large");
+    }
+}
@@ -0,0 +1,153 @@
+package com.wideinc.library.simpleprefs;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class ConcurrencyStressTest {
+
+    private static final int THREADS = 8;
+    private static final int WRITES = 20000;
+
+    private static void runConcurrently(final int threads, final Worker worker) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final List<Thread> started = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            final Thread runner = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        worker.run(thread);
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+            runner.start();
+            started.add(runner);
+        }
+        start.countDown();
+        for (Thread runner : started) {
+            runner.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+    }
+
+    private interface Worker {
+        void run(int thread) throws Exception;
+    }
+
+    @Test
+    public void noLostUpdatesUnderContention() throws Exception {
+        final InMemoryPrefsStore engine = new InMemoryPrefsStore();
+        final Prefs prefs = new SimplePrefs.Builder().setStore(engine).setWriteBehind(1).buildInstance();
+        runConcurrently(THREADS + 1, new Worker() {
+            @Override
+            public void run(int thread) {
+                if (thread == THREADS) {
+                    // a thread flushing all the time, besides the background flushes
+                    for (int i = 0; i < 200; i++) {
+                        assertTrue(prefs.flush());
+                    }
+                    return;
+                }
+                for (int i = 0; i < WRITES; i++) {
+                    prefs.putInt("thread" + thread, i);
+                    prefs.putInt("key" + thread + "_" + (i % 100), i);
+                    // a thread always reads its own last write
+                    assertEquals(i, prefs.getInt("thread" + thread, -1));
+                }
+            }
+        });
+        assertTrue(prefs.flush());
+        for (int t = 0; t < THREADS; t++) {
+            assertEquals(WRITES - 1, engine.getInt("thread" + t, -1));
+            for (int k = 0; k < 100; k++) {
+                assertEquals(WRITES - 100 + k, engine.getInt("key" + t + "_" + k, -1));
+            }
+        }
+        assertEquals(THREADS * 101, engine.getAll().size());
+        prefs.shutdown();
+    }
+
+    @Test
+    public void batchesAreNeverFlushedInPart() throws Exception {
+        final AtomicInteger torn = new AtomicInteger();
+        final InMemoryPrefsStore engine = new InMemoryPrefsStore() {
+            @Override
+            public synchronized boolean write(boolean clear, Map<String, Object> changes, boolean sync) {
+                final boolean written = super.write(clear, changes, sync);
+                for (int t = 0; t < THREADS; t++) {
+                    if (getInt("a" + t, -1) != getInt("b" + t, -1)) {
+                        torn.incrementAndGet();
+                    }
+                }
+                return written;
+            }
+        };
+        final Prefs prefs = new SimplePrefs.Builder().setStore(engine).setWriteBehind(1).buildInstance();
+        runConcurrently(THREADS, new Worker() {
+            @Override
+            public void run(int thread) {
+                for (int i = 0; i < WRITES / 4; i++) {
+                    prefs.beginBatch().putInt("a" + thread, i).putInt("b" + thread, i).apply();
+                }
+            }
+        });
+        assertTrue(prefs.flush());
+        assertEquals(0, torn.get());
+        for (int t = 0; t < THREADS; t++) {
+            assertEquals(WRITES / 4 - 1, engine.getInt("a" + t, -1));
+        }
+        prefs.shutdown();
+    }
+
+    @Test
+    public void sharedKeyKeepsTheLastWrite() throws Exception {
+        final InMemoryPrefsStore engine = new InMemoryPrefsStore();
+        final Prefs prefs = new SimplePrefs.Builder().setStore(engine).setWriteBehind(1).buildInstance();
+        runConcurrently(THREADS, new Worker() {
+            @Override
+            public void run(int thread) {
+                for (int i = 0; i < WRITES; i++) {
+                    prefs.putLong("shared", ((long) thread << 32) | i);
+                }
+            }
+        });
+        final long last = prefs.getLong("shared", -1);
+        assertEquals(WRITES - 1, (int) last);
+        assertTrue(prefs.flush());
+        assertEquals(last, engine.getLong("shared", -1));
+        prefs.shutdown();
+    }
+
+    @Test
+    public void rebuiltInstanceIsSafelyPublished() throws Exception {
+        new SimplePrefs.Builder().setStore(new InMemoryPrefsStore()).build();
+        runConcurrently(THREADS, new Worker() {
+            @Override
+            public void run(int thread) {
+                for (int i = 0; i < 200; i++) {
+                    if (thread == 0) {
+                        new SimplePrefs.Builder().setStore(new InMemoryPrefsStore()).build();
+                    } else {
+                        SimplePrefs.putInt("key", i);
+                        SimplePrefs.getInt("key", 0);
+                    }
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,169 @@
+package com.wideinc.library.simpleprefs;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.wideinc.library.simpleprefs.SimplePrefsTestUtil.put;
+import static org.junit.Assert.*;
+
+public class EncryptedPrefsStoreTest {
+
+    private InMemoryPrefsStore engine;
+    private TestKeyProvider keys;
+
+    @Before
+    public void setUp() {
+        engine = new InMemoryPrefsStore();
+        keys = new TestKeyProvider();
+    }
+
+    @Test
+    public void storesAllTypesEncrypted() {
+        final Set<String> tags = new HashSet<>(Arrays.asList("a", "b"));
+        EncryptedPrefsStore store = new EncryptedPrefsStore(engine, keys);
+        put(store, "int", 384);
+        put(store, "long", 1L << 40);
+        put(store, "float", 0.25f);
+        put(store, "boolean", true);
+        put(store, "token", "secret token");
+        put(store, "set", tags);
+        for (Map.Entry<String, ?> entry : engine.getAll().entrySet()) {
+            final String saved = (String) entry.getValue();
+            assertTrue(saved.startsWith(EncryptedPrefsStore.HEADER));
+            assertFalse(saved.contains("secret"));
+        }
+
+        store = new EncryptedPrefsStore(engine, keys);
+        assertEquals(384, store.getInt("int", 0));
+        assertEquals(1L << 40, store.getLong("long", 0L));
+        assertEquals(0.25f, store.getFloat("float", 0f), 0f);
+        assertTrue(store.getBoolean("boolean", false));
+        assertEquals("secret token", store.getString("token", null));
+        assertEquals(tags, store.getStringSet("set", null));
+        assertEquals(6, store.getAll().size());
+        assertEquals(2, keys.calls);
+    }
+
+    @Test
+    public void batchIsEncryptedInOnePass() {
+        final EncryptedPrefsStore store = new EncryptedPrefsStore(engine, keys);
+        final Map<String, Object> changes = new HashMap<>();
+        changes.put("a", "first value, longer than one AES block");
+        changes.put("b", 2);
+        changes.put("c", "third");
+        assertTrue(store.write(false, changes, true));
+        // one counter stream: every value starts at its own block of the same nonce
+        final Set<Integer> counters = new HashSet<>();
+        byte[] nonce = null;
+        for (String key : changes.keySet()) {
+            final byte[] saved = ObjectCache.fromBase64(engine.getString(key, null).substring(EncryptedPrefsStore.HEADER.length()));
+            final byte[] prefix = Arrays.copyOf(saved, 12);
+            if (nonce != null) {
+                assertArrayEquals(nonce, prefix);
+            }
+            nonce = prefix;
+            counters.add((saved[14] & 0xff) << 8 | (saved[15] & 0xff));
+        }
+        assertEquals(3, counters.size());
+        assertEquals("third", new EncryptedPrefsStore(engine, keys).getString("c", null));
+    }
+
+    @Test
+    public void decryptedValuesAreCached() {
+        final EncryptedPrefsStore store = new EncryptedPrefsStore(engine, keys, 2);
+        put(store, "set", new HashSet<>(Arrays.asList("x", "y")));
+        final EncryptedPrefsStore reopened = new EncryptedPrefsStore(engine, keys, 2);
+        final Set<String> first = reopened.getStringSet("set", null);
+        assertSame(first, reopened.getStringSet("set", null));
+        put(reopened, "set", new HashSet<>(Arrays.asList("z")));
+        assertEquals(new HashSet<>(Arrays.asList("z")), reopened.getStringSet("set", null));
+    }
+
+    @Test(expected = SecurityException.class)
+    public void tamperedValueIsRejected() {
+        put(new EncryptedPrefsStore(engine, keys), "token", "secret token");
+        final String saved = engine.getString("token", null);
+        final char last = saved.charAt(saved.length() - 3);
+        put(engine, "token", saved.substring(0, saved.length() - 3) + (last == 'A' ? 'B' : 'A') + saved.substring(saved.length() - 2));
+        new EncryptedPrefsStore(engine, keys).getString("token", null);
+    }
+
+    @Test(expected = SecurityException.class)
+    public void valueMovedToAnotherKeyIsRejected() {
+        put(new EncryptedPrefsStore(engine, keys), "token", "secret token");
+        put(engine, "other", engine.getString("token", null));
+        new EncryptedPrefsStore(engine, keys).getString("other", null);
+    }
+
+    @Test(expected = SecurityException.class)
+    public void otherKeyIsRejected() {
+        put(new EncryptedPrefsStore(engine, keys), "token", "secret token");
+        new EncryptedPrefsStore(engine, new TestKeyProvider()).getString("token", null);
+    }
+
+    @Test
+    public void plainStringsAreReadAsTheyAre() {
+        put(engine, "legacy", "plain");
+        assertEquals("plain", new EncryptedPrefsStore(engine, keys).getString("legacy", null));
+    }
+
+    @Test
+    public void threadsUseTheirOwnCipher() throws InterruptedException {
+        final EncryptedPrefsStore store = new EncryptedPrefsStore(engine, keys, 4);
+        final List<Thread> threads = new ArrayList<>();
+        final List<Throwable> failures = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final int id = t;
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 200; i++) {
+                            put(store, "key" + id + "_" + (i % 10), "value " + id + " " + i);
+                            assertEquals("value " + id + " " + i, store.getString("key" + id + "_" + (i % 10), null));
+                        }
+                    } catch (Throwable e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(failures.toString(), failures.isEmpty());
+        assertEquals("value 3 199", new EncryptedPrefsStore(engine, keys).getString("key3_9", null));
+    }
+
+    @Test
+    public void encryptionOnBuilderCompressesFirst() {
+        final StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            large.append("repeated server response ");
+        }
+        final Prefs prefs = new SimplePrefs.Builder()
+                .setStore(engine)
+                .setEncryption(keys)
+                .setCompression(100)
+                .buildInstance();
+        prefs.putString("response", large.toString());
+        prefs.putInt("count", 3);
+        assertEquals(large.toString(), prefs.getString("response"));
+        assertEquals(3, prefs.getInt("count"));
+        final String saved = engine.getString("response", null);
+        assertTrue(saved.startsWith(EncryptedPrefsStore.HEADER));
+        assertTrue(saved.length() < large.length() / 4);
+    }
+}
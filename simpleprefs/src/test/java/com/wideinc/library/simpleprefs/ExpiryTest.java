@@ -0,0 +1,128 @@
+package com.wideinc.library.simpleprefs;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ExpiryTest {
+
+    private FakeSharedPreferences preferences;
+    private Prefs prefs;
+
+    @Before
+    public void setUp() {
+        preferences = new FakeSharedPreferences();
+        prefs = create();
+    }
+
+    private Prefs create() {
+        return new SimplePrefs.Builder()
+                .setStore(new SharedPreferencesStore(preferences))
+                .buildInstance();
+    }
+
+    private static void awaitRemoved(final FakeSharedPreferences preferences, final String key) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (preferences.contains(key)) {
+            assertTrue("not swept: " + key, System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void expiredKeysReadAsDefault() throws InterruptedException {
+        prefs.putString("token", "abc", 100);
+        prefs.putInt("attempts", 3, 100);
+        prefs.putString("name", "kept");
+        assertEquals("abc", prefs.getString("token"));
+        assertEquals(3, prefs.getInt("attempts"));
+        assertTrue(prefs.contains("token"));
+
+        Thread.sleep(150);
+        assertEquals("none", prefs.getString("token", "none"));
+        assertEquals(-1, prefs.getInt("attempts", -1));
+        assertFalse(prefs.contains("token"));
+        assertEquals(1, prefs.getAll().size());
+        assertEquals("kept", prefs.getString("name"));
+    }
+
+    @Test
+    public void expiryKeysAreHidden() {
+        prefs.putString("token", "abc", 60000);
+        prefs.putLong("since", 7L, 60000);
+        final Map<String, ?> all = prefs.getAll();
+        assertEquals(2, all.size());
+        assertEquals("abc", all.get("token"));
+        assertEquals(2, prefs.keys("").size());
+        // the value and its expiry are written together
+        assertTrue(preferences.contains(ExpiryStore.EXPIRY_PREFIX + "token"));
+        assertTrue(preferences.contains(ExpiryStore.MARKER));
+    }
+
+    @Test
+    public void sweeperRemovesExpiredKeysInChunks() throws InterruptedException {
+        final Batch batch = prefs.beginBatch();
+        final int count = ExpiryStore.SWEEP_CHUNK * 3 + 5;
+        for (int i = 0; i < count; i++) {
+            batch.putString("cache_" + i, "response " + i, 20);
+        }
+        batch.putString("cache_kept", "response", 60000);
+        batch.commit();
+        final int writes = preferences.writes;
+        assertEquals(2 * count + 3, preferences.getAll().size());
+
+        for (int i = 0; i < count; i++) {
+            awaitRemoved(preferences, "cache_" + i);
+            assertFalse(preferences.contains(ExpiryStore.EXPIRY_PREFIX + "cache_" + i));
+        }
+        // one write per chunk, without reading all the preferences
+        assertTrue(preferences.writes - writes <= 4 + 1);
+        assertEquals(1, prefs.keys("cache_").size());
+        assertEquals("response", prefs.getString("cache_kept"));
+    }
+
+    @Test
+    public void putWithoutTtlMakesKeyPermanent() throws InterruptedException {
+        prefs.putString("token", "abc", 50);
+        prefs.putString("token", "permanent");
+        assertFalse(preferences.contains(ExpiryStore.EXPIRY_PREFIX + "token"));
+        Thread.sleep(100);
+        assertEquals("permanent", prefs.getString("token"));
+
+        prefs.putString("token", "renewed", 50);
+        prefs.putString("token", "again", 60000);
+        Thread.sleep(100);
+        assertEquals("again", prefs.getString("token"));
+    }
+
+    @Test
+    public void expiriesSurviveRestart() throws InterruptedException {
+        prefs.putString("token", "abc", 200);
+        prefs.putString("session", "xyz", 60000);
+        prefs.shutdown();
+
+        final Prefs restarted = create();
+        assertEquals("abc", restarted.getString("token"));
+        assertEquals("xyz", restarted.getString("session"));
+        awaitRemoved(preferences, "token");
+        assertEquals("", restarted.getString("token"));
+        assertEquals("xyz", restarted.getString("session"));
+    }
+
+    @Test
+    public void clearDropsExpiries() {
+        prefs.putString("token", "abc", 60000);
+        prefs.clear();
+        assertTrue(preferences.getAll().isEmpty());
+        prefs.putString("token", "plain");
+        assertEquals(1, preferences.getAll().size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nonPositiveTtlThrows() {
+        prefs.putString("token", "abc", 0);
+    }
+}
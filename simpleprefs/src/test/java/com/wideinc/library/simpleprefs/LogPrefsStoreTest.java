@@ -0,0 +1,185 @@
+package com.wideinc.library.simpleprefs;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.wideinc.library.simpleprefs.SimplePrefsTestUtil.put;
+import static org.junit.Assert.*;
+
+public class LogPrefsStoreTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("prefs", ".log");
+        assertTrue(file.delete());
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".compact").delete();
+    }
+
+    @Test
+    public void storesAllTypesAcrossReopen() throws IOException {
+        final Set<String> tags = new HashSet<>(Arrays.asList("a", "b", "\u00fc\u00f1\u00ee"));
+        LogPrefsStore store = new LogPrefsStore(file);
+        put(store, "int", 384);
+        put(store, "long", 1L << 40);
+        put(store, "float", 0.25f);
+        put(store, "double", Double.doubleToLongBits(Math.PI));
+        put(store, "boolean", true);
+        put(store, "string", "{\"json\": \"blob\"}");
+        put(store, "set", tags);
+        put(store, "removed", "x");
+        put(store, "removed", null);
+        store.close();
+
+        store = new LogPrefsStore(file);
+        assertEquals(384, store.getInt("int", 0));
+        assertEquals(1L << 40, store.getLong("long", 0L));
+        assertEquals(0.25f, store.getFloat("float", 0f), 0f);
+        assertEquals(Math.PI, Double.longBitsToDouble(store.getLong("double", 0L)), 0d);
+        assertTrue(store.getBoolean("boolean", false));
+        assertEquals("{\"json\": \"blob\"}", store.getString("string", null));
+        assertEquals(tags, store.getStringSet("set", null));
+        assertFalse(store.contains("removed"));
+        assertEquals(7, store.getAll().size());
+        store.close();
+    }
+
+    @Test
+    public void tornTailRecordIsTruncated() throws IOException {
+        LogPrefsStore store = new LogPrefsStore(file);
+        put(store, "first", "kept");
+        final long goodLength = store.length();
+        put(store, "second", "torn by a crash");
+        store.close();
+
+        final RandomAccessFile raw = new RandomAccessFile(file, "rw");
+        raw.setLength(raw.length() - 3);
+        raw.close();
+
+        store = new LogPrefsStore(file);
+        assertEquals("kept", store.getString("first", null));
+        assertFalse(store.contains("second"));
+        assertEquals(goodLength, file.length());
+
+        put(store, "third", "appended after recovery");
+        store.close();
+        store = new LogPrefsStore(file);
+        assertEquals("kept", store.getString("first", null));
+        assertEquals("appended after recovery", store.getString("third", null));
+        store.close();
+    }
+
+    @Test
+    public void corruptTailRecordIsTruncated() throws IOException {
+        LogPrefsStore store = new LogPrefsStore(file);
+        put(store, "first", 1);
+        put(store, "second", 2);
+        store.close();
+
+        final RandomAccessFile raw = new RandomAccessFile(file, "rw");
+        raw.seek(raw.length() - 1);
+        raw.write(0x7f);
+        raw.close();
+
+        store = new LogPrefsStore(file);
+        assertEquals(1, store.getInt("first", 0));
+        assertFalse(store.contains("second"));
+        store.close();
+    }
+
+    @Test
+    public void headerOnlyTornLogStartsEmpty() throws IOException {
+        final RandomAccessFile raw = new RandomAccessFile(file, "rw");
+        raw.write(new byte[]{0x53, 0x50});
+        raw.close();
+
+        final LogPrefsStore store = new LogPrefsStore(file);
+        assertTrue(store.getAll().isEmpty());
+        put(store, "key", "value");
+        store.close();
+
+        final LogPrefsStore reopened = new LogPrefsStore(file);
+        assertEquals("value", reopened.getString("key", null));
+        reopened.close();
+    }
+
+    @Test
+    public void garbageIsCompacted() throws IOException {
+        LogPrefsStore store = new LogPrefsStore(file, 1024);
+        for (int i = 0; i < 1000; i++) {
+            put(store, "counter", i);
+            put(store, "stable" + (i % 10), "value" + i);
+        }
+        assertTrue(store.length() < 4096);
+        store.close();
+
+        store = new LogPrefsStore(file, 1024);
+        assertEquals(999, store.getInt("counter", 0));
+        assertEquals("value999", store.getString("stable9", null));
+        assertEquals(11, store.getAll().size());
+        store.close();
+    }
+
+    @Test
+    public void clearTruncatesLog() throws IOException {
+        LogPrefsStore store = new LogPrefsStore(file);
+        put(store, "old", 1);
+        final Map<String, Object> changes = new HashMap<>();
+        changes.put("new", 2);
+        assertTrue(store.write(true, changes, true));
+        store.close();
+
+        store = new LogPrefsStore(file);
+        assertFalse(store.contains("old"));
+        assertEquals(2, store.getInt("new", 0));
+        store.close();
+    }
+
+    @Test
+    public void concurrentWritesAreAppendedInOrder() throws Exception {
+        LogPrefsStore store = new LogPrefsStore(file, Integer.MAX_VALUE);
+        final LogPrefsStore written = store;
+        final List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            final int id = t;
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 1000; i++) {
+                        written.write(false, Collections.<String, Object>singletonMap("key" + i, id), false);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        final Map<String, ?> expected = new HashMap<>(store.getAll());
+        store.close();
+
+        store = new LogPrefsStore(file);
+        assertEquals(expected, new HashMap<>(store.getAll()));
+        store.close();
+    }
+}
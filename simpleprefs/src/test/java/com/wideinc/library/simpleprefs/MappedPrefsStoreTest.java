@@ -0,0 +1,169 @@
+package com.wideinc.library.simpleprefs;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static com.wideinc.library.simpleprefs.SimplePrefsTestUtil.put;
+import static org.junit.Assert.*;
+
+public class MappedPrefsStoreTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("prefs", ".map");
+        assertTrue(file.delete());
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".torn").delete();
+    }
+
+    @Test
+    public void storesAllTypesAcrossReopen() throws IOException {
+        final Set<String> tags = new HashSet<>(Arrays.asList("a", "b"));
+        MappedPrefsStore store = new MappedPrefsStore(file);
+        put(store, "int", 384);
+        put(store, "long", 1L << 40);
+        put(store, "float", 0.25f);
+        put(store, "boolean", true);
+        put(store, "string", "smash");
+        put(store, "set", tags);
+        put(store, "removed", 1);
+        put(store, "removed", null);
+        store.close();
+
+        store = new MappedPrefsStore(file);
+        assertEquals(384, store.getInt("int", 0));
+        assertEquals(1L << 40, store.getLong("long", 0L));
+        assertEquals(0.25f, store.getFloat("float", 0f), 0f);
+        assertTrue(store.getBoolean("boolean", false));
+        assertEquals("smash", store.getString("string", null));
+        assertEquals(tags, store.getStringSet("set", null));
+        assertFalse(store.contains("removed"));
+        assertEquals(-1, store.getInt("removed", -1));
+        assertEquals(6, store.getAll().size());
+        store.close();
+    }
+
+    @Test
+    public void overwritesAndTypeChanges() throws IOException {
+        final MappedPrefsStore store = new MappedPrefsStore(file);
+        put(store, "key", 1);
+        put(store, "key", 2L);
+        assertEquals(2L, store.getLong("key", 0L));
+        put(store, "key", "now a string");
+        assertEquals("now a string", store.getString("key", null));
+        put(store, "key", null);
+        put(store, "key", true);
+        assertTrue(store.getBoolean("key", false));
+        assertEquals(1, store.getAll().size());
+        store.close();
+    }
+
+    @Test(expected = ClassCastException.class)
+    public void wrongTypeThrows() throws IOException {
+        final MappedPrefsStore store = new MappedPrefsStore(file);
+        put(store, "key", "384");
+        try {
+            store.getInt("key", 0);
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void growsBeyondInitialFile() throws IOException {
+        MappedPrefsStore store = new MappedPrefsStore(file);
+        final StringBuilder blob = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            blob.append("{\"json\":").append(i).append('}');
+        }
+        for (int i = 0; i < 5000; i++) {
+            put(store, "int" + i, i);
+            if (i % 50 == 0) {
+                put(store, "blob" + i, blob.toString());
+            }
+        }
+        store.close();
+
+        store = new MappedPrefsStore(file);
+        assertEquals(4999, store.getInt("int4999", 0));
+        assertEquals(blob.toString(), store.getString("blob4950", null));
+        assertEquals(5100, store.getAll().size());
+        store.close();
+    }
+
+    @Test
+    public void secondInstanceOfFileThrows() throws IOException {
+        final MappedPrefsStore store = new MappedPrefsStore(file);
+        try {
+            new MappedPrefsStore(file);
+            fail();
+        } catch (IllegalStateException expected) {
+            // the first instance still maps the file
+        }
+        put(store, "key", 1);
+        store.close();
+        final MappedPrefsStore reopened = new MappedPrefsStore(file);
+        assertEquals(1, reopened.getInt("key", 0));
+        reopened.close();
+    }
+
+    @Test
+    public void tornFileIsRebuiltOnOpen() throws IOException {
+        final MappedPrefsStore store = new MappedPrefsStore(file);
+        put(store, "kept", 1);
+        put(store, "set", new HashSet<>(Arrays.asList("a", "b")));
+        final RandomAccessFile raw = new RandomAccessFile(file, "r");
+        raw.seek(16);
+        final int dataEnd = raw.readInt();
+        raw.close();
+        // not synced, the slot of the entry is written back by a power loss while the entry is not
+        assertTrue(store.write(false, Collections.<String, Object>singletonMap("lost", "value"), false));
+        final byte[] content = new byte[(int) file.length()];
+        final RandomAccessFile copy = new RandomAccessFile(file, "r");
+        copy.readFully(content);
+        copy.close();
+        store.close();
+        Arrays.fill(content, dataEnd, dataEnd + 64, (byte) 0x05);
+        final File torn = new File(file.getPath() + ".torn");
+        final RandomAccessFile out = new RandomAccessFile(torn, "rw");
+        out.write(content);
+        out.close();
+
+        final MappedPrefsStore recovered = new MappedPrefsStore(torn);
+        assertEquals(1, recovered.getInt("kept", 0));
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")), recovered.getStringSet("set", null));
+        assertFalse(recovered.contains("lost"));
+        assertEquals(2, recovered.getAll().size());
+        put(recovered, "next", 2);
+        recovered.close();
+    }
+
+    @Test
+    public void clearDropsAllKeys() throws IOException {
+        final MappedPrefsStore store = new MappedPrefsStore(file);
+        put(store, "old", 1);
+        final Map<String, Object> changes = new HashMap<>();
+        changes.put("new", 2);
+        assertTrue(store.write(true, changes, true));
+        assertFalse(store.contains("old"));
+        assertEquals(2, store.getInt("new", 0));
+        store.close();
+    }
+}
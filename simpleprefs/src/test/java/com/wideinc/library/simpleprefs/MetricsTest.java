@@ -0,0 +1,120 @@
+package com.wideinc.library.simpleprefs;
+
+import com.wideinc.library.simpleprefs.PrefsMetrics.Operation;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class MetricsTest {
+
+    @Test
+    public void countsOperationsAndHottestKeys() {
+        new SimplePrefs.Builder().setStore(new InMemoryPrefsStore()).setMetrics(true).build();
+        SimplePrefs.putInt("hot", 1);
+        for (int i = 0; i < 5; i++) {
+            SimplePrefs.getInt("hot");
+        }
+        SimplePrefs.putString("cold", "value");
+        SimplePrefs.getString("cold");
+        SimplePrefs.getAll();
+
+        final PrefsMetrics.Snapshot metrics = SimplePrefs.metrics();
+        assertEquals(5, metrics.getCount(Operation.GET_INT));
+        assertEquals(1, metrics.getCount(Operation.GET_STRING));
+        assertEquals(1, metrics.getCount(Operation.GET_ALL));
+        assertEquals(2, metrics.getCount(Operation.WRITE));
+        assertEquals(2, metrics.getCount(Operation.FLUSH));
+        assertEquals(4 + 3 + 4 + 5, metrics.getBytesWritten());
+        assertEquals(9, metrics.getMaxFlushBytes());
+        final List<Map.Entry<String, Long>> hottest = metrics.getHottestKeys();
+        assertEquals("hot", hottest.get(0).getKey());
+        assertEquals(6L, (long) hottest.get(0).getValue());
+        assertTrue(metrics.getPercentileNanos(Operation.GET_INT, 99) >= metrics.getPercentileNanos(Operation.GET_INT, 50));
+        assertEquals(0, metrics.getPercentileNanos(Operation.GET_LONG, 99));
+    }
+
+    @Test
+    public void flushesAreRecordedBelowWriteBehind() {
+        final Prefs prefs = new SimplePrefs.Builder().setStore(new InMemoryPrefsStore())
+                .setWriteBehind(60000).setMetrics(true).buildInstance();
+        final List<Integer> flushed = new ArrayList<>();
+        prefs.getMetrics().addListener(new PrefsMetrics.Listener() {
+            @Override
+            public void onFlush(int keys, long bytes, long durationNanos) {
+                flushed.add(keys);
+            }
+        });
+        prefs.putInt("a", 1);
+        prefs.putInt("a", 2);
+        prefs.putInt("b", 3);
+        assertEquals(3, prefs.metrics().getCount(Operation.WRITE));
+        assertEquals(0, prefs.metrics().getCount(Operation.FLUSH));
+
+        assertTrue(prefs.flush());
+        assertEquals(1, prefs.metrics().getCount(Operation.FLUSH));
+        assertEquals(2 * (1 + 4), prefs.metrics().getBytesWritten());
+        assertEquals(1, flushed.size());
+        assertEquals(2, (int) flushed.get(0));
+
+        prefs.getMetrics().reset();
+        assertEquals(0, prefs.metrics().getCount(Operation.WRITE));
+        assertTrue(prefs.metrics().getHottestKeys().isEmpty());
+        prefs.shutdown();
+    }
+
+    @Test
+    public void countedKeysAreBounded() {
+        final PrefsMetrics metrics = new PrefsMetrics();
+        for (int i = 0; i < 100; i++) {
+            metrics.recordKey("hot");
+        }
+        for (int i = 0; i < PrefsMetrics.MAX_KEYS * 10; i++) {
+            metrics.recordKey("cold" + i);
+        }
+        assertTrue(metrics.countedKeys() <= PrefsMetrics.MAX_KEYS);
+        assertEquals("hot", metrics.snapshot().getHottestKeys().get(0).getKey());
+    }
+
+    @Test
+    public void atomicOperationsAreRecorded() {
+        final Prefs prefs = new SimplePrefs.Builder()
+                .setStore(new InMemoryPrefsStore())
+                .setMetrics(true)
+                .buildInstance();
+        prefs.incrementAndGet("count", 1);
+        prefs.compareAndSet("count", 1, 2);
+        prefs.getAndUpdateLong("total", new Prefs.LongUpdater() {
+            @Override
+            public long apply(long value) {
+                return value + 3;
+            }
+        });
+        final PrefsMetrics.Snapshot metrics = prefs.metrics();
+        assertEquals(3, metrics.getCount(Operation.ATOMIC));
+        assertEquals("count", metrics.getHottestKeys().get(0).getKey());
+        assertEquals(2L, (long) metrics.getHottestKeys().get(0).getValue());
+        assertTrue(prefs.flush());
+        assertEquals(1, prefs.metrics().getCount(Operation.FLUSH));
+        prefs.shutdown();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void disabledByDefault() {
+        new SimplePrefs.Builder().setStore(new InMemoryPrefsStore()).build();
+        SimplePrefs.metrics();
+    }
+
+    @Test
+    public void bucketsCoverTheirValues() {
+        for (long value : new long[]{0, 1, 7, 8, 9, 15, 16, 17, 1000, 123456789L, Long.MAX_VALUE}) {
+            final int bucket = PrefsMetrics.bucket(value);
+            assertTrue(value <= PrefsMetrics.bucketMax(bucket));
+            assertTrue(bucket == 0 || value > PrefsMetrics.bucketMax(bucket - 1));
+        }
+    }
+}
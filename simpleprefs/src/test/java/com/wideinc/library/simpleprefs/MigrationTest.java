@@ -0,0 +1,300 @@
+package com.wideinc.library.simpleprefs;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.wideinc.library.simpleprefs.SimplePrefsTestUtil.put;
+import static org.junit.Assert.*;
+
+public class MigrationTest {
+
+    private static final int COUNT = 1000;
+
+    private FakeSharedPreferences preferences;
+    private SharedPreferencesStore source;
+
+    @Before
+    public void setUp() {
+        preferences = new FakeSharedPreferences();
+        source = new SharedPreferencesStore(preferences);
+        for (int i = 0; i < COUNT; i++) {
+            put(source, key(i), i % 2 == 0 ? (Object) i : "value" + i);
+        }
+    }
+
+    private static String key(final int i) {
+        return String.format("key_%04d", i);
+    }
+
+    /**
+     * Target which blocks its first write until it is released
+     */
+    private static final class GatedStore extends InMemoryPrefsStore {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        volatile int writes;
+
+        @Override
+        public boolean write(final boolean clear, final Map<String, Object> changes, final boolean sync) {
+            if (changes.containsKey(MigrationStore.CHECKPOINT) && started.getCount() > 0) {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            writes++;
+            return super.write(clear, changes, sync);
+        }
+    }
+
+    @Test
+    public void copiesInChunksAndCutsOver() throws InterruptedException {
+        final GatedStore target = new GatedStore();
+        target.release.countDown();
+        final MigrationStore migration = new MigrationStore(source, target, 100);
+        assertTrue(migration.awaitMigration(5, TimeUnit.SECONDS));
+        assertTrue(migration.isMigrated());
+        assertEquals(COUNT / 100 + 1, target.writes);
+        assertEquals(COUNT, migration.getAll().size());
+        assertEquals(998, migration.getInt(key(998), -1));
+        assertEquals("value999", migration.getString(key(999), null));
+        assertFalse(migration.contains(MigrationStore.DONE));
+        assertFalse(target.contains(MigrationStore.CHECKPOINT));
+
+        // the source is no longer written
+        put(migration, "after", 1);
+        assertFalse(preferences.contains("after"));
+        assertEquals(1, target.getInt("after", 0));
+    }
+
+    @Test
+    public void readsFromSourceUntilCutover() throws InterruptedException {
+        final CountDownLatch visited = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        // source which holds the copy after it has been walked
+        final InMemoryPrefsStore gated = new InMemoryPrefsStore() {
+            @Override
+            public void forEach(final String prefix, final PrefsVisitor visitor) {
+                super.forEach(prefix, visitor);
+                if (Thread.currentThread().getName().equals("SimplePrefs-Migrate")) {
+                    visited.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            }
+        };
+        for (int i = 0; i < COUNT; i++) {
+            put(gated, key(i), "value" + i);
+        }
+        final InMemoryPrefsStore target = new InMemoryPrefsStore();
+        final MigrationStore migration = new MigrationStore(gated, target, 100);
+        assertTrue(visited.await(5, TimeUnit.SECONDS));
+        assertFalse(migration.isMigrated());
+        assertEquals("value999", migration.getString(key(999), null));
+        assertEquals(COUNT, migration.getAll().size());
+
+        // written to both, and not overwritten by the older value copied later
+        put(migration, key(999), "updated");
+        put(migration, key(0), null);
+        assertEquals("updated", gated.getString(key(999), null));
+        release.countDown();
+        assertTrue(migration.awaitMigration(5, TimeUnit.SECONDS));
+        assertEquals("updated", migration.getString(key(999), null));
+        assertFalse(migration.contains(key(0)));
+        assertEquals(COUNT - 1, migration.getAll().size());
+    }
+
+    @Test
+    public void resumesAfterCheckpoint() throws InterruptedException {
+        final InMemoryPrefsStore target = new InMemoryPrefsStore();
+        for (int i = 0; i < 500; i++) {
+            put(target, key(i), "copied");
+        }
+        put(target, MigrationStore.CHECKPOINT, key(499));
+        final MigrationStore migration = new MigrationStore(source, target, 100);
+        assertTrue(migration.awaitMigration(5, TimeUnit.SECONDS));
+        assertEquals("copied", migration.getString(key(1), null));
+        assertEquals(500, migration.getInt(key(500), -1));
+        assertEquals(COUNT, migration.getAll().size());
+    }
+
+    @Test
+    public void completedMigrationIsNotRepeated() throws InterruptedException {
+        final InMemoryPrefsStore target = new InMemoryPrefsStore();
+        MigrationStore migration = new MigrationStore(source, target);
+        assertTrue(migration.awaitMigration(5, TimeUnit.SECONDS));
+        put(source, "late", 1);
+
+        migration = new MigrationStore(source, target);
+        assertTrue(migration.awaitMigration(5, TimeUnit.SECONDS));
+        assertFalse(migration.contains("late"));
+        final Set<String> keys = new HashSet<>();
+        migration.forEach(null, new PrefsVisitor() {
+            @Override
+            public void onBoolean(String key, boolean value) {
+                keys.add(key);
+            }
+
+            @Override
+            public void onString(String key, String value) {
+                keys.add(key);
+            }
+
+            @Override
+            public void onInt(String key, int value) {
+                keys.add(key);
+            }
+        });
+        assertEquals(COUNT, keys.size());
+    }
+
+    @Test
+    public void clearAfterCutoverIsNotMigratedAgain() throws InterruptedException {
+        final InMemoryPrefsStore target = new InMemoryPrefsStore();
+        MigrationStore migration = new MigrationStore(source, target);
+        assertTrue(migration.awaitMigration(5, TimeUnit.SECONDS));
+        migration.write(true, Collections.<String, Object>singletonMap("fresh", 1), true);
+
+        migration = new MigrationStore(source, target);
+        assertTrue(migration.awaitMigration(5, TimeUnit.SECONDS));
+        assertEquals(1, migration.getAll().size());
+        assertEquals(1, migration.getInt("fresh", 0));
+        assertFalse(migration.contains(key(0)));
+    }
+
+    @Test
+    public void failedChunkStopsTheCopy() throws InterruptedException {
+        final boolean[] failing = {true};
+        final InMemoryPrefsStore target = new InMemoryPrefsStore() {
+            @Override
+            public synchronized boolean write(boolean clear, Map<String, Object> changes, boolean sync) {
+                if (failing[0] && changes.containsKey(key(0))) {
+                    return false;
+                }
+                return super.write(clear, changes, sync);
+            }
+        };
+        MigrationStore migration = new MigrationStore(source, target, 100);
+        try {
+            migration.awaitMigration(5, TimeUnit.SECONDS);
+            fail();
+        } catch (RuntimeException expected) {
+            // the reads stay on the source
+        }
+        assertFalse(migration.isMigrated());
+        assertFalse(target.contains(MigrationStore.DONE));
+        assertEquals(COUNT, migration.getAll().size());
+
+        failing[0] = false;
+        migration = new MigrationStore(source, target, 100);
+        assertTrue(migration.awaitMigration(5, TimeUnit.SECONDS));
+        assertTrue(migration.contains(key(0)));
+        assertEquals(COUNT, migration.getAll().size());
+    }
+
+    @Test
+    public void failedWriteIsCopiedAtCutover() throws InterruptedException {
+        final CountDownLatch visited = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        // source which holds the copy after it has been walked
+        final InMemoryPrefsStore gated = new InMemoryPrefsStore() {
+            @Override
+            public void forEach(final String prefix, final PrefsVisitor visitor) {
+                super.forEach(prefix, visitor);
+                visited.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        put(gated, "saved", 1);
+        // target which fails the writes made before the cutover
+        final InMemoryPrefsStore target = new InMemoryPrefsStore() {
+            @Override
+            public synchronized boolean write(boolean clear, Map<String, Object> changes, boolean sync) {
+                return changes.containsKey(MigrationStore.DONE) && super.write(clear, changes, sync);
+            }
+        };
+        final MigrationStore migration = new MigrationStore(gated, target);
+        assertTrue(visited.await(5, TimeUnit.SECONDS));
+        put(migration, "fresh", 2);
+        release.countDown();
+        assertTrue(migration.awaitMigration(5, TimeUnit.SECONDS));
+        assertEquals(2, target.getInt("fresh", 0));
+        assertEquals(1, target.getInt("saved", 0));
+    }
+
+    @Test
+    public void doneMarkIsReadInBackground() throws InterruptedException {
+        final CountDownLatch loaded = new CountDownLatch(1);
+        // target which blocks its reads until it is loaded
+        final InMemoryPrefsStore target = new InMemoryPrefsStore() {
+            @Override
+            protected Object get(String key) {
+                try {
+                    loaded.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                return super.get(key);
+            }
+        };
+        put(target, MigrationStore.DONE, true);
+        final MigrationStore migration = new MigrationStore(source, target);
+        assertFalse(migration.isMigrated());
+        loaded.countDown();
+        assertTrue(migration.awaitMigration(5, TimeUnit.SECONDS));
+        assertEquals(0, migration.getAll().size());
+    }
+
+    @Test
+    public void clearStopsTheCopy()throws InterruptedException {
+        final GatedStore target = new GatedStore();
+        final MigrationStore migration = new MigrationStore(source, target, 100);
+        assertTrue(target.started.await(5, TimeUnit.SECONDS));
+        final Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                migration.write(true, Collections.<String, Object>singletonMap("fresh", 1), true);
+            }
+        });
+        writer.start();
+        target.release.countDown();
+        writer.join();
+        assertTrue(migration.awaitMigration(5, TimeUnit.SECONDS));
+        assertEquals(1, migration.getAll().size());
+        assertEquals(1, migration.getInt("fresh", 0));
+    }
+
+    @Test
+    public void builderMigratesToEncryptedStore() throws InterruptedException {
+        final InMemoryPrefsStore target = new InMemoryPrefsStore();
+        final Prefs prefs = new SimplePrefs.Builder()
+                .setStore(target)
+                .setEncryption(new TestKeyProvider())
+                .setMigrationSource(source, 64)
+                .buildInstance();
+        prefs.putStringSet("tags", new HashSet<>(Arrays.asList("a", "b")));
+        assertTrue(prefs.getMigration().awaitMigration(5, TimeUnit.SECONDS));
+        assertEquals("value1", prefs.getString(key(1)));
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")), prefs.getStringSet("tags", null));
+        assertEquals(COUNT + 1, prefs.getAll().size());
+        assertTrue(((String) target.getAll().get(key(1))).startsWith(EncryptedPrefsStore.HEADER));
+        prefs.shutdown();
+    }
+}
@@ -0,0 +1,221 @@
+package com.wideinc.library.simpleprefs;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static com.wideinc.library.simpleprefs.SimplePrefsTestUtil.put;
+import static org.junit.Assert.*;
+
+public class MultiProcessPrefsStoreTest {
+
+    private static final int COUNT = 500;
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("prefs", ".mpprefs");
+        assertTrue(file.delete());
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+        new File(file.getPath() + MultiProcessPrefsStore.VERSION_SUFFIX).delete();
+        new File(file.getPath() + ".compact").delete();
+    }
+
+    /**
+     * Entry point of the second process, writes prefix_0 to prefix_count-1 and then prefix_done
+     */
+    public static void main(final String[] args) throws IOException {
+        final MultiProcessPrefsStore store = new MultiProcessPrefsStore(new File(args[0]), Integer.parseInt(args[3]));
+        final int count = Integer.parseInt(args[2]);
+        for (int i = 0; i < count; i++) {
+            put(store, args[1] + "_" + i, i);
+            put(store, "shared", args[1] + i);
+        }
+        put(store, args[1] + "_done", true);
+        store.close();
+    }
+
+    @Test
+    public void storesAllTypesAcrossReopen() throws IOException {
+        final Set<String> tags = new HashSet<>(Arrays.asList("a", "b"));
+        MultiProcessPrefsStore store = new MultiProcessPrefsStore(file);
+        put(store, "int", 384);
+        put(store, "long", 1L << 40);
+        put(store, "float", 0.25f);
+        put(store, "boolean", true);
+        put(store, "string", "value");
+        put(store, "set", tags);
+        put(store, "removed", "x");
+        put(store, "removed", null);
+        store.close();
+
+        store = new MultiProcessPrefsStore(file);
+        assertEquals(384, store.getInt("int", 0));
+        assertEquals(1L << 40, store.getLong("long", 0L));
+        assertEquals(0.25f, store.getFloat("float", 0f), 0f);
+        assertTrue(store.getBoolean("boolean", false));
+        assertEquals("value", store.getString("string", null));
+        assertEquals(tags, store.getStringSet("set", null));
+        assertFalse(store.contains("removed"));
+        assertEquals(6, store.getAll().size());
+        store.close();
+    }
+
+    @Test
+    public void readsOnlyTheAppendedRecords() throws IOException {
+        final MultiProcessPrefsStore first = new MultiProcessPrefsStore(file);
+        final MultiProcessPrefsStore second = new MultiProcessPrefsStore(file);
+        put(first, "name", "one");
+        assertEquals("one", second.getString("name", null));
+        final long length = first.length();
+        put(second, "count", 2);
+        assertTrue(second.length() > length);
+        assertEquals(2, first.getInt("count", 0));
+        assertEquals("one", first.getString("name", null));
+        put(first, "name", null);
+        assertFalse(second.contains("name"));
+        first.close();
+        second.close();
+    }
+
+    @Test
+    public void clearAndCompactionAreReloaded() throws IOException {
+        final MultiProcessPrefsStore first = new MultiProcessPrefsStore(file, 256);
+        final MultiProcessPrefsStore second = new MultiProcessPrefsStore(file, 256);
+        for (int i = 0; i < 100; i++) {
+            put(first, "counter", i);
+            put(first, "key" + (i % 4), "value" + i);
+        }
+        // compacted, only the live records are left
+        assertTrue(first.length() < 600);
+        assertEquals(99, second.getInt("counter", 0));
+        assertEquals("value98", second.getString("key2", null));
+
+        assertTrue(second.write(true, Collections.<String, Object>singletonMap("after", 1), true));
+        assertFalse(first.contains("counter"));
+        assertEquals(1, first.getInt("after", 0));
+        assertEquals(1, first.getAll().size());
+        first.close();
+        second.close();
+    }
+
+    @Test
+    public void preferencesAreImportedOnce() throws IOException {
+        final MultiProcessPrefsStore first = new MultiProcessPrefsStore(file);
+        final MultiProcessPrefsStore second = new MultiProcessPrefsStore(file);
+        assertFalse(second.isImported());
+        assertTrue(first.importOnce(Collections.singletonMap("legacy", "first")));
+        put(first, "legacy", "changed");
+        // a second process opening the log meanwhile does not import over the later writes
+        assertTrue(second.isImported());
+        assertTrue(second.importOnce(Collections.singletonMap("legacy", "second")));
+        assertEquals("changed", first.getString("legacy", null));
+        assertFalse(first.contains(MultiProcessPrefsStore.IMPORTED));
+        assertEquals(1, first.getAll().size());
+
+        // a clear keeps the mark of the import
+        assertTrue(first.write(true, Collections.<String, Object>emptyMap(), true));
+        first.close();
+        second.close();
+        final MultiProcessPrefsStore reopened = new MultiProcessPrefsStore(file);
+        assertTrue(reopened.isImported());
+        assertEquals(0, reopened.getAll().size());
+        reopened.close();
+    }
+
+    @Test
+    public void recoversLostVersionFileAndTornTail() throws IOException {
+        MultiProcessPrefsStore store = new MultiProcessPrefsStore(file);
+        put(store, "kept", "value");
+        store.close();
+        assertTrue(new File(file.getPath() + MultiProcessPrefsStore.VERSION_SUFFIX).delete());
+        final RandomAccessFile raw = new RandomAccessFile(file, "rw");
+        raw.seek(raw.length());
+        raw.write(new byte[]{0, 0, 0, 9, 1});
+        raw.close();
+
+        store = new MultiProcessPrefsStore(file);
+        assertEquals("value", store.getString("kept", null));
+        put(store, "next", 1);
+        store.close();
+        store = new MultiProcessPrefsStore(file);
+        assertEquals(2, store.getAll().size());
+        store.close();
+    }
+
+    @Test
+    public void prefsRejectsProcessLocalFeatures() throws IOException {
+        final MultiProcessPrefsStore store = new MultiProcessPrefsStore(file);
+        final Prefs prefs = new SimplePrefs.Builder().setStore(store).buildInstance();
+        try {
+            prefs.incrementAndGet("count", 1);
+            fail();
+        } catch (UnsupportedOperationException expected) {
+            // the cell would overwrite the increments of the other processes
+        }
+        try {
+            prefs.putString("token", "value", 60000);
+            fail();
+        } catch (UnsupportedOperationException expected) {
+            // the other processes would never expire it
+        }
+        try {
+            prefs.beginBatch().putInt("count", 1, 60000).commit();
+            fail();
+        } catch (UnsupportedOperationException expected) {
+            // the batch is rejected as a whole
+        }
+        assertFalse(store.contains("count"));
+        assertFalse(store.contains("token"));
+        prefs.putInt("count", 1);
+        assertEquals(1, store.getInt("count", 0));
+        prefs.shutdown();
+        store.close();
+    }
+
+    @Test
+    public void twoProcessesWriteConcurrently() throws Exception {
+        final MultiProcessPrefsStore store = new MultiProcessPrefsStore(file, 1024);
+        final String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+        final Process child = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                MultiProcessPrefsStoreTest.class.getName(), file.getPath(), "child", String.valueOf(COUNT), "1024")
+                .inheritIO()
+                .start();
+        for (int i = 0; i < COUNT; i++) {
+            put(store, "parent_" + i, i);
+            put(store, "shared", "parent" + i);
+        }
+        put(store, "parent_done", true);
+        assertTrue(child.waitFor(60, TimeUnit.SECONDS));
+        assertEquals(0, child.exitValue());
+
+        // the child writes are read by the open store
+        assertTrue(store.getBoolean("child_done", false));
+        for (int i = 0; i < COUNT; i++) {
+            assertEquals(i, store.getInt("parent_" + i, -1));
+            assertEquals(i, store.getInt("child_" + i, -1));
+        }
+        assertEquals(2 * COUNT + 3, store.getAll().size());
+        store.close();
+
+        final MultiProcessPrefsStore reopened = new MultiProcessPrefsStore(file);
+        assertEquals(2 * COUNT + 3, reopened.getAll().size());
+        final String shared = reopened.getString("shared", null);
+        assertTrue(shared, shared.equals("parent" + (COUNT - 1)) || shared.equals("child" + (COUNT - 1)));
+        reopened.close();
+    }
+}
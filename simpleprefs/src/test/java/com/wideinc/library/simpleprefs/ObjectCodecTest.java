@@ -0,0 +1,140 @@
+package com.wideinc.library.simpleprefs;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ObjectCodecTest {
+
+    static final class User {
+        final long id;
+        final String name;
+
+        User(long id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+    }
+
+    static final class UserCodec implements Codec<User> {
+        int decodes;
+
+        @Override
+        public void encode(User value, DataOutput out) throws IOException {
+            out.writeLong(value.id);
+            out.writeUTF(value.name);
+        }
+
+        @Override
+        public User decode(DataInput in) throws IOException {
+            decodes++;
+            return new User(in.readLong(), in.readUTF());
+        }
+    }
+
+    private final UserCodec codec = new UserCodec();
+    private Prefs prefs;
+
+    @Before
+    public void setUp() {
+        prefs = new SimplePrefs.Builder()
+                .setStore(new InMemoryPrefsStore())
+                .registerCodec(User.class, codec)
+                .build();
+    }
+
+    @Test
+    public void objectRoundTrip() {
+        SimplePrefs.putObject("user", new User(42, "smash"));
+        final User user = SimplePrefs.getObject("user", User.class);
+        assertEquals(42, user.id);
+        assertEquals("smash", user.name);
+        assertNull(SimplePrefs.getObject("missing", codec));
+    }
+
+    @Test
+    public void repeatedReadsDecodeOnce() {
+        final User saved = new User(1, "a");
+        prefs.putObject("user", saved, codec);
+        assertSame(saved, prefs.getObject("user", codec));
+        assertEquals(0, codec.decodes);
+
+        final Prefs reopened = new SimplePrefs.Builder().setStore(prefs.getStore()).buildInstance();
+        final User first = reopened.getObject("user", codec);
+        final User second = reopened.getObject("user", codec);
+        assertEquals(1, first.id);
+        assertSame(first, second);
+        assertEquals(1, codec.decodes);
+
+        reopened.putObject("user", new User(2, "b"), codec);
+        assertEquals(2, reopened.getObject("user", codec).id);
+        assertEquals(1, codec.decodes);
+    }
+
+    @Test
+    public void changeThroughAnotherPathInvalidatesCache() {
+        prefs.putObject("user", new User(1, "a"), codec);
+        prefs.getObject("user", codec);
+        final String other = ObjectCache.toBase64(new byte[]{0, 0, 0, 0, 0, 0, 0, 7, 0, 1, 'z'});
+        prefs.putString("user", other);
+        final User user = prefs.getObject("user", codec);
+        assertEquals(7, user.id);
+        assertEquals("z", user.name);
+
+        prefs.putObject("user", null, codec);
+        assertFalse(prefs.contains("user"));
+        assertNull(prefs.getObject("user", codec));
+    }
+
+    @Test
+    public void nullObjectRemovesTheKey() {
+        SimplePrefs.putObject("user", new User(1, "a"));
+        SimplePrefs.putObject("user", null);
+        assertFalse(SimplePrefs.contains("user"));
+        assertNull(SimplePrefs.getObject("user", User.class));
+    }
+
+    @Test
+    public void decodedObjectsAreBounded() {
+        final ObjectCache cache = new ObjectCache(Collections.<Class<?>, Codec<?>>emptyMap(), 2);
+        final String first = cache.encode("first", new User(1, "a"), codec);
+        cache.encode("second", new User(2, "b"), codec);
+        cache.encode("third", new User(3, "c"), codec);
+        // the least recently used object is decoded again
+        assertEquals(1, cache.decode("first", first, codec).id);
+        assertEquals(1, codec.decodes);
+        cache.decode("first", first, codec);
+        assertEquals(1, codec.decodes);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unregisteredTypeThrows() {
+        SimplePrefs.putObject("value", new Object());
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void corruptValueThrows() {
+        prefs.putString("user", "not base64!");
+        prefs.getObject("user", codec);
+    }
+
+    @Test
+    public void base64RoundTrip() {
+        final Random random = new Random(1);
+        for (int length = 0; length < 40; length++) {
+            final byte[] bytes = new byte[length];
+            random.nextBytes(bytes);
+            assertArrayEquals(bytes, ObjectCache.fromBase64(ObjectCache.toBase64(bytes)));
+        }
+        assertEquals("TWFu", ObjectCache.toBase64("Man".getBytes()));
+        assertEquals("TWE=", ObjectCache.toBase64("Ma".getBytes()));
+        assertEquals("TQ==", ObjectCache.toBase64("M".getBytes()));
+    }
+}
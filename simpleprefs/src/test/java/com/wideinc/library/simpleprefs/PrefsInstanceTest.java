@@ -0,0 +1,68 @@
+package com.wideinc.library.simpleprefs;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PrefsInstanceTest {
+
+    @Test
+    public void namedInstancesAreIndependent() {
+        final FakeSharedPreferences authFile = new FakeSharedPreferences();
+        final FakeSharedPreferences analyticsFile = new FakeSharedPreferences();
+        final Prefs auth = new SimplePrefs.Builder().setPrefsName("auth")
+                .setStore(new SharedPreferencesStore(authFile)).buildInstance();
+        final Prefs analytics = new SimplePrefs.Builder().setPrefsName("analytics")
+                .setStore(new SharedPreferencesStore(analyticsFile)).buildInstance();
+
+        auth.putString("token", "secret");
+        for (long i = 0; i < 10; i++) {
+            analytics.putLong("cursor", i);
+        }
+
+        assertEquals(1, authFile.writes);
+        assertEquals(10, analyticsFile.writes);
+        assertEquals("secret", auth.getString("token"));
+        assertFalse(analytics.contains("token"));
+        assertEquals(9L, analytics.getLong("cursor"));
+        assertSame(auth, SimplePrefs.getInstance("auth"));
+        assertSame(analytics, SimplePrefs.getInstance("analytics"));
+    }
+
+    @Test
+    public void buildInstanceKeepsDefaultInstance() {
+        final Prefs defaults = new SimplePrefs.Builder().setStore(new InMemoryPrefsStore()).build();
+        final Prefs other = new SimplePrefs.Builder().setPrefsName("other").setStore(new InMemoryPrefsStore()).buildInstance();
+
+        other.putInt("id", 1);
+        SimplePrefs.putInt("id", 2);
+        assertEquals(2, defaults.getInt("id"));
+        assertEquals(1, other.getInt("id"));
+        assertSame(defaults.getStore(), SimplePrefs.getStore());
+    }
+
+    @Test
+    public void instancesHaveTheirOwnWriteScheduling() {
+        final FakeSharedPreferences hotFile = new FakeSharedPreferences();
+        final FakeSharedPreferences coldFile = new FakeSharedPreferences();
+        final Prefs hot = new SimplePrefs.Builder().setPrefsName("hot").setWriteBehind(60000)
+                .setStore(new SharedPreferencesStore(hotFile)).buildInstance();
+        final Prefs cold = new SimplePrefs.Builder().setPrefsName("cold")
+                .setStore(new SharedPreferencesStore(coldFile)).buildInstance();
+
+        for (int i = 0; i < 100; i++) {
+            hot.putInt("frame", i);
+        }
+        cold.putString("config", "v1");
+        assertEquals(0, hotFile.writes);
+        assertEquals(1, coldFile.writes);
+        assertTrue(hot.flush());
+        assertEquals(1, hotFile.writes);
+        assertEquals(99, hotFile.getInt("frame", 0));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void unknownInstanceThrows() {
+        SimplePrefs.getInstance("never built");
+    }
+}
@@ -0,0 +1,150 @@
+package com.wideinc.library.simpleprefs;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DeflaterOutputStream;
+
+import static com.wideinc.library.simpleprefs.SimplePrefsTestUtil.put;
+import static org.junit.Assert.*;
+
+public class PrefsSnapshotTest {
+
+    private static byte[] export(final PrefsStore store) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PrefsSnapshot.export(store, out);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void roundTripsAllTypes() throws IOException {
+        final Set<String> tags = new HashSet<>(Arrays.asList("a", "b"));
+        final InMemoryPrefsStore store = new InMemoryPrefsStore();
+        put(store, "int", 384);
+        put(store, "long", 1L << 40);
+        put(store, "float", 0.25f);
+        put(store, "boolean", true);
+        put(store, "string", "value");
+        put(store, "set", tags);
+
+        final InMemoryPrefsStore restored = new InMemoryPrefsStore();
+        put(restored, "kept", 1);
+        assertEquals(6, PrefsSnapshot.restore(restored, new ByteArrayInputStream(export(store)), false));
+        assertEquals(384, restored.getInt("int", 0));
+        assertEquals(1L << 40, restored.getLong("long", 0L));
+        assertEquals(0.25f, restored.getFloat("float", 0f), 0f);
+        assertTrue(restored.getBoolean("boolean", false));
+        assertEquals("value", restored.getString("string", null));
+        assertEquals(tags, restored.getStringSet("set", null));
+        assertEquals(7, restored.getAll().size());
+
+        PrefsSnapshot.restore(restored, new ByteArrayInputStream(export(store)), true);
+        assertFalse(restored.contains("kept"));
+    }
+
+    @Test
+    public void largeSnapshotIsCompactAndImportedInChunks() throws IOException {
+        final InMemoryPrefsStore store = new InMemoryPrefsStore();
+        int rawSize = 0;
+        for (int i = 0; i < 2000; i++) {
+            put(store, "cache_" + i, "response body " + i);
+            rawSize += ("cache_" + i).length() + ("response body " + i).length();
+        }
+        final byte[] snapshot = export(store);
+        assertTrue(snapshot.length < rawSize / 2);
+
+        final List<Integer> chunks = new ArrayList<>();
+        final InMemoryPrefsStore restored = new InMemoryPrefsStore() {
+            @Override
+            public synchronized boolean write(boolean clear, Map<String, Object> changes, boolean sync) {
+                chunks.add(changes.size());
+                return super.write(clear, changes, sync);
+            }
+        };
+        assertEquals(2000, PrefsSnapshot.restore(restored, new ByteArrayInputStream(snapshot), false));
+        assertEquals(2000 / PrefsSnapshot.IMPORT_CHUNK_SIZE + 1, chunks.size());
+        assertEquals("response body 1999", restored.getString("cache_1999", null));
+    }
+
+    @Test
+    public void corruptSnapshotThrows() throws IOException {
+        final InMemoryPrefsStore store = new InMemoryPrefsStore();
+        put(store, "name", "value");
+        final byte[] snapshot = export(store);
+        try {
+            PrefsSnapshot.restore(new InMemoryPrefsStore(), new ByteArrayInputStream(Arrays.copyOf(snapshot, snapshot.length / 2)), false);
+            fail();
+        } catch (IOException expected) {
+        }
+        snapshot[0] = 'X';
+        try {
+            PrefsSnapshot.restore(new InMemoryPrefsStore(), new ByteArrayInputStream(snapshot), false);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void oversizedRecordLengthThrows() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream header = new DataOutputStream(bytes);
+        header.writeInt(PrefsSnapshot.MAGIC);
+        final DataOutputStream records = new DataOutputStream(new DeflaterOutputStream(header));
+        records.writeInt(Integer.MAX_VALUE - 8);
+        records.close();
+        try {
+            PrefsSnapshot.restore(new InMemoryPrefsStore(), new ByteArrayInputStream(bytes.toByteArray()), false);
+            fail();
+        } catch (IOException expected) {
+            assertEquals("Simple Prefs failed to import the snapshot: corrupt record.", expected.getMessage());
+        }
+    }
+
+    @Test
+    public void prefsImportNotifiesListeners() throws Exception {
+        final Prefs source = new SimplePrefs.Builder().setStore(new InMemoryPrefsStore()).buildInstance();
+        source.putString("token", "abc");
+        source.putString("session", "xyz", 60000);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(2, source.exportSnapshot(out));
+
+        final Prefs prefs = new SimplePrefs.Builder().setStore(new InMemoryPrefsStore()).buildInstance();
+        final List<String> changed = new ArrayList<>();
+        // the listeners are held weakly, this one is kept reachable until it is unsubscribed
+        final PrefsChangeListener listener = new PrefsChangeListener() {
+            @Override
+            public void onPrefsChanged(Set<String> keys, boolean cleared) {
+                synchronized (changed) {
+                    changed.addAll(keys);
+                }
+            }
+        };
+        prefs.subscribeAll(listener);
+        assertEquals(2, prefs.importSnapshot(new ByteArrayInputStream(out.toByteArray()), true));
+        assertEquals("abc", prefs.getString("token"));
+        assertEquals("xyz", prefs.getString("session"));
+        assertEquals(2, prefs.keys("").size());
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (true) {
+            synchronized (changed) {
+                if (changed.containsAll(Arrays.asList("token", "session"))) {
+                    break;
+                }
+            }
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        prefs.unsubscribe(listener);
+        source.shutdown();
+        prefs.shutdown();
+    }
+}
@@ -0,0 +1,91 @@
+package com.wideinc.library.simpleprefs;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class PrefsStoreTest {
+
+    private InMemoryPrefsStore store;
+
+    @Before
+    public void setUp() {
+        store = new InMemoryPrefsStore();
+        new SimplePrefs.Builder().setStore(store).build();
+    }
+
+    @Test
+    public void facadeReadsAndWritesThroughStore() {
+        final Set<String> tags = new HashSet<>(Arrays.asList("a", "b"));
+        SimplePrefs.putInt("myid", 384);
+        SimplePrefs.putLong("ts", 1L << 40);
+        SimplePrefs.putFloat("ratio", 0.25f);
+        SimplePrefs.putDouble("pi", Math.PI);
+        SimplePrefs.putBoolean("flag", true);
+        SimplePrefs.putString("username", "smash");
+        SimplePrefs.putStringSet("tags", tags);
+
+        assertEquals(384, store.getInt("myid", 0));
+        assertEquals(384, SimplePrefs.getInt("myid"));
+        assertEquals(1L << 40, SimplePrefs.getLong("ts"));
+        assertEquals(0.25f, SimplePrefs.getFloat("ratio"), 0.0f);
+        assertEquals(Math.PI, SimplePrefs.getDouble("pi"), 0.0d);
+        assertTrue(SimplePrefs.getBoolean("flag"));
+        assertEquals("smash", SimplePrefs.getString("username"));
+        assertEquals(tags, store.getStringSet("tags", null));
+        assertEquals(7, SimplePrefs.getAll().size());
+    }
+
+    @Test
+    public void missingKeysReturnDefaults() {
+        assertEquals(7, SimplePrefs.getInt("missing", 7));
+        assertEquals("", SimplePrefs.getString("missing"));
+        assertEquals(1.5d, SimplePrefs.getDouble("missing", 1.5d), 0.0d);
+        assertFalse(SimplePrefs.contains("missing"));
+        assertEquals(Collections.<String>emptySet(), store.getStringSet("missing", Collections.<String>emptySet()));
+    }
+
+    @Test(expected = ClassCastException.class)
+    public void wrongTypeThrows() {
+        SimplePrefs.putString("myid", "384");
+        SimplePrefs.getInt("myid");
+    }
+
+    @Test
+    public void removeAndClear() {
+        SimplePrefs.putInt("a", 1);
+        SimplePrefs.putInt("b", 2);
+        SimplePrefs.remove("a");
+        assertFalse(SimplePrefs.contains("a"));
+        assertTrue(SimplePrefs.contains("b"));
+
+        SimplePrefs.edit().putInt("c", 3).clear().commit();
+        assertFalse(SimplePrefs.contains("b"));
+        assertEquals(3, SimplePrefs.getInt("c"));
+        SimplePrefs.clear();
+        assertTrue(SimplePrefs.getAll().isEmpty());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void customStoreIsNotSharedPreferences() {
+        SimplePrefs.getPreference();
+    }
+
+    @Test
+    public void sharedPreferencesStoreWritesOnce() {
+        final FakeSharedPreferences preferences = new FakeSharedPreferences();
+        SimplePrefs.init(preferences);
+        assertSame(preferences, SimplePrefs.getPreference());
+
+        SimplePrefs.putString("username", "smash");
+        SimplePrefs.remove("username");
+        assertEquals(2, preferences.writes);
+        assertFalse(preferences.contains("username"));
+    }
+}
@@ -0,0 +1,142 @@
+package com.wideinc.library.simpleprefs;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class PrefsVisitorTest {
+
+    private File file;
+
+    @After
+    public void tearDown() {
+        if (file != null) {
+            file.delete();
+        }
+    }
+
+    private static final class Collector extends PrefsVisitor {
+        final Map<String, Object> visited = new HashMap<>();
+
+        @Override
+        public void onInt(String key, int value) {
+            assertNull(visited.put(key, value));
+        }
+
+        @Override
+        public void onLong(String key, long value) {
+            assertNull(visited.put(key, value));
+        }
+
+        @Override
+        public void onFloat(String key, float value) {
+            assertNull(visited.put(key, value));
+        }
+
+        @Override
+        public void onBoolean(String key, boolean value) {
+            assertNull(visited.put(key, value));
+        }
+
+        @Override
+        public void onString(String key, String value) {
+            assertNull(visited.put(key, value));
+        }
+
+        @Override
+        public void onStringSet(String key, Set<String> values) {
+            assertNull(visited.put(key, values));
+        }
+    }
+
+    private static void fill(final Prefs prefs) {
+        prefs.putInt("user_id", 7);
+        prefs.putLong("user_ts", 1L << 40);
+        prefs.putFloat("ratio", 0.5f);
+        prefs.putBoolean("user_flag", true);
+        prefs.putString("name", "smash");
+        prefs.putStringSet("tags", new HashSet<>(Arrays.asList("a", "b")));
+    }
+
+    private static void assertVisits(final Prefs prefs) {
+        final Collector all = new Collector();
+        prefs.forEach(all);
+        assertEquals(prefs.getAll(), all.visited);
+        assertEquals(6, all.visited.size());
+
+        final Collector users = new Collector();
+        prefs.forEach("user_", users);
+        assertEquals(new HashSet<>(Arrays.asList("user_id", "user_ts", "user_flag")), users.visited.keySet());
+        assertEquals(7, users.visited.get("user_id"));
+    }
+
+    @Test
+    public void visitsInMemoryStore() {
+        final Prefs prefs = new SimplePrefs.Builder().setStore(new InMemoryPrefsStore()).buildInstance();
+        fill(prefs);
+        assertVisits(prefs);
+    }
+
+    @Test
+    public void visitsMappedStore() throws Exception {
+        file = File.createTempFile("prefs", ".map");
+        file.delete();
+        final MappedPrefsStore store = new MappedPrefsStore(file);
+        final Prefs prefs = new SimplePrefs.Builder().setStore(store).buildInstance();
+        fill(prefs);
+        assertVisits(prefs);
+        store.close();
+    }
+
+    @Test
+    public void visitsSharedPreferencesAndPendingWrites() {
+        final Prefs prefs = new SimplePrefs.Builder()
+                .setStore(new SharedPreferencesStore(new FakeSharedPreferences()))
+                .setWriteBehind(60000)
+                .buildInstance();
+        fill(prefs);
+        assertTrue(prefs.flush());
+        prefs.putInt("user_id", 8);
+        prefs.remove("ratio");
+        final Collector all = new Collector();
+        prefs.forEach(all);
+        assertEquals(5, all.visited.size());
+        assertEquals(8, all.visited.get("user_id"));
+        assertFalse(all.visited.containsKey("ratio"));
+        prefs.shutdown();
+    }
+
+    @Test
+    public void keysAreSortedAndLive() {
+        final Prefs prefs = new SimplePrefs.Builder().setStore(new InMemoryPrefsStore()).buildInstance();
+        fill(prefs);
+        assertEquals(Arrays.asList("user_flag", "user_id", "user_ts"), new ArrayList<>(prefs.keys("user_")));
+        assertEquals(6, prefs.keys("").size());
+
+        prefs.putInt("user_age", 30);
+        prefs.remove("user_ts");
+        final List<String> users = new ArrayList<>(prefs.keys("user_"));
+        assertEquals(Arrays.asList("user_age", "user_flag", "user_id"), users);
+
+        prefs.clear();
+        assertTrue(prefs.keys("").isEmpty());
+    }
+
+    @Test
+    public void prefixEnd() {
+        assertEquals("user`", Prefs.prefixEnd("user_"));
+        assertEquals("b", Prefs.prefixEnd("a\uffff"));
+        assertNull(Prefs.prefixEnd("\uffff"));
+        assertNull(Prefs.prefixEnd(""));
+    }
+}
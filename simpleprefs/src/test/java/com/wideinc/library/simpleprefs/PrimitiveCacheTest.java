@@ -0,0 +1,147 @@
+package com.wideinc.library.simpleprefs;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class PrimitiveCacheTest {
+
+    private CountingStore store;
+
+    /**
+     * Counts the primitive reads which reach the store
+     */
+    private static final class CountingStore extends InMemoryPrefsStore {
+        volatile int reads;
+
+        @Override
+        public int getInt(String key, int defValue) {
+            reads++;
+            return super.getInt(key, defValue);
+        }
+
+        @Override
+        public boolean getBoolean(String key, boolean defValue) {
+            reads++;
+            return super.getBoolean(key, defValue);
+        }
+
+        @Override
+        public long getLong(String key, long defValue) {
+            reads++;
+            return super.getLong(key, defValue);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        store = new CountingStore();
+        SimplePrefsTestUtil.put(store, "flag", true);
+        SimplePrefsTestUtil.put(store, "level", 3);
+        new SimplePrefs.Builder().setStore(store).setPrimitiveCache(true).build();
+    }
+
+    @Test
+    public void cachedReadsDoNotReachStore() {
+        assertTrue(SimplePrefs.getBoolean("flag"));
+        assertEquals(3, SimplePrefs.getInt("level"));
+        assertEquals(5, SimplePrefs.getInt("missing", 5));
+        final int reads = store.reads;
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(SimplePrefs.getBoolean("flag"));
+            assertEquals(3, SimplePrefs.getInt("level"));
+            assertEquals(7, SimplePrefs.getInt("missing", 7));
+        }
+        assertEquals(reads, store.reads);
+    }
+
+    @Test
+    public void cacheFollowsWrites() {
+        assertEquals(3, SimplePrefs.getInt("level"));
+        SimplePrefs.putInt("level", 4);
+        assertEquals(4, SimplePrefs.getInt("level"));
+        SimplePrefs.putDouble("ratio", 0.5d);
+        assertEquals(0.5d, SimplePrefs.getDouble("ratio"), 0.0d);
+        SimplePrefs.remove("level");
+        assertEquals(0, SimplePrefs.getInt("level"));
+        assertFalse(SimplePrefs.contains("level"));
+        SimplePrefs.putString("level", "high");
+        assertEquals("high", SimplePrefs.getString("level"));
+
+        assertTrue(SimplePrefs.getBoolean("flag"));
+        SimplePrefs.clear();
+        assertFalse(SimplePrefs.getBoolean("flag"));
+        assertEquals(0.0d, SimplePrefs.getDouble("ratio"), 0.0d);
+    }
+
+    @Test
+    public void missingKeysAreBounded() {
+        final PrimitiveCacheStore cache = new PrimitiveCacheStore(store);
+        final int count = PrimitiveCacheStore.MAX_ABSENT * 4;
+        for (int i = 0; i < count; i++) {
+            assertEquals(-1, cache.getInt("missing" + i, -1));
+        }
+        final int reads = store.reads;
+        for (int i = 0; i < count; i++) {
+            assertEquals(-1, cache.getInt("missing" + i, -1));
+        }
+        // the keys over the limit are read from the store again
+        assertTrue(store.reads - reads >= count - PrimitiveCacheStore.MAX_ABSENT);
+        assertEquals(3, cache.getInt("level", 0));
+        final int cached = store.reads;
+        assertEquals(3, cache.getInt("level", 0));
+        assertEquals(cached, store.reads);
+    }
+
+    @Test
+    public void concurrentWritersKeepTheCacheConsistent() throws InterruptedException {
+        final PrimitiveCacheStore cache = new PrimitiveCacheStore(new InMemoryPrefsStore());
+        final List<Thread> threads = new ArrayList<>();
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        final AtomicInteger shared = new AtomicInteger();
+        for (int t = 0; t < 8; t++) {
+            final String key = "key" + t;
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 1; i <= 2000; i++) {
+                            SimplePrefsTestUtil.put(cache, key, i);
+                            assertEquals(i, cache.getInt(key, 0));
+                            SimplePrefsTestUtil.put(cache, key + "_" + (i % 100), (long) i);
+                            synchronized (shared) {
+                                SimplePrefsTestUtil.put(cache, "shared", shared.incrementAndGet());
+                            }
+                            cache.getInt("shared", 0);
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(Collections.<Throwable>emptyList(), errors);
+        assertEquals(shared.get(), cache.getInt("shared", 0));
+        for (int t = 0; t < 8; t++) {
+            assertEquals(2000, cache.getInt("key" + t, 0));
+            assertEquals(2000L, cache.getLong("key" + t + "_0", 0));
+        }
+    }
+
+    @Test(expected = ClassCastException.class)
+    public void cachedValueOfOtherTypeThrows() {
+        assertEquals(3, SimplePrefs.getInt("level"));
+        SimplePrefs.getLong("level");
+    }
+}
@@ -0,0 +1,95 @@
+package com.wideinc.library.simpleprefs;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ShardedPrefsStoreTest {
+
+    private final InMemoryPrefsStore[] shards = new InMemoryPrefsStore[4];
+    private ShardedPrefsStore store;
+
+    @Before
+    public void setUp() {
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new InMemoryPrefsStore();
+        }
+        store = new ShardedPrefsStore(shards);
+    }
+
+    @Test
+    public void keysAreSpreadAcrossShards() {
+        for (int i = 0; i < 100; i++) {
+            SimplePrefsTestUtil.put(store, "key" + i, i);
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, store.getInt("key" + i, -1));
+            assertTrue(shards[ShardedPrefsStore.shardOf("key" + i, shards.length)].contains("key" + i));
+        }
+        for (InMemoryPrefsStore shard : shards) {
+            assertTrue(shard.getAll().size() > 0);
+        }
+    }
+
+    @Test
+    public void getAllMergesShards() {
+        final Map<String, Object> expected = new HashMap<>();
+        for (int i = 0; i < 50; i++) {
+            expected.put("key" + i, "value" + i);
+        }
+        store.write(false, expected, true);
+
+        final Map<String, ?> all = store.getAll();
+        assertEquals(50, all.size());
+        assertEquals("value7", all.get("key7"));
+        assertFalse(all.containsKey("missing"));
+        assertEquals(expected, new HashMap<>(all));
+        assertEquals(expected.keySet(), new HashSet<>(all.keySet()));
+    }
+
+    @Test
+    public void writeTouchesOnlyChangedShards() {
+        final int[] writes = new int[shards.length];
+        final PrefsStore[] counted = new PrefsStore[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            final int index = i;
+            counted[i] = new InMemoryPrefsStore() {
+                @Override
+                public synchronized boolean write(boolean clear, Map<String, Object> changes, boolean sync) {
+                    writes[index]++;
+                    return super.write(clear, changes, sync);
+                }
+            };
+        }
+        store = new ShardedPrefsStore(counted);
+        SimplePrefsTestUtil.put(store, "one", 1);
+        int total = 0;
+        for (int count : writes) {
+            total += count;
+        }
+        assertEquals(1, total);
+        assertEquals(1, writes[ShardedPrefsStore.shardOf("one", shards.length)]);
+
+        store.write(true, new HashMap<String, Object>(), true);
+        for (int count : writes) {
+            assertTrue(count >= 1);
+        }
+    }
+
+    @Test
+    public void clearAndRemoveThroughFacade() {
+        new SimplePrefs.Builder().setStore(store).build();
+        SimplePrefs.putString("a", "1");
+        SimplePrefs.putLong("b", 2L);
+        SimplePrefs.remove("a");
+        assertFalse(SimplePrefs.contains("a"));
+        assertEquals(2L, SimplePrefs.getLong("b"));
+        SimplePrefs.clear();
+        assertEquals(0, SimplePrefs.getAll().size());
+    }
+}
@@ -0,0 +1,19 @@
+package com.wideinc.library.simpleprefs;
+
+import java.util.HashMap;
+import java.util.Map;
+
+final class SimplePrefsTestUtil {
+
+    private SimplePrefsTestUtil() {
+    }
+
+    /**
+     * Write one value to the store and wait for the disk write, null value removes the key
+     */
+    static boolean put(PrefsStore store, String key, Object value) {
+        final Map<String, Object> changes = new HashMap<>();
+        changes.put(key, value);
+        return store.write(false, changes, true);
+    }
+}
@@ -0,0 +1,26 @@
+package com.wideinc.library.simpleprefs;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+/**
+ * Key provider for the JVM tests, generates a random AES key kept in memory
+ */
+final class TestKeyProvider implements EncryptedPrefsStore.KeyProvider {
+
+    private SecretKey key;
+    volatile int calls;
+
+    @Override
+    public synchronized SecretKey getKey() throws GeneralSecurityException {
+        calls++;
+        if (key == null) {
+            final KeyGenerator generator = KeyGenerator.getInstance("AES");
+            generator.init(256);
+            key = generator.generateKey();
+        }
+        return key;
+    }
+}
@@ -0,0 +1,138 @@
+package com.wideinc.library.simpleprefs;
+
+import android.content.ComponentCallbacks2;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class WriteBehindTest {
+
+    private FakeSharedPreferences preferences;
+
+    @Before
+    public void setUp() {
+        preferences = new FakeSharedPreferences();
+        SimplePrefs.init(preferences, 60000);
+    }
+
+    @After
+    public void tearDown() {
+        SimplePrefs.init(new FakeSharedPreferences());
+    }
+
+    @Test
+    public void pendingValuesAreVisibleBeforeFlush() {
+        for (long i = 0; i < 1000; i++) {
+            SimplePrefs.putLong("last_seen_ts", i);
+        }
+        SimplePrefs.putString("name", "smash");
+        SimplePrefs.remove("name");
+
+        assertEquals(0, preferences.writes);
+        assertEquals(999L, SimplePrefs.getLong("last_seen_ts"));
+        assertFalse(SimplePrefs.contains("name"));
+        assertEquals(1, SimplePrefs.getAll().size());
+    }
+
+    @Test
+    public void flushWritesAllPendingKeysOnce() {
+        for (int i = 0; i < 100; i++) {
+            SimplePrefs.putInt("counter", i);
+            SimplePrefs.putBoolean("flag" + (i % 3), true);
+        }
+        assertTrue(SimplePrefs.flush());
+
+        assertEquals(1, preferences.writes);
+        assertEquals(99, preferences.getInt("counter", 0));
+        assertEquals(99, SimplePrefs.getInt("counter"));
+        assertTrue(SimplePrefs.flush());
+        assertEquals(1, preferences.writes);
+    }
+
+    @Test
+    public void pendingClearHidesStoredValues() {
+        preferences.edit().putInt("old", 1).commit();
+        SimplePrefs.clear();
+        SimplePrefs.putInt("new", 2);
+
+        assertFalse(SimplePrefs.contains("old"));
+        assertEquals(0, SimplePrefs.getInt("old"));
+        SimplePrefs.flush();
+        assertFalse(preferences.contains("old"));
+        assertEquals(2, preferences.getInt("new", 0));
+    }
+
+    @Test
+    public void flushesOncePerWindowInBackground() throws InterruptedException {
+        SimplePrefs.init(preferences, 50);
+        for (int i = 0; i < 100; i++) {
+            SimplePrefs.putInt("counter", i);
+        }
+        for (int i = 0; i < 100 && preferences.writes == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, preferences.writes);
+        assertEquals(99, preferences.getInt("counter", 0));
+    }
+
+    @Test
+    public void failedFlushKeepsChangesPending() {
+        final boolean[] failing = {true};
+        final InMemoryPrefsStore engine = new InMemoryPrefsStore() {
+            @Override
+            public synchronized boolean write(boolean clear, Map<String, Object> changes, boolean sync) {
+                return !failing[0] && super.write(clear, changes, sync);
+            }
+        };
+        final WriteBehindStore store = new WriteBehindStore(engine, 60000);
+        store.write(false, Collections.<String, Object>singletonMap("name", "value"), false);
+        assertFalse(store.flush());
+        assertEquals("value", store.getString("name", null));
+
+        failing[0] = false;
+        assertTrue(store.flush());
+        assertEquals("value", engine.getString("name", null));
+        store.shutdown();
+    }
+
+    @Test
+    public void failedBackgroundFlushIsRetried() throws InterruptedException {
+        final int[] failures = {2};
+        final InMemoryPrefsStore engine = new InMemoryPrefsStore() {
+            @Override
+            public synchronized boolean write(boolean clear, Map<String, Object> changes, boolean sync) {
+                if (failures[0] > 0) {
+                    failures[0]--;
+                    return false;
+                }
+                return super.write(clear, changes, sync);
+            }
+        };
+        final WriteBehindStore store = new WriteBehindStore(engine, 20);
+        store.write(false, Collections.<String, Object>singletonMap("name", "value"), false);
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (!engine.contains("name")) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        assertEquals("value", engine.getString("name", null));
+        store.shutdown();
+    }
+
+    @Test
+    public void writesAfterShutdownAreWrittenDirectly() {
+        final InMemoryPrefsStore engine = new InMemoryPrefsStore();
+        final WriteBehindStore store = new WriteBehindStore(engine, 60000);
+        store.shutdown();
+        store.write(false, Collections.<String, Object>singletonMap("late", 1), false);
+        assertEquals(1, engine.getInt("late", 0));
+        store.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+        store.onLowMemory();
+    }
+}